@@ -0,0 +1,87 @@
+package DMP_integration_with_CI360;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adaptive limit of concurrent requests to one endpoint (AIMD).
+ * <br> <br>
+ * Every request completed in time and without an error raises the limit by 1/limit
+ * (about one more request per round trip of the whole window), a failed or slow request
+ * multiplies it by the backoff ratio. When the endpoint slows down the limit shrinks within a few round trips,
+ * so the agent stops piling requests on it; requests over the limit are rejected immediately instead of queueing.
+ */
+public class AdaptiveLimiter {
+    private final int minLimit;
+    private final int maxLimit;
+    private final long latencyThresholdNanos;
+    private final double backoffRatio;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private double estimatedLimit;
+    private volatile int limit;
+
+    /**
+     * @param initialLimit           This parameter is the limit at the start.
+     * @param minLimit               This parameter is the lowest limit, the endpoint always gets at least these requests.
+     * @param maxLimit               This parameter is the highest limit, usually the size of the connection pool.
+     * @param latencyThresholdMillis This parameter is the latency above which a successful request counts as congestion.
+     * @param backoffRatio           This parameter is the multiplier of the limit on congestion, e.g. 0.9.
+     */
+    public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, long latencyThresholdMillis, double backoffRatio) {
+        if (minLimit < 1 || maxLimit < minLimit)
+            throw new IllegalArgumentException("Invalid limits: min " + minLimit + ", max " + maxLimit);
+
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyThresholdNanos = latencyThresholdMillis * 1000000;
+        this.backoffRatio = backoffRatio;
+        this.estimatedLimit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.limit = (int) estimatedLimit;
+    }
+
+    /**
+     * @return Returns true if the request may be sent, in that case {@link #release(boolean, long)}
+     * or {@link #cancel()} must be called when it is done.
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit)
+                return false;
+            if (inFlight.compareAndSet(current, current + 1))
+                return true;
+        }
+    }
+
+    /**
+     * This method releases the permit and adjusts the limit by the outcome of the request.
+     *
+     * @param success      This parameter is false if the request failed or timed out.
+     * @param latencyNanos This parameter is the duration of the request.
+     */
+    public void release(boolean success, long latencyNanos) {
+        inFlight.decrementAndGet();
+        synchronized (this) {
+            if (!success || latencyNanos > latencyThresholdNanos)
+                estimatedLimit = Math.max(minLimit, estimatedLimit * backoffRatio);
+            else
+                estimatedLimit = Math.min(maxLimit, estimatedLimit + 1 / estimatedLimit);
+            limit = (int) estimatedLimit;
+        }
+    }
+
+    /**
+     * This method releases the permit of a request that was not sent, the limit is not changed.
+     */
+    public void cancel() {
+        inFlight.decrementAndGet();
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+}
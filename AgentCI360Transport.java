@@ -0,0 +1,85 @@
+package DMP_integration_with_CI360;
+
+import com.sas.mkt.agent.sdk.CI360Agent;
+import org.eclipse.jetty.client.api.ContentResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@link CI360Transport} that sends the events through the CI360 Agent SDK {@link CI360Agent}.
+ * Bulk uploads go to the signed URL over plain HTTP.
+ */
+public class AgentCI360Transport implements CI360Transport {
+    private static final int TIMEOUT_MILLIS = 60000;
+
+    private final CI360Agent agent;
+
+    public AgentCI360Transport(CI360Agent agent) {
+        this.agent = agent;
+    }
+
+    /**
+     * @throws IOException if ci360 responded with a status other than 2xx, so the event is not counted as delivered.
+     */
+    public String postEvent(String event) throws Exception {
+        ContentResponse response = agent.postRequest("events", event);
+        byte[] messageBytes = response.getContent();
+        if (response.getStatus() / 100 != 2)
+            throw new IOException("CI360 responded with status " + response.getStatus() + ": " + new String(messageBytes));
+        return new String(messageBytes);
+    }
+
+    public String requestBulkEventURL(String applicationId) throws Exception {
+        return agent.requestBulkEventURL(applicationId);
+    }
+
+    public void uploadBulk(String url, byte[] content) throws Exception {
+        send("PUT", url, content);
+    }
+
+    /**
+     * This method sends the json content and reads the response.
+     *
+     * @return Returns the body of the response.
+     * @throws IOException if the server responded with a status other than 2xx.
+     */
+    public static String send(String method, String url, byte[] content) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setDoOutput(true);
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        connection.setFixedLengthStreamingMode(content.length);
+        connection.setRequestProperty("Content-Type", "application/json");
+        OutputStream out = connection.getOutputStream();
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+
+        int status = connection.getResponseCode();
+        if (status / 100 != 2)
+            throw new IOException(method + " " + url + " responded with status " + status);
+
+        // The body is read to the end, so the connection goes back to the keep-alive cache.
+        InputStream in = connection.getInputStream();
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                body.write(buffer, 0, read);
+
+            return new String(body.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package DMP_integration_with_CI360;
+
+import com.sas.mkt.agent.sdk.CI360Agent;
+import com.sas.mkt.agent.sdk.CI360AgentException;
+import com.sas.mkt.agent.sdk.CI360StreamInterface;
+import com.sas.mkt.agent.sdk.ErrorCode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lifecycle of the agent: the connections to the CI360 streams (one per tenant) and the orderly shutdown.
+ * <br> <br>
+ * When a stream is closed by CI360 or by the network, the reconnect is scheduled on a thread of its own,
+ * so the callback thread of the SDK returns at once. Every stream has its own delay, which grows exponentially
+ * from the initial to the maximum delay and is jittered (between half and all of it), so agents cut off together do not reconnect together.
+ * A connection that stayed up for the stable time resets the delay.
+ * <br> <br>
+ * Shutdown (the "exit" command or SIGTERM through the shutdown hook) stops the streams first, so no new events come in,
+ * then runs the registered stop steps in order within one drain deadline: draining the pipelines, delivering the pending
+ * external events, closing the clients. It runs once, whoever calls it first; a later call waits for it to finish.
+ */
+public class AgentLifecycle {
+
+    /**
+     * Step of the shutdown.
+     */
+    public interface StopStep {
+        /**
+         * @param remainingMillis This parameter is the time left until the drain deadline, 0 when it has passed.
+         */
+        void stop(long remainingMillis) throws Exception;
+    }
+
+    /**
+     * Connection of one agent to its stream.
+     */
+    private static final class Stream {
+        final String name;
+        final CI360Agent agent;
+        final CI360StreamInterface listener;
+        final AtomicLong reconnects = new AtomicLong();
+        volatile long connectedAt;
+        int reconnectAttempts;
+
+        Stream(String name, CI360Agent agent, CI360StreamInterface listener) {
+            this.name = name;
+            this.agent = agent;
+            this.listener = listener;
+        }
+    }
+
+    private final long reconnectInitialDelayMillis;
+    private final long reconnectMaxDelayMillis;
+    private final long stableConnectionMillis;
+    private final long drainTimeoutMillis;
+    private final ScheduledExecutorService reconnector;
+    private final List<String> stepNames = new ArrayList<String>();
+    private final List<StopStep> steps = new ArrayList<StopStep>();
+    private final Map<CI360Agent, Stream> streams = new ConcurrentHashMap<CI360Agent, Stream>();
+
+    private volatile boolean stopping;
+    private boolean stopped;
+
+    /**
+     * @param reconnectInitialDelayMillis This parameter is the delay of the first reconnect.
+     * @param reconnectMaxDelayMillis     This parameter is the maximum delay between reconnects.
+     * @param stableConnectionMillis      This parameter is how long a connection must stay up to reset the delay.
+     * @param drainTimeoutMillis          This parameter is the maximum time of the shutdown after the streams are stopped.
+     */
+    public AgentLifecycle(long reconnectInitialDelayMillis, long reconnectMaxDelayMillis,
+                          long stableConnectionMillis, long drainTimeoutMillis) {
+        this.reconnectInitialDelayMillis = Math.max(1, reconnectInitialDelayMillis);
+        this.reconnectMaxDelayMillis = Math.max(this.reconnectInitialDelayMillis, reconnectMaxDelayMillis);
+        this.stableConnectionMillis = stableConnectionMillis;
+        this.drainTimeoutMillis = drainTimeoutMillis;
+        this.reconnector = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "stream-reconnect");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * This method connects an agent to its stream; the streams of all the agents are stopped by the shutdown.
+     *
+     * @param name     This parameter is the name of the stream for the log, e.g. the tenant.
+     * @param listener This parameter is the listener of the stream; its streamClosed must call
+     *                 {@link #streamClosed(CI360Agent, ErrorCode, String)}.
+     */
+    public void startStream(String name, CI360Agent agent, CI360StreamInterface listener) throws CI360AgentException {
+        Stream stream = new Stream(name, agent, listener);
+        streams.put(agent, stream);
+        agent.startStream(listener, true);
+        stream.connectedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * This method schedules the reconnect of the agent, unless the agent is stopping. It does not block.
+     */
+    public void streamClosed(CI360Agent agent, ErrorCode errorCode, String message) {
+        Stream stream = streams.get(agent);
+        if (stopping || stream == null) {
+            AgentLog.info("Stream closed");
+            return;
+        }
+
+        AgentLog.warn("Stream {} closed: {}", stream.name, errorCode + " " + message);
+        synchronized (stream) {
+            if (System.currentTimeMillis() - stream.connectedAt >= stableConnectionMillis)
+                stream.reconnectAttempts = 0;
+        }
+        scheduleReconnect(stream);
+    }
+
+    /**
+     * This method adds a step to the shutdown; steps run in the order they are added.
+     *
+     * @param name This parameter is the name of the step for the log.
+     */
+    public synchronized void onStop(String name, StopStep step) {
+        stepNames.add(name);
+        steps.add(step);
+    }
+
+    /**
+     * This method makes SIGTERM (and the other normal terminations of the JVM) go through {@link #shutdown()}.
+     */
+    public void installShutdownHook() {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                shutdown();
+            }
+        }, "agent-shutdown"));
+    }
+
+    /**
+     * This method stops the streams and runs the stop steps.
+     */
+    public synchronized void shutdown() {
+        if (stopped)
+            return;
+        stopped = true;
+        stopping = true;
+
+        long start = System.currentTimeMillis();
+        long deadline = start + drainTimeoutMillis;
+        AgentLog.info("Stopping the agent, drain timeout {} ms", drainTimeoutMillis);
+        reconnector.shutdownNow();
+        for (Stream stream : streams.values()) {
+            try {
+                stream.agent.stopStream();
+            } catch (RuntimeException e) {
+                AgentLog.warn("Stream {} was not stopped: {}", stream.name, e.getMessage());
+            }
+        }
+
+        for (int i = 0; i < steps.size(); i++) {
+            try {
+                steps.get(i).stop(Math.max(0, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                AgentLog.warn("Stop step {} was interrupted", stepNames.get(i));
+            } catch (Exception e) {
+                AgentLog.error("Stop step failed: {}", stepNames.get(i) + ": " + e.getMessage(), e);
+            }
+        }
+
+        AgentLog.info("Agent stopped in {} ms", System.currentTimeMillis() - start);
+        AgentLog.flush(Math.max(500, deadline - System.currentTimeMillis()));
+    }
+
+    public boolean isStopping() {
+        return stopping;
+    }
+
+    /**
+     * @return Returns the number of successful reconnects of the agent to its stream.
+     */
+    public long getReconnects(CI360Agent agent) {
+        Stream stream = streams.get(agent);
+        return stream != null ? stream.reconnects.get() : 0;
+    }
+
+    private void scheduleReconnect(final Stream stream) {
+        long delay;
+        synchronized (stream) {
+            delay = reconnectDelay(stream.reconnectAttempts++);
+        }
+        AgentLog.info("Reconnecting to the stream {} in {} ms", stream.name, delay);
+        try {
+            reconnector.schedule(new Runnable() {
+                public void run() {
+                    reconnect(stream);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The agent is stopping.
+        }
+    }
+
+    private void reconnect(Stream stream) {
+        if (stopping)
+            return;
+
+        try {
+            stream.agent.startStream(stream.listener, true);
+            stream.connectedAt = System.currentTimeMillis();
+            stream.reconnects.incrementAndGet();
+            AgentLog.info("Stream {} reconnected", stream.name);
+            // The shutdown may have stopped the stream while it was connecting.
+            if (stopping)
+                stream.agent.stopStream();
+        } catch (CI360AgentException e) {
+            AgentLog.error("Stream was not restarted: {}", stream.name + ": " + e.getErrorCode() + ": " + e.getMessage(), e);
+            scheduleReconnect(stream);
+        }
+    }
+
+    /**
+     * @return Returns the delay of the attempt: the exponential delay capped at the maximum, of which a random half is taken off.
+     */
+    long reconnectDelay(int attempt) {
+        long delay = reconnectInitialDelayMillis << Math.min(attempt, 30);
+        if (delay <= 0 || delay > reconnectMaxDelayMillis)
+            delay = reconnectMaxDelayMillis;
+
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+}
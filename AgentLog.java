@@ -0,0 +1,341 @@
+package DMP_integration_with_CI360;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous log of the agent.
+ * <br> <br>
+ * The calling thread only checks the level and puts the message template with its arguments into a bounded
+ * lock-free ring buffer; formatting (including the pretty-printing of json payloads) and writing to the console
+ * are done by one background thread. When the buffer is full the message is dropped and counted,
+ * a worker never waits for the console.
+ * <br> <br>
+ * Messages use "{}" placeholders for the arguments. Payloads (DMP responses, CI360 events) are logged by
+ * {@link #payload(String, Object)} only at DEBUG level and only for the sampled share of events;
+ * when payload logging is off the call is a volatile read and a comparison.
+ * Lines are written as text or, for log collectors, as json objects (one per line).
+ */
+public final class AgentLog {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    private static final class Record {
+        final long timeMillis = System.currentTimeMillis();
+        final String thread = Thread.currentThread().getName();
+        final Level level;
+        final String message;
+        final Object first;
+        final Object second;
+        final Throwable error;
+
+        Record(Level level, String message, Object first, Object second, Throwable error) {
+            this.level = level;
+            this.message = message;
+            this.first = first;
+            this.second = second;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Bounded multi-producer single-consumer ring buffer: producers claim a slot with a CAS on the tail,
+     * the writer thread is the only consumer.
+     */
+    private static final class Ring {
+        final AtomicReferenceArray<Record> slots;
+        final int mask;
+        final AtomicLong head = new AtomicLong();
+        final AtomicLong tail = new AtomicLong();
+
+        Ring(int capacity) {
+            int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+            this.slots = new AtomicReferenceArray<Record>(size);
+            this.mask = size - 1;
+        }
+
+        boolean offer(Record record) {
+            long position;
+            do {
+                position = tail.get();
+                if (position - head.get() > mask)
+                    return false;
+            } while (!tail.compareAndSet(position, position + 1));
+
+            slots.lazySet((int) position & mask, record);
+            return true;
+        }
+
+        /**
+         * @return Returns the next record, or null if the buffer is empty.
+         */
+        Record poll() {
+            long position = head.get();
+            if (position == tail.get())
+                return null;
+
+            int index = (int) position & mask;
+            Record record;
+            // The slot is claimed but the producer has not published the record yet.
+            while ((record = slots.get(index)) == null)
+                Thread.yield();
+
+            slots.lazySet(index, null);
+            head.lazySet(position + 1);
+            return record;
+        }
+
+        boolean isEmpty() {
+            return head.get() == tail.get();
+        }
+    }
+
+    private static final Gson PRETTY_GSON = new GsonBuilder().setPrettyPrinting().create();
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private static volatile Level level = Level.INFO;
+    private static volatile double payloadSampleRate;
+    private static volatile boolean json;
+    private static volatile Ring ring = new Ring(DEFAULT_BUFFER_SIZE);
+    private static final LongAdder droppedMessages = new LongAdder();
+    private static final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), 1 << 16);
+    private static final Thread writer;
+    /**
+     * Set by the writer thread before it parks on an empty buffer, so the producers wake it up only then.
+     */
+    private static volatile boolean writerParked;
+
+    static {
+        final Ring initial = ring;
+        writer = new Thread(new Runnable() {
+            public void run() {
+                write(initial);
+            }
+        }, "agent-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private AgentLog() {
+    }
+
+    /**
+     * @param logLevel          This parameter is the minimum level of the written messages.
+     * @param sampleRate        This parameter is the share of payloads written at DEBUG level, from 0 (none) to 1 (all).
+     * @param bufferSize        This parameter is the number of messages waiting for the writer, the rest are dropped.
+     * @param jsonFormat        This parameter is true to write every message as a json object.
+     */
+    public static void configure(Level logLevel, double sampleRate, int bufferSize, boolean jsonFormat) {
+        level = logLevel;
+        payloadSampleRate = sampleRate;
+        json = jsonFormat;
+        if (bufferSize != ring.mask + 1)
+            ring = new Ring(bufferSize);
+    }
+
+    public static boolean isEnabled(Level messageLevel) {
+        return messageLevel.compareTo(level) >= 0;
+    }
+
+    public static void debug(String message, Object first) {
+        log(Level.DEBUG, message, first, null, null);
+    }
+
+    public static void debug(String message, Object first, Object second) {
+        log(Level.DEBUG, message, first, second, null);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message, null, null, null);
+    }
+
+    public static void info(String message, Object first) {
+        log(Level.INFO, message, first, null, null);
+    }
+
+    public static void info(String message, Object first, Object second) {
+        log(Level.INFO, message, first, second, null);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message, null, null, null);
+    }
+
+    public static void warn(String message, Object first) {
+        log(Level.WARN, message, first, null, null);
+    }
+
+    public static void warn(String message, Object first, Object second) {
+        log(Level.WARN, message, first, second, null);
+    }
+
+    public static void error(String message, Object first, Throwable error) {
+        log(Level.ERROR, message, first, null, error);
+    }
+
+    /**
+     * This method logs a json payload at DEBUG level for the sampled share of calls.
+     * The payload is pretty-printed by the writer thread, so it must not be modified after the call.
+     *
+     * @param title   This parameter is the title of the payload, e.g. "Response from DMP".
+     * @param payload This parameter is a {@link JsonElement} or a json string.
+     */
+    public static void payload(String title, Object payload) {
+        double sampleRate = payloadSampleRate;
+        if (sampleRate <= 0 || !isEnabled(Level.DEBUG))
+            return;
+        if (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate)
+            return;
+
+        offer(new Record(Level.DEBUG, title + ":\n{}", payload, null, null));
+    }
+
+    /**
+     * This method waits until the written messages reach the console.
+     *
+     * @param timeoutMillis This parameter is the maximum time to wait.
+     */
+    public static void flush(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!ring.isEmpty() && System.currentTimeMillis() < deadline)
+            LockSupport.parkNanos(1000000);
+        synchronized (out) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                // The console is gone, nothing to report to.
+            }
+        }
+    }
+
+    public static long getDroppedMessages() {
+        return droppedMessages.sum();
+    }
+
+    private static void log(Level messageLevel, String message, Object first, Object second, Throwable error) {
+        if (isEnabled(messageLevel))
+            offer(new Record(messageLevel, message, first, second, error));
+    }
+
+    private static void offer(Record record) {
+        if (!ring.offer(record)) {
+            droppedMessages.increment();
+            return;
+        }
+        if (writerParked)
+            LockSupport.unpark(writer);
+    }
+
+    private static void write(Ring active) {
+        while (true) {
+            Record record = active.poll();
+            if (record == null) {
+                // The buffer was replaced by configure(): the old one is drained first.
+                if (active != ring) {
+                    active = ring;
+                    continue;
+                }
+                synchronized (out) {
+                    try {
+                        out.flush();
+                    } catch (IOException e) {
+                        // The console is gone, nothing to report to.
+                    }
+                }
+                // The writer sleeps until a producer offers a record. The flag is set before the buffer is checked again,
+                // so a record offered in between either is seen here or finds the flag and unparks the writer.
+                writerParked = true;
+                if (active == ring && active.isEmpty())
+                    LockSupport.park();
+                writerParked = false;
+                continue;
+            }
+
+            synchronized (out) {
+                try {
+                    out.write(formatSafely(record));
+                    out.write('\n');
+                } catch (IOException e) {
+                    // The console is gone, nothing to report to.
+                }
+            }
+        }
+    }
+
+    /**
+     * This method formats the record; an argument or an error that cannot be rendered (a failing toString(), Gson)
+     * gives a line without them instead of stopping the writer thread.
+     */
+    private static String formatSafely(Record record) throws IOException {
+        try {
+            return format(record);
+        } catch (RuntimeException e) {
+            return format(record, record.message + " [arguments not rendered: " + e.getClass().getName() + "]", null);
+        }
+    }
+
+    private static String format(Record record) throws IOException {
+        String message = substitute(record.message, render(record.first), render(record.second));
+        String stackTrace = null;
+        if (record.error != null) {
+            StringWriter trace = new StringWriter();
+            record.error.printStackTrace(new PrintWriter(trace));
+            stackTrace = trace.toString();
+        }
+
+        return format(record, message, stackTrace);
+    }
+
+    private static String format(Record record, String message, String stackTrace) throws IOException {
+        if (json) {
+            StringWriter line = new StringWriter(128 + message.length());
+            JsonWriter writer = new JsonWriter(line);
+            writer.beginObject();
+            writer.name("time").value(Instant.ofEpochMilli(record.timeMillis).toString());
+            writer.name("level").value(record.level.name());
+            writer.name("thread").value(record.thread);
+            writer.name("message").value(message);
+            if (stackTrace != null)
+                writer.name("error").value(stackTrace);
+            writer.endObject();
+            writer.close();
+            return line.toString();
+        }
+
+        String line = Instant.ofEpochMilli(record.timeMillis) + " " + record.level + " [" + record.thread + "] " + message;
+        return stackTrace != null ? line + "\n" + stackTrace.trim() : line;
+    }
+
+    private static String render(Object argument) {
+        if (argument instanceof JsonElement)
+            return PRETTY_GSON.toJson((JsonElement) argument);
+
+        return String.valueOf(argument);
+    }
+
+    private static String substitute(String message, String first, String second) {
+        StringBuilder text = new StringBuilder(message.length() + 64);
+        int start = 0;
+        int argument = 0;
+        int placeholder;
+        while ((placeholder = message.indexOf("{}", start)) >= 0 && argument < 2) {
+            text.append(message, start, placeholder).append(argument++ == 0 ? first : second);
+            start = placeholder + 2;
+        }
+
+        return text.append(message, start, message.length()).toString();
+    }
+}
@@ -0,0 +1,263 @@
+package DMP_integration_with_CI360;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics of the agent: event counters, latency histograms of the pipeline stages and gauges
+ * read from the components (queue depth, cache size and so on).
+ * <br> <br>
+ * Counters are {@link LongAdder}s and histograms are {@link LatencyHistogram}s, so recording is lock-free
+ * and does not allocate. The metrics are exported in the Prometheus text format ({@link #writePrometheus(Writer)},
+ * served by {@link MetricsHttpServer}) and through JMX ({@link MetricsMBean}).
+ * <br> <br>
+ * When the agent hosts several tenants, every tenant records into its own metrics ({@link #forTenant(String)}),
+ * exported together with the metrics of the process under the same names with the label tenant="name".
+ */
+public class AgentMetrics {
+    private static final String PREFIX = "dmp_agent_";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    /**
+     * Stages of the handling of an intercepted event.
+     */
+    public enum Stage {
+        /**
+         * Time the event waited in the queue of {@link EventPipeline} before a worker took it.
+         */
+        RECEIVE("receive", "Time the event waited for a worker"),
+        PARSE("parse", "Parsing of the intercepted event"),
+        /**
+         * Request to the DMP, including the decryption of the response (cache hits are not recorded).
+         */
+        DMP_FETCH("dmp_fetch", "Request of the profile from the DMP"),
+        DECODE("decode", "Decryption of the DMP response"),
+        /**
+         * Time from handing the external event to {@link CI360EventSink} to the response of ci360.
+         */
+        CI360_SEND("ci360_send", "Delivery of the external event to CI360");
+
+        final String metricName;
+        final String help;
+
+        Stage(String metricName, String help) {
+            this.metricName = metricName;
+            this.help = help;
+        }
+    }
+
+    /**
+     * Event counters.
+     */
+    public enum Counter {
+        RECEIVED("events_received", "Events intercepted from the CI360 stream"),
+        REJECTED("events_rejected", "Events without the identity (datahub_id)"),
+        UNROUTED("events_unrouted", "Events that match no dmp_stream"),
+        COALESCED("events_coalesced", "Repeated events of a user merged within the coalescing window"),
+        SHARD_FORWARDED("events_forwarded", "Events of users owned by another instance forwarded to it"),
+        SHARD_INGESTED("events_ingested", "Events forwarded by other instances"),
+        SHARD_NOT_OWNED("events_not_owned", "Events of users owned by another instance dropped by the shard policy"),
+        SHARD_FALLBACK("shard_forward_fallbacks", "Events of another instance handled here because forwarding failed"),
+        FAILED("events_failed", "Events whose handling threw an exception"),
+        DEFERRED("events_deferred", "Events postponed while the DMP was unavailable"),
+        SPOOLED("events_spooled", "Intercepted events written to the spool"),
+        DMP_NOT_FOUND("dmp_not_found", "Users not found in the DMP"),
+        DMP_ERRORS("dmp_errors", "Failed DMP requests"),
+        DMP_SHED("dmp_shed", "DMP requests not sent because the circuit was open or the concurrency limit was reached"),
+        DMP_FALLBACK_CACHED("dmp_fallback_cached", "Expired cached profiles used while the DMP was unavailable"),
+        CI360_SENT("ci360_sent", "External events delivered to CI360"),
+        CI360_ERRORS("ci360_errors", "External events not delivered to CI360");
+
+        final String metricName;
+        final String help;
+
+        Counter(String metricName, String help) {
+            this.metricName = metricName;
+            this.help = help;
+        }
+    }
+
+    private static final class Gauge {
+        final String name;
+        final String help;
+        final LongSupplier value;
+
+        Gauge(String name, String help, LongSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+    private final LongAdder[] counters = new LongAdder[Counter.values().length];
+    private final CopyOnWriteArrayList<Gauge> gauges = new CopyOnWriteArrayList<Gauge>();
+    private final CopyOnWriteArrayList<AgentMetrics> tenants = new CopyOnWriteArrayList<AgentMetrics>();
+    private final String tenant;
+
+    public AgentMetrics() {
+        this(null);
+    }
+
+    private AgentMetrics(String tenant) {
+        this.tenant = tenant;
+        for (int i = 0; i < histograms.length; i++)
+            histograms[i] = new LatencyHistogram();
+        for (int i = 0; i < counters.length; i++)
+            counters[i] = new LongAdder();
+    }
+
+    /**
+     * This method creates the metrics of a tenant, exported with the metrics of this object.
+     *
+     * @param tenant This parameter is the name of the tenant, the value of the label.
+     */
+    public AgentMetrics forTenant(String tenant) {
+        AgentMetrics metrics = new AgentMetrics(tenant);
+        tenants.add(metrics);
+        return metrics;
+    }
+
+    /**
+     * @return Returns the name of the tenant, null for the metrics of the process.
+     */
+    public String getTenant() {
+        return tenant;
+    }
+
+    public List<AgentMetrics> getTenants() {
+        return tenants;
+    }
+
+    public void increment(Counter counter) {
+        counters[counter.ordinal()].increment();
+    }
+
+    public void add(Counter counter, long count) {
+        counters[counter.ordinal()].add(count);
+    }
+
+    public long getCount(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    /**
+     * @param startNanos This parameter is the value of {@link System#nanoTime()} at the start of the stage.
+     */
+    public void recordSince(Stage stage, long startNanos) {
+        histograms[stage.ordinal()].recordSince(startNanos);
+    }
+
+    public LatencyHistogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    /**
+     * This method registers a value read from a component on every export.
+     *
+     * @param name  This parameter is the name of the metric without the prefix, e.g. "queue_depth".
+     * @param help  This parameter is the description of the metric.
+     * @param value This parameter is the supplier of the current value.
+     */
+    public void registerGauge(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, help, value));
+    }
+
+    /**
+     * This method writes all the metrics in the Prometheus text exposition format.
+     * Histograms are written as summaries in seconds with the quantiles, the sum, the count and the maximum.
+     * The metrics of the tenants follow the metrics of the process under the same header.
+     */
+    public void writePrometheus(Writer out) throws IOException {
+        List<AgentMetrics> all = new ArrayList<AgentMetrics>();
+        all.add(this);
+        all.addAll(tenants);
+
+        for (Counter counter : Counter.values()) {
+            String name = PREFIX + counter.metricName + "_total";
+            writeHeader(out, name, counter.help, "counter");
+            for (AgentMetrics metrics : all)
+                out.write(name + metrics.labels(null) + " " + metrics.getCount(counter) + "\n");
+        }
+
+        // Gauges of the same name are written under one header, whichever metrics registered them.
+        Map<String, String> gaugeHelp = new LinkedHashMap<String, String>();
+        for (AgentMetrics metrics : all)
+            for (Gauge gauge : metrics.gauges)
+                if (!gaugeHelp.containsKey(gauge.name))
+                    gaugeHelp.put(gauge.name, gauge.help);
+        for (Map.Entry<String, String> gaugeName : gaugeHelp.entrySet()) {
+            String name = PREFIX + gaugeName.getKey();
+            writeHeader(out, name, gaugeName.getValue(), "gauge");
+            for (AgentMetrics metrics : all)
+                for (Gauge gauge : metrics.gauges)
+                    if (gauge.name.equals(gaugeName.getKey()))
+                        out.write(name + metrics.labels(null) + " " + gauge.value.getAsLong() + "\n");
+        }
+
+        for (Stage stage : Stage.values()) {
+            String name = PREFIX + stage.metricName + "_seconds";
+            writeHeader(out, name, stage.help, "summary");
+            for (AgentMetrics metrics : all) {
+                LatencyHistogram histogram = metrics.getHistogram(stage);
+                for (double quantile : QUANTILES)
+                    out.write(name + metrics.labels("quantile=\"" + quantile + "\"") + " " + seconds(histogram.getQuantileNanos(quantile)) + "\n");
+                out.write(name + "_sum" + metrics.labels(null) + " " + seconds(histogram.getSumNanos()) + "\n");
+                out.write(name + "_count" + metrics.labels(null) + " " + histogram.getCount() + "\n");
+            }
+
+            writeHeader(out, name + "_max", stage.help + " (maximum)", "gauge");
+            for (AgentMetrics metrics : all)
+                out.write(name + "_max" + metrics.labels(null) + " " + seconds(metrics.getHistogram(stage).getMaxNanos()) + "\n");
+        }
+    }
+
+    /**
+     * This method returns the current values of all the metrics by name, latencies are in microseconds.
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> values = new LinkedHashMap<String, Long>();
+        for (Counter counter : Counter.values())
+            values.put(counter.metricName, getCount(counter));
+        for (Gauge gauge : gauges)
+            values.put(gauge.name, gauge.value.getAsLong());
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = getHistogram(stage);
+            values.put(stage.metricName + "_count", histogram.getCount());
+            for (int i = 0; i < QUANTILES.length; i++)
+                values.put(stage.metricName + "_" + PERCENTILE_NAMES[i] + "_us", histogram.getQuantileNanos(QUANTILES[i]) / 1000);
+            values.put(stage.metricName + "_max_us", histogram.getMaxNanos() / 1000);
+        }
+
+        return values;
+    }
+
+    /**
+     * @return Returns the labels of a sample: the tenant, if any, and the extra label.
+     */
+    private String labels(String extra) {
+        if (tenant == null)
+            return extra == null ? "" : "{" + extra + "}";
+
+        String label = "tenant=\"" + tenant.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+        return "{" + label + (extra == null ? "" : "," + extra) + "}";
+    }
+
+    private static void writeHeader(Writer out, String name, String help, String type) throws IOException {
+        out.write("# HELP " + name + " " + help + "\n");
+        out.write("# TYPE " + name + " " + type + "\n");
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+}
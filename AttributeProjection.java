@@ -0,0 +1,166 @@
+package DMP_integration_with_CI360;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Compiled mapping of the decrypted DMP attributes to the attributes of the CI360 external event.
+ * <br> <br>
+ * The mapping is the "ci360_attributes" array of a "dmp_streams" entry (or of the top level of the configuration file).
+ * An entry is either the name of the DMP attribute, sent as "attribute_N" where N is the position of the entry,
+ * or an object:
+ * {"dmp_attribute": "sd_age_estimated", "ci360_attribute": "age", "type": "number", "default": 0}.
+ * "ci360_attribute" defaults to "attribute_N", "type" is "string" (default), "number" or "boolean",
+ * and "default" is sent when the profile has no value or the value cannot be converted to the type.
+ * <br> <br>
+ * The mapping is compiled at startup into arrays, so writing the payload is one pass without lookups
+ * in the configuration. The DMP attributes of all the mappings of a provider are also given to its codec
+ * ({@link #getDMPAttributes()}), which then decodes only those.
+ */
+public final class AttributeProjection {
+
+    /**
+     * Types of the CI360 attributes.
+     */
+    public enum Type {
+        STRING, NUMBER, BOOLEAN
+    }
+
+    /**
+     * The mapping used before it was configurable: six attributes of the demo case.
+     */
+    public static final AttributeProjection LEGACY = compile(legacyAttributes());
+
+    private final String[] dmpAttributes;
+    private final String[] ci360Attributes;
+    private final Type[] types;
+    private final Object[] defaults;
+    private final Set<String> dmpAttributeSet;
+
+    private AttributeProjection(String[] dmpAttributes, String[] ci360Attributes, Type[] types, Object[] defaults) {
+        this.dmpAttributes = dmpAttributes;
+        this.ci360Attributes = ci360Attributes;
+        this.types = types;
+        this.defaults = defaults;
+        this.dmpAttributeSet = Collections.unmodifiableSet(new LinkedHashSet<String>(Arrays.asList(dmpAttributes)));
+    }
+
+    /**
+     * This method compiles the "ci360_attributes" array.
+     *
+     * @param attributes This parameter is the "ci360_attributes" array of the configuration file.
+     * @return Returns the compiled mapping.
+     * @throws IllegalArgumentException if an entry has no DMP attribute, an unknown type or a default of another type.
+     */
+    public static AttributeProjection compile(JsonArray attributes) {
+        int size = attributes.size();
+        String[] dmpAttributes = new String[size];
+        String[] ci360Attributes = new String[size];
+        Type[] types = new Type[size];
+        Object[] defaults = new Object[size];
+        for (int i = 0; i < size; i++) {
+            JsonElement attribute = attributes.get(i);
+            ci360Attributes[i] = "attribute_" + (i + 1);
+            types[i] = Type.STRING;
+            if (attribute.isJsonPrimitive()) {
+                dmpAttributes[i] = attribute.getAsString();
+                continue;
+            }
+
+            JsonObject entry = attribute.getAsJsonObject();
+            if (entry.get("dmp_attribute") == null)
+                throw new IllegalArgumentException("ci360_attributes entry " + entry + " has no dmp_attribute");
+            dmpAttributes[i] = entry.get("dmp_attribute").getAsString();
+            if (entry.has("ci360_attribute"))
+                ci360Attributes[i] = entry.get("ci360_attribute").getAsString();
+            if (entry.has("type"))
+                types[i] = Type.valueOf(entry.get("type").getAsString().toUpperCase());
+            if (entry.has("default") && !entry.get("default").isJsonNull()) {
+                // Defaults are converted once, here.
+                String defaultValue = entry.get("default").getAsString();
+                defaults[i] = convert(types[i], defaultValue);
+                if (defaults[i] == null)
+                    throw new IllegalArgumentException("Default \"" + defaultValue + "\" of " + ci360Attributes[i] + " is not a " + types[i]);
+            }
+        }
+
+        return new AttributeProjection(dmpAttributes, ci360Attributes, types, defaults);
+    }
+
+    /**
+     * @return Returns the names of the DMP attributes used by the mapping.
+     */
+    public Set<String> getDMPAttributes() {
+        return dmpAttributeSet;
+    }
+
+    /**
+     * This method writes the CI360 attributes of the user to the payload of the external event.
+     * Attributes without a value and without a default are not written.
+     *
+     * @param writer  This parameter is the writer of the payload, positioned inside the event object.
+     * @param profile This parameter is the decrypted profile.
+     */
+    public void write(JsonWriter writer, DMPProfile profile) throws IOException {
+        for (int i = 0; i < dmpAttributes.length; i++) {
+            String value = profile.get(dmpAttributes[i]);
+            Object converted = value != null ? convert(types[i], value) : null;
+            if (converted == null)
+                converted = defaults[i];
+            if (converted == null)
+                continue;
+
+            writer.name(ci360Attributes[i]);
+            if (converted instanceof Boolean)
+                writer.value((Boolean) converted);
+            else if (converted instanceof Number)
+                writer.value((Number) converted);
+            else
+                writer.value((String) converted);
+        }
+    }
+
+    /**
+     * @return Returns the value converted to the type, or null if it cannot be converted.
+     */
+    private static Object convert(Type type, String value) {
+        switch (type) {
+            case NUMBER:
+                try {
+                    return new BigDecimal(value.trim());
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            case BOOLEAN:
+                if (value.equalsIgnoreCase("true") || value.equals("1") || value.equalsIgnoreCase("yes"))
+                    return Boolean.TRUE;
+                if (value.equalsIgnoreCase("false") || value.equals("0") || value.equalsIgnoreCase("no"))
+                    return Boolean.FALSE;
+                return null;
+            case STRING:
+            default:
+                return value;
+        }
+    }
+
+    private static JsonArray legacyAttributes() {
+        JsonArray attributes = new JsonArray();
+        attributes.add("consumerelectronics_interest_type");
+        attributes.add("fin_acc_balance_avg_3m");
+        attributes.add("leisure_hobby");
+        attributes.add("sd_age_estimated");
+        attributes.add("sd_job_pos_category");
+        attributes.add("consumerelectronics_owner_type");
+
+        return attributes;
+    }
+}
@@ -0,0 +1,336 @@
+package DMP_integration_with_CI360;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Offline enrichment of a file of user ids (one datahub_id per line), for backfilling campaigns
+ * instead of waiting for stream events.
+ * <br> <br>
+ * The ids are read one by one and the profiles are requested with {@link DMPClient#fetchAsync(String, DMPClient.ResponseDecoder)},
+ * at most "parallelism" at a time and no more than the adaptive limit of the DMP; ids rejected by the circuit
+ * of the DMP, timeouts and connection errors are retried with a backoff. The results are written in the order of the input as CI360 external events,
+ * one json object per line (NDJSON). Users not found in the DMP are skipped, ids that failed after all the retries
+ * are written to "&lt;output&gt;.failed", so that file can be enriched again later.
+ * <br> <br>
+ * Progress is checkpointed to "&lt;output&gt;.checkpoint": the number of input lines whose results are written
+ * and the sizes of the output files. A restarted run skips those lines and truncates the outputs to the checkpoint,
+ * so nothing is lost or written twice. When the bulk application id is set, the output is uploaded to CI360
+ * in parts through {@link CI360Transport#requestBulkEventURL(String)}; the uploaded size is checkpointed as well.
+ */
+public class BulkEnricher {
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+    private static final long RETRY_BACKOFF_MILLIS = 50;
+    private static final long MAX_RETRY_BACKOFF_MILLIS = 5000;
+
+    /**
+     * Progress of the run, saved as json.
+     */
+    static final class Checkpoint {
+        long inputLines;
+        long outputBytes;
+        long failedBytes;
+        long uploadedBytes;
+        long enriched;
+        long notFound;
+        long failed;
+        boolean completed;
+    }
+
+    private static final class Pending {
+        final String userId;
+        final CompletableFuture<DMPProfile> profile;
+
+        Pending(String userId, CompletableFuture<DMPProfile> profile) {
+            this.userId = userId;
+            this.profile = profile;
+        }
+    }
+
+    private final DMPSource dmpSource;
+    private final String externalEvent;
+    private final AttributeProjection projection;
+    private final int parallelism;
+    private final int maxRetries;
+    private final long checkpointIntervalMillis;
+    private final CI360Transport transport;
+    private final String bulkApplicationId;
+    private final int uploadPartEvents;
+    private final ScheduledExecutorService retryScheduler;
+    private final AtomicLong retries = new AtomicLong();
+
+    /**
+     * @param dmpSource                This parameter is the DMP provider requested for the profiles.
+     * @param externalEvent            This parameter is the name of the external event written for every user.
+     * @param projection               This parameter is the mapping of the DMP attributes to the attributes of the event.
+     * @param parallelism              This parameter is the maximum number of DMP requests in flight.
+     * @param maxRetries               This parameter is the number of retries of a failed request.
+     * @param checkpointIntervalMillis This parameter is the interval of the checkpoints and of the progress messages.
+     * @param transport                This parameter is the transport for uploading to CI360, null disables the upload.
+     * @param bulkApplicationId        This parameter is the application ID of the bulk upload, null disables the upload.
+     * @param uploadPartEvents         This parameter is the maximum number of events uploaded at once.
+     */
+    public BulkEnricher(DMPSource dmpSource, String externalEvent, AttributeProjection projection, int parallelism,
+                        int maxRetries, long checkpointIntervalMillis, CI360Transport transport, String bulkApplicationId,
+                        int uploadPartEvents) {
+        this.dmpSource = dmpSource;
+        this.externalEvent = externalEvent;
+        this.projection = projection;
+        this.parallelism = parallelism;
+        this.maxRetries = maxRetries;
+        this.checkpointIntervalMillis = checkpointIntervalMillis;
+        this.transport = transport;
+        this.bulkApplicationId = bulkApplicationId;
+        this.uploadPartEvents = uploadPartEvents;
+        this.retryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "bulk-retry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * This method enriches the users of the input file, resuming from the checkpoint of the output if there is one,
+     * and uploads the output to CI360 if the upload is enabled.
+     *
+     * @param input  This parameter is the file of user ids, one per line; empty lines are skipped.
+     * @param output This parameter is the NDJSON file of the external events.
+     * @return Returns the final checkpoint with the counters of the run.
+     */
+    public Checkpoint run(File input, File output) throws Exception {
+        File checkpointFile = new File(output.getPath() + ".checkpoint");
+        File failedFile = new File(output.getPath() + ".failed");
+        Checkpoint checkpoint = readCheckpoint(checkpointFile);
+        if (checkpoint.inputLines > 0)
+            AgentLog.info("Bulk enrichment resumed after {} lines of {}", checkpoint.inputLines, input);
+
+        try {
+            if (!checkpoint.completed)
+                enrich(input, output, failedFile, checkpointFile, checkpoint);
+            if (transport != null && bulkApplicationId != null)
+                upload(output, checkpointFile, checkpoint);
+        } finally {
+            retryScheduler.shutdownNow();
+        }
+
+        return checkpoint;
+    }
+
+    private void enrich(File input, File output, File failedFile, File checkpointFile, Checkpoint checkpoint) throws Exception {
+        long started = System.nanoTime();
+        long startLines = checkpoint.inputLines;
+        int window = parallelism * 4;
+        AdaptiveLimiter limiter = dmpSource.dmpClient.getLimiter();
+        final AtomicInteger inFlight = new AtomicInteger();
+        // Every completed request releases a permit, so the loop wakes up when it can write or send more.
+        final Semaphore completions = new Semaphore(0);
+        ArrayDeque<Pending> pending = new ArrayDeque<Pending>(window);
+
+        try (FileChannel outputChannel = openTruncated(output, checkpoint.outputBytes);
+             FileChannel failedChannel = openTruncated(failedFile, checkpoint.failedBytes);
+             Writer outputWriter = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(outputChannel), StandardCharsets.UTF_8), 1 << 16);
+             Writer failedWriter = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(failedChannel), StandardCharsets.UTF_8));
+             BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(input), StandardCharsets.UTF_8), 1 << 16)) {
+            for (long skipped = 0; skipped < checkpoint.inputLines; skipped++) {
+                if (reader.readLine() == null)
+                    break;
+            }
+
+            long nextCheckpoint = System.currentTimeMillis() + checkpointIntervalMillis;
+            boolean endOfInput = false;
+            while (true) {
+                // The results are written in the order of the input, as soon as the oldest request completes.
+                while (!pending.isEmpty() && pending.peek().profile.isDone())
+                    write(pending.poll(), outputWriter, failedWriter, checkpoint);
+
+                if (System.currentTimeMillis() >= nextCheckpoint) {
+                    saveCheckpoint(checkpointFile, checkpoint, outputWriter, outputChannel, failedWriter, failedChannel);
+                    logProgress(checkpoint, startLines, started, pending.size());
+                    nextCheckpoint = System.currentTimeMillis() + checkpointIntervalMillis;
+                }
+
+                // The requests follow the adaptive limit of the DMP instead of being rejected by it.
+                int inFlightLimit = limiter != null ? Math.min(parallelism, limiter.getLimit()) : parallelism;
+                if (!endOfInput && pending.size() < window && inFlight.get() < inFlightLimit) {
+                    String line = reader.readLine();
+                    if (line == null) {
+                        endOfInput = true;
+                        continue;
+                    }
+
+                    String userId = line.trim();
+                    if (userId.isEmpty()) {
+                        pending.add(new Pending(null, CompletableFuture.<DMPProfile>completedFuture(null)));
+                        continue;
+                    }
+                    inFlight.incrementAndGet();
+                    CompletableFuture<DMPProfile> profile = new CompletableFuture<DMPProfile>();
+                    profile.whenComplete((result, error) -> {
+                        inFlight.decrementAndGet();
+                        completions.release();
+                    });
+                    fetch(userId, 0, profile);
+                    pending.add(new Pending(userId, profile));
+                    continue;
+                }
+
+                if (endOfInput && pending.isEmpty())
+                    break;
+                // Nothing can be sent now: wait for a request to complete (the timeout only lets the checkpoint run).
+                completions.tryAcquire(checkpointIntervalMillis, TimeUnit.MILLISECONDS);
+                completions.drainPermits();
+            }
+
+            checkpoint.completed = true;
+            saveCheckpoint(checkpointFile, checkpoint, outputWriter, outputChannel, failedWriter, failedChannel);
+            logProgress(checkpoint, startLines, started, 0);
+        }
+
+        AgentLog.info("Bulk enrichment of {} completed: {}", input, "enriched " + checkpoint.enriched + ", not found " + checkpoint.notFound
+                + ", failed " + checkpoint.failed + ", retries " + retries.get());
+    }
+
+    /**
+     * This method requests the profile, the request is retried after errors that mean that the DMP is in trouble.
+     */
+    private void fetch(final String userId, final int attempt, final CompletableFuture<DMPProfile> profile) {
+        dmpSource.dmpClient.fetchAsync(userId, dmpSource.decoder).whenComplete((result, error) -> {
+            if (error == null) {
+                profile.complete(result);
+                return;
+            }
+
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (attempt >= maxRetries || !(cause instanceof IOException || cause instanceof TimeoutException)) {
+                profile.completeExceptionally(cause);
+                return;
+            }
+
+            long delay = Math.min(MAX_RETRY_BACKOFF_MILLIS, RETRY_BACKOFF_MILLIS << Math.min(attempt, 16));
+            if (cause instanceof DMPUnavailableException)
+                delay = Math.max(delay, ((DMPUnavailableException) cause).getRetryAfterMillis());
+            retries.incrementAndGet();
+            retryScheduler.schedule(() -> fetch(userId, attempt + 1, profile), delay, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    private void write(Pending result, Writer outputWriter, Writer failedWriter, Checkpoint checkpoint) throws IOException {
+        checkpoint.inputLines++;
+        if (result.userId == null)
+            return;
+
+        DMPProfile profile;
+        try {
+            profile = result.profile.join();
+        } catch (CompletionException | CancellationException e) {
+            checkpoint.failed++;
+            failedWriter.write(result.userId);
+            failedWriter.write('\n');
+            AgentLog.debug("Profile of user {} was not received: {}", result.userId, e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+            return;
+        }
+
+        if (profile == null) {
+            checkpoint.notFound++;
+            return;
+        }
+        checkpoint.enriched++;
+        outputWriter.write(EventEnricher.buildExternalEvent(externalEvent, projection, result.userId, profile));
+        outputWriter.write('\n');
+    }
+
+    private void upload(File output, File checkpointFile, Checkpoint checkpoint) throws Exception {
+        long parts = 0;
+        try (FileInputStream stream = new FileInputStream(output)) {
+            if (stream.skip(checkpoint.uploadedBytes) != checkpoint.uploadedBytes)
+                throw new IOException("Output " + output + " is shorter than the uploaded part");
+            BufferedInputStream in = new BufferedInputStream(stream, 1 << 16);
+
+            ByteArrayOutputStream part = new ByteArrayOutputStream(1 << 20);
+            int events = 0;
+            int b;
+            while ((b = in.read()) >= 0) {
+                part.write(b);
+                if (b == '\n' && ++events >= uploadPartEvents) {
+                    uploadPart(part, checkpointFile, checkpoint);
+                    parts++;
+                    events = 0;
+                }
+            }
+            if (part.size() > 0) {
+                uploadPart(part, checkpointFile, checkpoint);
+                parts++;
+            }
+        }
+
+        AgentLog.info("Bulk upload of {} completed in {} parts", output, parts);
+    }
+
+    private void uploadPart(ByteArrayOutputStream part, File checkpointFile, Checkpoint checkpoint) throws Exception {
+        String url = transport.requestBulkEventURL(bulkApplicationId);
+        transport.uploadBulk(url, part.toByteArray());
+        checkpoint.uploadedBytes += part.size();
+        part.reset();
+        writeCheckpoint(checkpointFile, checkpoint);
+        AgentLog.info("Bulk upload progress: {} bytes", checkpoint.uploadedBytes);
+    }
+
+    private void saveCheckpoint(File checkpointFile, Checkpoint checkpoint, Writer outputWriter, FileChannel outputChannel,
+                                Writer failedWriter, FileChannel failedChannel) throws IOException {
+        // The outputs reach the disk before the checkpoint that covers them.
+        outputWriter.flush();
+        failedWriter.flush();
+        outputChannel.force(false);
+        failedChannel.force(false);
+        checkpoint.outputBytes = outputChannel.position();
+        checkpoint.failedBytes = failedChannel.position();
+        writeCheckpoint(checkpointFile, checkpoint);
+    }
+
+    private void logProgress(Checkpoint checkpoint, long startLines, long startedNanos, int inFlight) {
+        double seconds = Math.max(1e-3, (System.nanoTime() - startedNanos) / 1e9);
+        AgentLog.info("Bulk enrichment progress: {}", String.format(Locale.ROOT,
+                "%d lines, %.0f users/s, enriched %d, not found %d, failed %d, retries %d, in flight %d",
+                checkpoint.inputLines, (checkpoint.inputLines - startLines) / seconds, checkpoint.enriched,
+                checkpoint.notFound, checkpoint.failed, retries.get(), inFlight));
+    }
+
+    private static FileChannel openTruncated(File file, long size) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        // Results written after the last checkpoint are written again.
+        channel.truncate(size);
+        channel.position(size);
+
+        return channel;
+    }
+
+    static Checkpoint readCheckpoint(File checkpointFile) throws IOException {
+        if (!checkpointFile.isFile())
+            return new Checkpoint();
+
+        try (Reader reader = new InputStreamReader(new FileInputStream(checkpointFile), StandardCharsets.UTF_8)) {
+            return GSON.fromJson(reader, Checkpoint.class);
+        }
+    }
+
+    private static void writeCheckpoint(File checkpointFile, Checkpoint checkpoint) throws IOException {
+        File temporary = new File(checkpointFile.getPath() + ".tmp");
+        Files.write(temporary.toPath(), GSON.toJson(checkpoint).getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,292 @@
+package DMP_integration_with_CI360;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Batching sink of the external events sent to ci360.
+ * <br> <br>
+ * Events are collected until the batch reaches the configured size or the oldest event has waited for the linger time.
+ * A batch of at least the bulk threshold is uploaded through the signed bulk URL
+ * ({@link CI360Transport#requestBulkEventURL(String)}), smaller batches are posted one by one by a pool of senders.
+ * If the bulk upload fails, the batch falls back to single posts.
+ * The delivery of every event is tracked by the future returned from {@link #send(String)}.
+ * With an {@link EventSpool}, events that could not be delivered are also written to the spool and replayed later.
+ * <br> <br>
+ * The events waiting for the delivery are limited: while ci360 is slow or down and the limit is reached,
+ * {@link #send(String)} blocks the worker for up to the pending wait, so the pipeline queue fills and its overflow
+ * policy applies. An event that still finds no room is spooled (or dropped without a spool) and counted as overflow.
+ */
+public class CI360EventSink {
+    public static final int DEFAULT_MAX_PENDING_EVENTS = 10000;
+    public static final long DEFAULT_PENDING_WAIT_MILLIS = 1000;
+
+    private static final class PendingEvent {
+        final String event;
+        final CompletableFuture<String> delivery = new CompletableFuture<String>();
+
+        PendingEvent(String event) {
+            this.event = event;
+        }
+    }
+
+    private final CI360Transport transport;
+    private final int batchSize;
+    private final long lingerMillis;
+    private final int bulkThreshold;
+    private final String bulkApplicationId;
+    private final ExecutorService senders;
+    private final ScheduledExecutorService flusher;
+    private final EventSpool spool;
+    private final Semaphore pendingPermits;
+    private final long pendingWaitMillis;
+
+    private List<PendingEvent> batch = new ArrayList<PendingEvent>();
+    private long batchStartedAt;
+
+    private final AtomicLong deliveredEvents = new AtomicLong();
+    private final AtomicLong failedEvents = new AtomicLong();
+    private final AtomicLong bulkUploads = new AtomicLong();
+    private final AtomicLong pendingEvents = new AtomicLong();
+    private final AtomicLong spooledEvents = new AtomicLong();
+    private final AtomicLong overflowEvents = new AtomicLong();
+
+    /**
+     * @param transport         This parameter is the transport to ci360.
+     * @param batchSize         This parameter is the maximum number of events in a batch.
+     * @param lingerMillis      This parameter is the maximum time an event waits for the batch to fill.
+     * @param bulkThreshold     This parameter is the minimum size of a batch uploaded in bulk.
+     * @param bulkApplicationId This parameter is the application ID for bulk uploads, null disables them.
+     * @param senderThreads     This parameter is the number of threads posting the events.
+     */
+    public CI360EventSink(CI360Transport transport, int batchSize, long lingerMillis, int bulkThreshold,
+                          String bulkApplicationId, int senderThreads) {
+        this(transport, batchSize, lingerMillis, bulkThreshold, bulkApplicationId, senderThreads, null);
+    }
+
+    /**
+     * @param spool This parameter is the spool of the events that were not delivered, null drops them.
+     */
+    public CI360EventSink(CI360Transport transport, int batchSize, long lingerMillis, int bulkThreshold,
+                          String bulkApplicationId, int senderThreads, EventSpool spool) {
+        this(transport, batchSize, lingerMillis, bulkThreshold, bulkApplicationId, senderThreads, spool,
+                DEFAULT_MAX_PENDING_EVENTS, DEFAULT_PENDING_WAIT_MILLIS);
+    }
+
+    /**
+     * @param maxPendingEvents  This parameter is the maximum number of events waiting for the delivery.
+     * @param pendingWaitMillis This parameter is how long {@link #send(String)} waits for room before the event overflows.
+     */
+    public CI360EventSink(CI360Transport transport, int batchSize, long lingerMillis, int bulkThreshold,
+                          String bulkApplicationId, int senderThreads, EventSpool spool,
+                          int maxPendingEvents, long pendingWaitMillis) {
+        if (maxPendingEvents < 1)
+            throw new IllegalArgumentException("maxPendingEvents must be positive: " + maxPendingEvents);
+
+        this.transport = transport;
+        this.batchSize = Math.max(1, batchSize);
+        this.lingerMillis = lingerMillis;
+        this.bulkThreshold = bulkThreshold;
+        this.bulkApplicationId = bulkApplicationId;
+        this.spool = spool;
+        this.pendingPermits = new Semaphore(maxPendingEvents);
+        this.pendingWaitMillis = pendingWaitMillis;
+        this.senders = Executors.newFixedThreadPool(senderThreads, daemonThreads("ci360-sender"));
+        this.flusher = Executors.newSingleThreadScheduledExecutor(daemonThreads("ci360-flusher"));
+
+        long period = Math.max(1, lingerMillis / 2);
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                flushIfLingered();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * This method adds the event to the current batch; while the pending events are at the limit it waits for room.
+     *
+     * @param event This parameter is the json string of the external event.
+     * @return Returns a future completed with the response of ci360 when the event is delivered,
+     * or completed exceptionally at once if the event overflowed.
+     */
+    public CompletableFuture<String> send(String event) {
+        PendingEvent pendingEvent = new PendingEvent(event);
+        if (!acquirePending()) {
+            overflowEvents.incrementAndGet();
+            boolean spooled = spool != null && spool.append(EventSpool.TYPE_DELIVERY, event);
+            if (spooled)
+                spooledEvents.incrementAndGet();
+            pendingEvent.delivery.completeExceptionally(new RejectedExecutionException(
+                    pendingWaitMillis + " ms without room for the delivery, event " + (spooled ? "spooled" : "dropped")));
+            return pendingEvent.delivery;
+        }
+        pendingEvents.incrementAndGet();
+
+        List<PendingEvent> full = null;
+        synchronized (this) {
+            if (batch.isEmpty())
+                batchStartedAt = System.currentTimeMillis();
+            batch.add(pendingEvent);
+            if (batch.size() >= batchSize)
+                full = takeBatch();
+        }
+        if (full != null)
+            dispatch(full);
+
+        return pendingEvent.delivery;
+    }
+
+    /**
+     * This method sends the current batch without waiting for it to fill.
+     */
+    public void flush() {
+        List<PendingEvent> events;
+        synchronized (this) {
+            events = takeBatch();
+        }
+        if (!events.isEmpty())
+            dispatch(events);
+    }
+
+    /**
+     * This method sends the current batch and waits for the senders to finish.
+     *
+     * @param timeoutMillis This parameter is the maximum time to wait.
+     */
+    public void close(long timeoutMillis) {
+        flusher.shutdownNow();
+        flush();
+        senders.shutdown();
+        try {
+            senders.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getDeliveredEvents() {
+        return deliveredEvents.get();
+    }
+
+    public long getFailedEvents() {
+        return failedEvents.get();
+    }
+
+    public long getBulkUploads() {
+        return bulkUploads.get();
+    }
+
+    public long getPendingEvents() {
+        return pendingEvents.get();
+    }
+
+    public long getSpooledEvents() {
+        return spooledEvents.get();
+    }
+
+    /**
+     * @return Returns the number of events that found no room among the pending events (spooled or dropped).
+     */
+    public long getOverflowEvents() {
+        return overflowEvents.get();
+    }
+
+    private boolean acquirePending() {
+        try {
+            return pendingPermits.tryAcquire() || pendingPermits.tryAcquire(pendingWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void flushIfLingered() {
+        List<PendingEvent> events = null;
+        synchronized (this) {
+            if (!batch.isEmpty() && System.currentTimeMillis() - batchStartedAt >= lingerMillis)
+                events = takeBatch();
+        }
+        if (events != null)
+            dispatch(events);
+    }
+
+    private List<PendingEvent> takeBatch() {
+        List<PendingEvent> events = batch;
+        batch = new ArrayList<PendingEvent>(Math.min(batchSize, 1024));
+        return events;
+    }
+
+    private void dispatch(final List<PendingEvent> events) {
+        if (bulkApplicationId != null && events.size() >= bulkThreshold) {
+            senders.execute(new Runnable() {
+                public void run() {
+                    uploadBulk(events);
+                }
+            });
+            return;
+        }
+
+        for (final PendingEvent pendingEvent : events) {
+            senders.execute(new Runnable() {
+                public void run() {
+                    post(pendingEvent);
+                }
+            });
+        }
+    }
+
+    private void uploadBulk(List<PendingEvent> events) {
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream(events.size() * 256);
+            for (PendingEvent pendingEvent : events) {
+                content.write(pendingEvent.event.getBytes(StandardCharsets.UTF_8));
+                content.write('\n');
+            }
+
+            String url = transport.requestBulkEventURL(bulkApplicationId);
+            transport.uploadBulk(url, content.toByteArray());
+            bulkUploads.incrementAndGet();
+            for (PendingEvent pendingEvent : events)
+                delivered(pendingEvent, "Uploaded in bulk");
+        } catch (Exception e) {
+            AgentLog.warn("Bulk upload of {} events failed, sending them one by one: {}", events.size(), e.getMessage());
+            for (PendingEvent pendingEvent : events)
+                post(pendingEvent);
+        }
+    }
+
+    private void post(PendingEvent pendingEvent) {
+        try {
+            delivered(pendingEvent, transport.postEvent(pendingEvent.event));
+        } catch (Exception e) {
+            pendingEvents.decrementAndGet();
+            pendingPermits.release();
+            failedEvents.incrementAndGet();
+            if (spool != null && spool.append(EventSpool.TYPE_DELIVERY, pendingEvent.event))
+                spooledEvents.incrementAndGet();
+            pendingEvent.delivery.completeExceptionally(e);
+        }
+    }
+
+    private void delivered(PendingEvent pendingEvent, String response) {
+        pendingEvents.decrementAndGet();
+        pendingPermits.release();
+        deliveredEvents.incrementAndGet();
+        pendingEvent.delivery.complete(response);
+    }
+
+    private static ThreadFactory daemonThreads(final String name) {
+        final AtomicLong counter = new AtomicLong();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + counter.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,28 @@
+package DMP_integration_with_CI360;
+
+/**
+ * Transport of the external events to ci360, used by {@link CI360EventSink}.
+ */
+public interface CI360Transport {
+    /**
+     * This method posts one event to the "events" endpoint.
+     *
+     * @return Returns the response of ci360.
+     */
+    String postEvent(String event) throws Exception;
+
+    /**
+     * This method requests a signed URL for uploading events in bulk.
+     *
+     * @param applicationId This parameter is the application ID of the bulk upload.
+     */
+    String requestBulkEventURL(String applicationId) throws Exception;
+
+    /**
+     * This method uploads the events to the signed URL.
+     *
+     * @param url     This parameter is the signed URL returned by {@link #requestBulkEventURL(String)}.
+     * @param content This parameter is the events, one json object per line.
+     */
+    void uploadBulk(String url, byte[] content) throws Exception;
+}
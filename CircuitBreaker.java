@@ -0,0 +1,146 @@
+package DMP_integration_with_CI360;
+
+/**
+ * Circuit breaker of one endpoint.
+ * <br> <br>
+ * CLOSED - requests pass, the outcomes of the last requests are counted in a sliding window;
+ * when the share of failures in the window reaches the threshold the circuit opens.
+ * <br>
+ * OPEN - requests are rejected without touching the endpoint until the open time passes.
+ * <br>
+ * HALF_OPEN - a few probe requests pass; if all of them succeed the circuit closes,
+ * the first failure opens it again for another open time.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final double failureRateThreshold;
+    private final int minimumCalls;
+    private final long openMillis;
+    private final int halfOpenProbes;
+
+    private final boolean[] window;
+    private int windowPosition;
+    private int windowCalls;
+    private int windowFailures;
+
+    private volatile State state = State.CLOSED;
+    private long openedAt;
+    private int probesStarted;
+    private int probesSucceeded;
+
+    /**
+     * @param name                 This parameter is the name of the endpoint for the log.
+     * @param failureRateThreshold This parameter is the share of failed requests that opens the circuit, e.g. 0.5.
+     * @param windowSize           This parameter is the number of the last requests the failure rate is computed on.
+     * @param minimumCalls         This parameter is the number of requests in the window before the rate is checked.
+     * @param openMillis           This parameter is the time the circuit stays open before probing.
+     * @param halfOpenProbes       This parameter is the number of probe requests that must succeed to close the circuit.
+     */
+    public CircuitBreaker(String name, double failureRateThreshold, int windowSize, int minimumCalls, long openMillis, int halfOpenProbes) {
+        this.name = name;
+        this.failureRateThreshold = failureRateThreshold;
+        this.window = new boolean[Math.max(1, windowSize)];
+        this.minimumCalls = Math.max(1, Math.min(minimumCalls, window.length));
+        this.openMillis = openMillis;
+        this.halfOpenProbes = Math.max(1, halfOpenProbes);
+    }
+
+    /**
+     * @return Returns true if the request may be sent, in that case {@link #onSuccess()}, {@link #onFailure()}
+     * or {@link #cancel()} must be called when it is done.
+     */
+    public boolean tryAcquire() {
+        if (state == State.CLOSED)
+            return true;
+
+        synchronized (this) {
+            if (state == State.OPEN) {
+                if (System.currentTimeMillis() - openedAt < openMillis)
+                    return false;
+                state = State.HALF_OPEN;
+                probesStarted = 0;
+                probesSucceeded = 0;
+            }
+            if (state == State.HALF_OPEN) {
+                if (probesStarted >= halfOpenProbes)
+                    return false;
+                probesStarted++;
+            }
+            return true;
+        }
+    }
+
+    public synchronized void onSuccess() {
+        if (state == State.HALF_OPEN) {
+            if (++probesSucceeded >= halfOpenProbes) {
+                state = State.CLOSED;
+                resetWindow();
+                AgentLog.info("Circuit of {} closed after {} successful probes", name, probesSucceeded);
+            }
+            return;
+        }
+        record(false);
+    }
+
+    public synchronized void onFailure() {
+        if (state == State.HALF_OPEN) {
+            open();
+            return;
+        }
+        record(true);
+        if (state == State.CLOSED && windowCalls >= minimumCalls && windowFailures >= failureRateThreshold * windowCalls)
+            open();
+    }
+
+    /**
+     * This method releases the permit of a request that was not sent.
+     */
+    public synchronized void cancel() {
+        if (state == State.HALF_OPEN && probesStarted > 0)
+            probesStarted--;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return Returns the time until the next probe, 0 if the circuit is not open.
+     */
+    public synchronized long getRemainingOpenMillis() {
+        if (state != State.OPEN)
+            return 0;
+
+        return Math.max(0, openMillis - (System.currentTimeMillis() - openedAt));
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        AgentLog.warn("Circuit of {} opened for " + openMillis + " ms, failures in the window: {}", name, windowFailures);
+    }
+
+    private void record(boolean failure) {
+        if (windowCalls == window.length) {
+            if (window[windowPosition])
+                windowFailures--;
+        } else {
+            windowCalls++;
+        }
+        window[windowPosition] = failure;
+        if (failure)
+            windowFailures++;
+        windowPosition = (windowPosition + 1) % window.length;
+    }
+
+    private void resetWindow() {
+        windowPosition = 0;
+        windowCalls = 0;
+        windowFailures = 0;
+    }
+}
@@ -0,0 +1,86 @@
+package DMP_integration_with_CI360;
+
+import com.google.gson.JsonObject;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Codec of the CleverData DMP: the taxonomy is the Excel file of CleverData (or its compiled snapshot),
+ * it is compiled into a {@link TaxonomyIndex} and the responses are decrypted by {@link CleverDataConverter}
+ * while they are read. The taxonomy is reloaded by {@link TaxonomyWatcher} when the file changes.
+ * <br> <br>
+ * Settings: "taxonomy_path", "taxonomy_snapshot_path", "taxonomy_reader" ("streaming" or "dom")
+ * and "taxonomy_reload_interval_seconds" (0 disables reloading).
+ */
+public class CleverDataCodec implements DMPProviderCodec {
+    public static final String PROVIDER_NAME = "cleverdata";
+
+    private String taxonomyPath;
+    private String taxonomySnapshotPath;
+    private String taxonomyReaderType;
+    private long taxonomyReloadInterval;
+    private ReaderInterface taxonomyReader;
+    private CleverDataConverter converter;
+    private TaxonomyWatcher taxonomyWatcher;
+
+    public String getProviderName() {
+        return PROVIDER_NAME;
+    }
+
+    public void configure(JsonObject settings) {
+        // The compiled snapshot is used when it is up to date,
+        // otherwise the Excel file is read (the streaming reader does not keep the workbook in memory).
+        taxonomyPath = settings.has("taxonomy_path") ? settings.get("taxonomy_path").getAsString() : TaxonomyLoader.DEFAULT_TAXONOMY_PATH;
+        taxonomySnapshotPath = settings.has("taxonomy_snapshot_path")
+                ? settings.get("taxonomy_snapshot_path").getAsString()
+                : TaxonomyLoader.defaultSnapshotPath(taxonomyPath);
+        taxonomyReaderType = settings.has("taxonomy_reader") ? settings.get("taxonomy_reader").getAsString() : "streaming";
+        taxonomyReloadInterval = settings.has("taxonomy_reload_interval_seconds") ? settings.get("taxonomy_reload_interval_seconds").getAsLong() : 30;
+        taxonomyReader = TaxonomyLoader.load(taxonomyPath, taxonomySnapshotPath, taxonomyReaderType);
+    }
+
+    public DMPClient.ResponseDecoder<DMPProfile> compile(Set<String> projectedAttributes) {
+        // The taxonomy is compiled once and shared by all workers, only the projected attributes are decoded.
+        converter = new CleverDataConverter(TaxonomyIndex.build(taxonomyReader.getAttributesTaxonomy(),
+                taxonomyReader.getDictionaryAttributesTaxonomy(), TaxonomyLoader.version(taxonomyPath, taxonomySnapshotPath)),
+                projectedAttributes);
+
+        // The watcher swaps the index inside the converter, so the decoder stays the same.
+        taxonomyWatcher = new TaxonomyWatcher(taxonomyPath, taxonomySnapshotPath, taxonomyReaderType, converter);
+        if (taxonomyReloadInterval > 0)
+            taxonomyWatcher.start(taxonomyReloadInterval);
+
+        return converter::decodeProfile;
+    }
+
+    public AttributesTaxonomy getAttributesTaxonomy() {
+        return taxonomyReader.getAttributesTaxonomy();
+    }
+
+    public Map<String, Map<String, String>> getDictionaryAttributesTaxonomy() {
+        return taxonomyReader.getDictionaryAttributesTaxonomy();
+    }
+
+    /**
+     * @return Returns the watcher of the taxonomy file, null before {@link #compile(Set)}.
+     */
+    public TaxonomyWatcher getTaxonomyWatcher() {
+        return taxonomyWatcher;
+    }
+
+    public String describe() {
+        if (taxonomyWatcher == null)
+            return "Taxonomy is not compiled";
+
+        return "Taxonomy version: " + taxonomyWatcher.getActiveVersion()
+                + ", reloads: " + taxonomyWatcher.getReloadCount()
+                + ", failed reloads: " + taxonomyWatcher.getFailedReloadCount()
+                + ", last reload: " + taxonomyWatcher.getLastReloadMillis() + " ms";
+    }
+
+    public void close() {
+        if (taxonomyWatcher != null)
+            taxonomyWatcher.stop();
+    }
+}
@@ -1,66 +1,137 @@
 package DMP_integration_with_CI360;
 
-import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
+import java.io.IOException;
 import java.util.*;
 
 /**
  * This class is for decrypting data.
  */
 public class CleverDataConverter {
-    public AttributesTaxonomy attributesTaxonomy;
-    public Map<String, Map<String, String>> dictionaryAttributesTaxonomy;
-    private List<String> valueTypes = new ArrayList<>(Arrays.asList(new String[]{
-            "Boolean", "Character", "Byte", "Integer",
-            "Long", "Double", "String", "Enum", "ABoolean",
-            "ACharacter", "AByte", "AInteger", "ALong", "ADouble",
-            "AString", "AEnum", "AAByte", "D-Currency"
-    }));
+    /**
+     * The compiled taxonomy. It is replaced by {@link TaxonomyWatcher} when the taxonomy file changes,
+     * every call of {@link #decodeProfile(JsonReader)} uses the index that was current when it started.
+     */
+    private volatile TaxonomyIndex taxonomyIndex;
+    /**
+     * The names of the attributes sent to ci360, null to decode all the attributes.
+     */
+    private final Set<String> projectedAttributes;
 
     public CleverDataConverter(AttributesTaxonomy attributesTaxonomy, Map<String, Map<String, String>> dictionaryAttributesTaxonomy) {
-        this.attributesTaxonomy = attributesTaxonomy;
-        this.dictionaryAttributesTaxonomy = dictionaryAttributesTaxonomy;
+        this(TaxonomyIndex.build(attributesTaxonomy, dictionaryAttributesTaxonomy));
+    }
+
+    /**
+     * @param taxonomyIndex This parameter is the compiled taxonomy, it can be shared between converters.
+     */
+    public CleverDataConverter(TaxonomyIndex taxonomyIndex) {
+        this(taxonomyIndex, null);
+    }
+
+    /**
+     * @param taxonomyIndex       This parameter is the compiled taxonomy.
+     * @param projectedAttributes This parameter is the names of the attributes sent to ci360, the other attributes
+     *                            of the response are skipped; null decodes all the attributes.
+     */
+    public CleverDataConverter(TaxonomyIndex taxonomyIndex, Set<String> projectedAttributes) {
+        this.projectedAttributes = projectedAttributes;
+        this.taxonomyIndex = projectedAttributes != null ? taxonomyIndex.project(projectedAttributes) : taxonomyIndex;
+    }
+
+    public TaxonomyIndex getTaxonomyIndex() {
+        return taxonomyIndex;
+    }
+
+    /**
+     * This method replaces the taxonomy used for decrypting data.
+     * The projection of the converter is applied to the new taxonomy.
+     *
+     * @param taxonomyIndex This parameter is the new compiled taxonomy.
+     */
+    public void setTaxonomyIndex(TaxonomyIndex taxonomyIndex) {
+        this.taxonomyIndex = projectedAttributes != null ? taxonomyIndex.project(projectedAttributes) : taxonomyIndex;
     }
 
     /**
-     * This method traverses the attributes of the encrypted data and uses a hashmap to decrypt
+     * This method traverses the attributes of the encrypted data and uses the compiled taxonomy to decrypt
      *
      * @param codedDataJsonObject This parameter is a json object that contains encrypted data.
      * @return Returns a json object with decrypted data.
      */
     public JsonObject getConvertedCookieData(JsonObject codedDataJsonObject) {
-        Gson gson = new Gson();
-        JsonParser parser = new JsonParser();
-        Map<String, String> convertedAttributesData = new HashMap<String, String>();
+        TaxonomyIndex taxonomyIndex = this.taxonomyIndex;
+        JsonObject convertedAttributesData = new JsonObject();
         for (JsonElement codedAttributeData : codedDataJsonObject.get("attrs").getAsJsonArray()) {
             JsonObject codedAttribute = codedAttributeData.getAsJsonObject();
-            if (attributesTaxonomy.ids.contains(codedAttribute.get("primary").getAsString())) {
-                int index = attributesTaxonomy.ids.indexOf(codedAttribute.get("primary").getAsString());
-                String attributeName = attributesTaxonomy.names.get(index), attributeType = attributesTaxonomy.types.get(index);
-
-                String attributeValue = null;
-                if (!valueTypes.contains(attributeType))
-                    try {
-                        attributeValue = dictionaryAttributesTaxonomy.get(attributeType).get(codedAttribute.get("secondary").getAsString());
-                    } catch (Exception ex) {
-                        System.out.println("Error!");
-                    }
-                else {
-                    attributeValue = codedAttribute.get("secondary").getAsString();
-                }
-
-                if (attributeValue != null && !attributeValue.isEmpty() && !attributeValue.equals("Отсутствует") && !attributeValue.equals("0"))
-                    convertedAttributesData.put(attributeName, attributeValue);
+            TaxonomyIndex.Attribute attribute = taxonomyIndex.getAttribute(codedAttribute.get("primary").getAsString());
+            if (attribute != null) {
+                JsonElement secondary = codedAttribute.get("secondary");
+                String attributeValue = attribute.decodeValue(secondary == null || secondary.isJsonNull() ? null : secondary.getAsString());
+                if (attributeValue != null)
+                    convertedAttributesData.addProperty(attribute.name, attributeValue);
             }
         }
 
         JsonObject convertedDataJsonObject = new JsonObject();
         convertedDataJsonObject.addProperty("id", codedDataJsonObject.get("id").getAsString());
-        convertedDataJsonObject.add("attrs", parser.parse(gson.toJson(convertedAttributesData)).getAsJsonObject());
+        convertedDataJsonObject.add("attrs", convertedAttributesData);
 
         return convertedDataJsonObject;
     }
+
+    /**
+     * This method decrypts the data while reading the response of the DMP into the compact profile kept by the cache:
+     * neither the json tree of the encrypted data nor the json object of the decrypted data is built.
+     *
+     * @param reader This parameter is a reader positioned at the json object that contains encrypted data.
+     * @return Returns the decrypted profile.
+     */
+    public DMPProfile decodeProfile(JsonReader reader) throws IOException {
+        TaxonomyIndex taxonomyIndex = this.taxonomyIndex;
+        DMPProfile.Builder profile = new DMPProfile.Builder();
+        String id = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals("id")) {
+                id = EventParser.readString(reader);
+            } else if (name.equals("attrs") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    String primary = null, secondary = null;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String field = reader.nextName();
+                        if (field.equals("primary"))
+                            primary = EventParser.readString(reader);
+                        else if (field.equals("secondary"))
+                            secondary = EventParser.readString(reader);
+                        else
+                            reader.skipValue();
+                    }
+                    reader.endObject();
+
+                    TaxonomyIndex.Attribute attribute = taxonomyIndex.getAttribute(primary);
+                    if (attribute != null) {
+                        // Dictionary values are the strings of the taxonomy, only raw values are kept by the profile.
+                        String attributeValue = attribute.decodeValue(secondary);
+                        if (attributeValue != null)
+                            profile.add(attribute.name, attributeValue, !attribute.valueType);
+                    }
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return profile.build(id);
+    }
 }
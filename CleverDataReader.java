@@ -16,6 +16,19 @@ import java.util.*;
  * Class for reading Excel file with taxonomy
  */
 public class CleverDataReader implements ReaderInterface {
+    /**
+     * Sheets of the taxonomy file that are not dictionaries of attribute values.
+     */
+    static final List<String> SERVICE_SHEET_NAMES = Collections.unmodifiableList(Arrays.asList(
+            "Id-Sync-Table",
+            "Attributes",
+            "Notes",
+            "Sheets",
+            "types",
+            "Groups",
+            "D-System"
+    ));
+
     public XSSFWorkbook book;
     public AttributesTaxonomy attributesTaxonomy;
     public Map<String, Map<String, String>> dictionaryAttributesTaxonomy;
@@ -29,6 +42,14 @@ public class CleverDataReader implements ReaderInterface {
         this.dictionaryAttributesTaxonomy = getDictionaryAttributesTaxonomy(book);
     }
 
+    public AttributesTaxonomy getAttributesTaxonomy() {
+        return attributesTaxonomy;
+    }
+
+    public Map<String, Map<String, String>> getDictionaryAttributesTaxonomy() {
+        return dictionaryAttributesTaxonomy;
+    }
+
     /**
      * Creates and returns an object to work with Excel file
      */
@@ -101,25 +122,13 @@ public class CleverDataReader implements ReaderInterface {
      */
     public Map<String, Map<String, String>> getDictionaryAttributesTaxonomy(XSSFWorkbook book) {
         Map<String, Map<String, String>> sheetsAttributesTaxonomy = new HashMap<String, Map<String, String>>();
-        List<String> continueSheetName = new ArrayList<String>(
-                Arrays.asList(
-                        new String[]{
-                                "Id-Sync-Table",
-                                "Attributes",
-                                "Notes",
-                                "Sheets",
-                                "types",
-                                "Groups",
-                                "D-System"
-                        }));
-
         DataFormatter formatter = new DataFormatter();
         Iterator<Sheet> si = book.sheetIterator();
         while (si.hasNext()) {
             XSSFSheet sheet = (XSSFSheet) si.next();
 
             String sheetName = sheet.getSheetName();
-            if (continueSheetName.contains(sheetName))
+            if (SERVICE_SHEET_NAMES.contains(sheetName))
                 continue;
 
             sheetsAttributesTaxonomy.put(sheetName, new HashMap<String, String>());
@@ -0,0 +1,163 @@
+package DMP_integration_with_CI360;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.util.SAXHelper;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Class for reading Excel file with taxonomy without loading the whole workbook into memory.
+ * The sheets are parsed with the POI event (SAX) model in one pass: only the rows of the current sheet
+ * pass through the parser, and the workbook is closed as soon as the taxonomy is built.
+ * The result is the same as the one of {@link CleverDataReader}.
+ */
+public class CleverDataStreamingReader implements ReaderInterface {
+    public AttributesTaxonomy attributesTaxonomy = new AttributesTaxonomy();
+    public Map<String, Map<String, String>> dictionaryAttributesTaxonomy = new HashMap<String, Map<String, String>>();
+
+    /**
+     * @param path This parameter is the path to the file with the taxonomy.
+     * @throws IllegalStateException if the file could not be read, e.g. it is missing, truncated or being written.
+     */
+    public CleverDataStreamingReader(String path) {
+        readBook(path);
+    }
+
+    public AttributesTaxonomy getAttributesTaxonomy() {
+        return attributesTaxonomy;
+    }
+
+    public Map<String, Map<String, String>> getDictionaryAttributesTaxonomy() {
+        return dictionaryAttributesTaxonomy;
+    }
+
+    /**
+     * This method opens the Excel file read-only and passes every sheet through the SAX parser.
+     * The "Attributes" sheet fills the taxonomy attributes, the other sheets (except the service ones)
+     * fill the hashmap involved in decrypting data.
+     *
+     * @param path This parameter is the path to the file with the taxonomy.
+     * @throws IllegalStateException if the file could not be read; a partly read taxonomy must not be used.
+     */
+    public void readBook(final String path) {
+        OPCPackage pkg = null;
+        try {
+            pkg = OPCPackage.open(path, PackageAccess.READ);
+            ReadOnlySharedStringsTable strings = new ReadOnlySharedStringsTable(pkg);
+            XSSFReader reader = new XSSFReader(pkg);
+            StylesTable styles = reader.getStylesTable();
+            DataFormatter formatter = new DataFormatter();
+
+            XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) reader.getSheetsData();
+            while (sheets.hasNext()) {
+                InputStream stream = sheets.next();
+                try {
+                    String sheetName = sheets.getSheetName();
+                    TaxonomySheetHandler handler;
+                    if (sheetName.equals("Attributes"))
+                        handler = new AttributesSheetHandler();
+                    else if (!CleverDataReader.SERVICE_SHEET_NAMES.contains(sheetName))
+                        handler = new DictionarySheetHandler(sheetName);
+                    else
+                        continue;
+
+                    XMLReader parser = SAXHelper.newXMLReader();
+                    parser.setContentHandler(new XSSFSheetXMLHandler(styles, strings, handler, formatter, false));
+                    parser.parse(new InputSource(stream));
+                } finally {
+                    stream.close();
+                }
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("Taxonomy file " + path + " could not be read: " + e.getMessage(), e);
+        } finally {
+            // The file was opened read-only, revert closes it without saving.
+            if (pkg != null)
+                pkg.revert();
+        }
+    }
+
+    /**
+     * Collects the formatted values of the columns 1..5 of the current row.
+     * Rows before the fourth one and rows with an empty id (column 1) are skipped, as in {@link CleverDataReader}.
+     */
+    private abstract static class TaxonomySheetHandler implements XSSFSheetXMLHandler.SheetContentsHandler {
+        protected final String[] values = new String[6];
+
+        public void startRow(int rowNum) {
+            for (int i = 0; i < values.length; i++)
+                values[i] = "";
+        }
+
+        public void endRow(int rowNum) {
+            if (rowNum < 3 || values[1].isEmpty())
+                return;
+
+            row();
+        }
+
+        public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+            int columnIndex = columnIndex(cellReference);
+            if (columnIndex >= 0 && columnIndex < values.length && formattedValue != null)
+                values[columnIndex] = formattedValue;
+        }
+
+        public void headerFooter(String text, boolean isHeader, String tagName) {
+        }
+
+        protected abstract void row();
+    }
+
+    private class AttributesSheetHandler extends TaxonomySheetHandler {
+        protected void row() {
+            attributesTaxonomy.ids.add(values[1]);
+            attributesTaxonomy.names.add(values[2]);
+            attributesTaxonomy.shortNames.add(values[3]);
+            attributesTaxonomy.types.add(values[4]);
+            attributesTaxonomy.descriptions.add(values[5]);
+        }
+    }
+
+    private class DictionarySheetHandler extends TaxonomySheetHandler {
+        private final Map<String, String> idDescription = new HashMap<String, String>();
+
+        DictionarySheetHandler(String sheetName) {
+            dictionaryAttributesTaxonomy.put(sheetName, idDescription);
+        }
+
+        protected void row() {
+            idDescription.put(values[1], values[3]);
+        }
+    }
+
+    /**
+     * This method converts the letters of a cell reference ("B12") to the zero-based column index.
+     *
+     * @return Returns the column index or -1 if the reference is missing.
+     */
+    static int columnIndex(String cellReference) {
+        if (cellReference == null)
+            return -1;
+
+        int column = 0;
+        for (int i = 0; i < cellReference.length(); i++) {
+            char c = cellReference.charAt(i);
+            if (c < 'A' || c > 'Z')
+                break;
+            column = column * 26 + (c - 'A' + 1);
+        }
+
+        return column - 1;
+    }
+}
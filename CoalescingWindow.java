@@ -0,0 +1,149 @@
+package DMP_integration_with_CI360;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Short window in which repeated triggers with the same key (user and intercepted event) are merged:
+ * the first trigger is handled at once, the following ones are dropped until the window of the first one ends.
+ * <br> <br>
+ * Keys are kept in a striped map, every stripe has its own lock and its own timer wheel: an array of slots,
+ * one per tick of the window, with the keys added during that tick. A background thread advances the wheel
+ * every tick and removes the keys of the slot that comes around again, so a key lives for the window
+ * (give or take one tick) and expiring costs nothing per event. The number of keys is bounded; when a stripe
+ * is full, new keys are handled without merging rather than evicting the others.
+ */
+public class CoalescingWindow {
+    private static final int STRIPES = 64;
+
+    private static final class Stripe {
+        final HashMap<String, Integer> keys = new HashMap<String, Integer>();
+        final List<String>[] slots;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Stripe(int wheelSize) {
+            slots = new List[wheelSize];
+            for (int i = 0; i < wheelSize; i++)
+                slots[i] = new ArrayList<String>();
+        }
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final int wheelSize;
+    private final int maxKeysPerStripe;
+    private final ScheduledExecutorService ticker;
+    private final LongAdder overflows = new LongAdder();
+
+    private volatile int currentSlot;
+
+    /**
+     * @param windowMillis This parameter is the length of the window.
+     * @param maxKeys      This parameter is the maximum number of keys kept, about 100 bytes each.
+     */
+    public CoalescingWindow(long windowMillis, int maxKeys) {
+        // A window is split into up to 16 ticks of at least 10 ms.
+        long tickMillis = Math.max(10, windowMillis / 16);
+        this.wheelSize = (int) ((windowMillis + tickMillis - 1) / tickMillis);
+        this.maxKeysPerStripe = Math.max(1, maxKeys / STRIPES);
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe(wheelSize);
+
+        this.ticker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "coalescing-window");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        ticker.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                advance();
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * This method opens the window of the key if there is none.
+     *
+     * @param key This parameter is the key of the trigger, e.g. the user id and the event name.
+     * @return Returns true if the trigger must be handled, false if it is merged into the trigger that opened the window.
+     */
+    public boolean tryAcquire(String key) {
+        Stripe stripe = stripeOf(key);
+        synchronized (stripe) {
+            if (stripe.keys.containsKey(key))
+                return false;
+            if (stripe.keys.size() >= maxKeysPerStripe) {
+                overflows.increment();
+                return true;
+            }
+
+            int slot = currentSlot;
+            stripe.keys.put(key, slot);
+            stripe.slots[slot].add(key);
+            return true;
+        }
+    }
+
+    /**
+     * This method closes the window of the key, e.g. when its trigger was not handled and will come again.
+     */
+    public void release(String key) {
+        Stripe stripe = stripeOf(key);
+        synchronized (stripe) {
+            Integer slot = stripe.keys.remove(key);
+            if (slot != null)
+                stripe.slots[slot].remove(key);
+        }
+    }
+
+    public void stop() {
+        ticker.shutdownNow();
+    }
+
+    /**
+     * @return Returns the number of triggers handled without a window because the stripe was full.
+     */
+    public long getOverflows() {
+        return overflows.sum();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.keys.size();
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * This method moves the wheel one tick: the keys added a whole window ago are removed,
+     * and their slot receives the keys of the new tick.
+     */
+    void advance() {
+        int nextSlot = currentSlot + 1 == wheelSize ? 0 : currentSlot + 1;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                List<String> expired = stripe.slots[nextSlot];
+                for (int i = 0; i < expired.size(); i++)
+                    stripe.keys.remove(expired.get(i));
+                expired.clear();
+            }
+        }
+        currentSlot = nextSlot;
+    }
+
+    private Stripe stripeOf(String key) {
+        int hash = key.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+}
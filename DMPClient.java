@@ -0,0 +1,191 @@
+package DMP_integration_with_CI360;
+
+import com.google.gson.stream.JsonReader;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client for requesting information about the user from the DMP.
+ * One Jetty {@link HttpClient} is shared by all workers: connections to the DMP are pooled and kept alive,
+ * so an event does not pay for a new TCP/TLS handshake. Requests are executed asynchronously and are bounded
+ * by the connect, read (idle) and total timeouts, so a hung DMP connection cannot block a worker forever.
+ * <br> <br>
+ * Requests may be guarded by an {@link AdaptiveLimiter} and a {@link CircuitBreaker}: when the DMP slows down
+ * or fails, requests over the limit or while the circuit is open fail at once with {@link DMPUnavailableException}
+ * instead of adding load to the DMP.
+ */
+public class DMPClient {
+    private static final int MAX_RESPONSE_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * Decodes the response of the DMP straight from the json stream.
+     */
+    public interface ResponseDecoder<T> {
+        T decode(JsonReader reader) throws IOException;
+    }
+
+    private final HttpClient httpClient;
+    private final String endpoint;
+    private final String authorizationToken;
+    private final long readTimeoutMillis;
+    private final long requestTimeoutMillis;
+    private final AdaptiveLimiter limiter;
+    private final CircuitBreaker circuitBreaker;
+
+    /**
+     * @param endpoint             This parameter is the url of the DMP endpoint, the user id is appended to it.
+     * @param authorizationToken   This parameter is an authorization token.
+     * @param maxConnections       This parameter is the size of the connection pool.
+     * @param connectTimeoutMillis This parameter is the timeout for establishing a connection.
+     * @param readTimeoutMillis    This parameter is the maximum time without data from the DMP.
+     * @param requestTimeoutMillis This parameter is the maximum time of the whole request.
+     */
+    public DMPClient(String endpoint, String authorizationToken, int maxConnections,
+                     long connectTimeoutMillis, long readTimeoutMillis, long requestTimeoutMillis) throws Exception {
+        this(endpoint, authorizationToken, maxConnections, connectTimeoutMillis, readTimeoutMillis, requestTimeoutMillis, null, null);
+    }
+
+    /**
+     * @param limiter        This parameter is the limit of concurrent requests, null for no limit besides the connection pool.
+     * @param circuitBreaker This parameter is the circuit breaker of the DMP, null disables it.
+     */
+    public DMPClient(String endpoint, String authorizationToken, int maxConnections,
+                     long connectTimeoutMillis, long readTimeoutMillis, long requestTimeoutMillis,
+                     AdaptiveLimiter limiter, CircuitBreaker circuitBreaker) throws Exception {
+        this.endpoint = endpoint;
+        this.authorizationToken = authorizationToken;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.requestTimeoutMillis = requestTimeoutMillis;
+        this.limiter = limiter;
+        this.circuitBreaker = circuitBreaker;
+
+        this.httpClient = new HttpClient(new SslContextFactory.Client());
+        httpClient.setMaxConnectionsPerDestination(maxConnections);
+        httpClient.setConnectTimeout(connectTimeoutMillis);
+        httpClient.setFollowRedirects(false);
+        httpClient.start();
+    }
+
+    /**
+     * This method sends the request to the DMP without blocking the calling thread
+     * and decodes the response while reading it.
+     *
+     * @param userId  This parameter is the user id for which you need to get information.
+     * @param decoder This parameter is the decoder of the response.
+     * @return Returns a future with the decoded response, or with null if the user is not found.
+     */
+    public <T> CompletableFuture<T> fetchAsync(String userId, final ResponseDecoder<T> decoder) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        if (limiter != null && !limiter.tryAcquire()) {
+            future.completeExceptionally(new DMPUnavailableException("DMP concurrency limit " + limiter.getLimit() + " reached", 0));
+            return future;
+        }
+        if (circuitBreaker != null && !circuitBreaker.tryAcquire()) {
+            if (limiter != null)
+                limiter.cancel();
+            future.completeExceptionally(new DMPUnavailableException("DMP circuit is open", circuitBreaker.getRemainingOpenMillis()));
+            return future;
+        }
+
+        final long start = System.nanoTime();
+        httpClient.newRequest(endpoint + userId)
+                .method("GET")
+                .header("Authorization", authorizationToken)
+                .idleTimeout(readTimeoutMillis, TimeUnit.MILLISECONDS)
+                .timeout(requestTimeoutMillis, TimeUnit.MILLISECONDS)
+                .send(new BufferingResponseListener(MAX_RESPONSE_BYTES) {
+                    public void onComplete(Result result) {
+                        int status = result.isFailed() ? 0 : result.getResponse().getStatus();
+                        // Only timeouts, connection errors, 5xx and 429 mean that the DMP is in trouble.
+                        release(status != 0 && status / 100 != 5 && status != 429, System.nanoTime() - start);
+                        if (result.isFailed()) {
+                            future.completeExceptionally(result.getFailure());
+                            return;
+                        }
+
+                        try {
+                            if (status == 404)
+                                future.complete(null);
+                            else if (status / 100 != 2)
+                                future.completeExceptionally(new IOException("DMP responded with status " + status));
+                            else
+                                future.complete(parse(getContent(), decoder));
+                        } catch (Exception e) {
+                            future.completeExceptionally(e);
+                        }
+                    }
+                });
+
+        return future;
+    }
+
+    /**
+     * This method sends the request to the DMP, waits for the response and decodes it.
+     *
+     * @param userId  This parameter is the user id for which you need to get information.
+     * @param decoder This parameter is the decoder of the response.
+     * @return Returns the decoded response or null if the user is not found.
+     */
+    public <T> T fetch(String userId, ResponseDecoder<T> decoder) throws Exception {
+        try {
+            return fetchAsync(userId, decoder).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    public AdaptiveLimiter getLimiter() {
+        return limiter;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public void stop() {
+        try {
+            httpClient.stop();
+        } catch (Exception e) {
+            AgentLog.error("DMP client did not stop: {}", e.getMessage(), e);
+        }
+    }
+
+    private void release(boolean success, long latencyNanos) {
+        if (limiter != null)
+            limiter.release(success, latencyNanos);
+        if (circuitBreaker != null) {
+            if (success)
+                circuitBreaker.onSuccess();
+            else
+                circuitBreaker.onFailure();
+        }
+    }
+
+    /**
+     * This method decodes the response straight from the received bytes.
+     *
+     * @return Returns the decoded response or null if the response is empty.
+     */
+    static <T> T parse(byte[] content, ResponseDecoder<T> decoder) throws IOException {
+        if (content == null || content.length == 0)
+            return null;
+
+        JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(content), StandardCharsets.UTF_8));
+        try {
+            return decoder.decode(reader);
+        } finally {
+            reader.close();
+        }
+    }
+}
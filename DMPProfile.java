@@ -0,0 +1,185 @@
+package DMP_integration_with_CI360;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Decrypted DMP profile: the user id and the attributes of the user as parallel arrays.
+ * <br> <br>
+ * The profiles are what the {@link DMPProfileCache} keeps, so they are stored compactly: the names are the strings
+ * of the {@link TaxonomyIndex} and the dictionary values are its canonical strings, both shared by all the profiles,
+ * and the values of the value-type attributes, which belong to the profile, are packed into one string
+ * with the end offset of every attribute. An attribute costs a few array slots instead of a map node,
+ * a json primitive and a string of its own. The json form ({"id": ..., "attrs": {attribute name: value}})
+ * is built only when it is needed, e.g. for the payload log ({@link #toString()}).
+ * <br> <br>
+ * Profiles are immutable; a repeated attribute keeps its last value, like in the json form.
+ */
+public final class DMPProfile {
+    private static final String[] NO_STRINGS = new String[0];
+
+    private final String id;
+    private final String[] names;
+    /**
+     * The shared values, null for the values packed into {@link #packedValues}.
+     */
+    private final String[] values;
+    /**
+     * The end of the packed value of every attribute, null if no value is packed.
+     */
+    private final int[] packedEnds;
+    private final String packedValues;
+
+    private DMPProfile(String id, String[] names, String[] values, int[] packedEnds, String packedValues) {
+        this.id = id;
+        this.names = names;
+        this.values = values;
+        this.packedEnds = packedEnds;
+        this.packedValues = packedValues;
+    }
+
+    /**
+     * Collects the attributes of a profile while the response of the DMP is decoded.
+     */
+    public static final class Builder {
+        private String[] names = new String[16];
+        private String[] values = new String[16];
+        private int[] packedEnds = new int[16];
+        private final StringBuilder packedValues = new StringBuilder();
+        private int size;
+        private boolean packed;
+
+        /**
+         * @param name   This parameter is the name of the attribute, preferably the string of the taxonomy.
+         * @param value  This parameter is the decoded value.
+         * @param shared This parameter is true if the value is a string of the taxonomy, false if it is read from the response.
+         */
+        public Builder add(String name, String value, boolean shared) {
+            if (size == names.length) {
+                names = Arrays.copyOf(names, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+                packedEnds = Arrays.copyOf(packedEnds, size * 2);
+            }
+            names[size] = name;
+            if (shared) {
+                values[size] = value;
+            } else {
+                packedValues.append(value);
+                packed = true;
+            }
+            packedEnds[size] = packedValues.length();
+            size++;
+
+            return this;
+        }
+
+        /**
+         * @param id This parameter is the user id of the profile.
+         * @return Returns the profile with arrays of the exact size.
+         */
+        public DMPProfile build(String id) {
+            if (size == 0)
+                return new DMPProfile(id, NO_STRINGS, NO_STRINGS, null, null);
+
+            return new DMPProfile(id, Arrays.copyOf(names, size), Arrays.copyOf(values, size),
+                    packed ? Arrays.copyOf(packedEnds, size) : null, packed ? packedValues.toString() : null);
+        }
+    }
+
+    /**
+     * This method converts the json form of a profile, for codecs that build it.
+     *
+     * @param profile This parameter is the json object {"id": ..., "attrs": {attribute name: value}}.
+     * @return Returns the profile, or null if the json object is null.
+     */
+    public static DMPProfile fromJson(JsonObject profile) {
+        if (profile == null)
+            return null;
+
+        Builder builder = new Builder();
+        JsonElement attrs = profile.get("attrs");
+        if (attrs != null && attrs.isJsonObject())
+            for (Map.Entry<String, JsonElement> attribute : attrs.getAsJsonObject().entrySet())
+                if (attribute.getValue().isJsonPrimitive())
+                    builder.add(attribute.getKey(), attribute.getValue().getAsString(), false);
+
+        JsonElement id = profile.get("id");
+        return builder.build(id == null || id.isJsonNull() ? null : id.getAsString());
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return Returns the number of attributes.
+     */
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(int index) {
+        return names[index];
+    }
+
+    /**
+     * @return Returns the value of the attribute; a packed value is copied out of the packed string.
+     */
+    public String getValue(int index) {
+        String value = values[index];
+        if (value != null)
+            return value;
+
+        return packedValues.substring(index > 0 ? packedEnds[index - 1] : 0, packedEnds[index]);
+    }
+
+    /**
+     * This method looks up an attribute. The profiles are decoded with the projection of the provider,
+     * so they are short and a scan is cheaper than a map.
+     *
+     * @param name This parameter is the name of the attribute.
+     * @return Returns the value of the attribute or null if the profile does not have it.
+     */
+    public String get(String name) {
+        for (int i = names.length - 1; i >= 0; i--)
+            if (names[i].equals(name))
+                return getValue(i);
+
+        return null;
+    }
+
+    /**
+     * This method estimates the heap taken by the profile: the object, the arrays, the id
+     * and the packed values; the strings shared with the taxonomy are not counted.
+     */
+    public long estimateBytes() {
+        long bytes = 32 + 2 * (16 + 4L * names.length) + (id != null ? 40 + 2L * id.length() : 0);
+        if (packedEnds != null)
+            bytes += 16 + 4L * packedEnds.length + 40 + 2L * packedValues.length();
+
+        return bytes;
+    }
+
+    /**
+     * @return Returns the json form of the profile, built on every call.
+     */
+    public JsonObject toJson() {
+        JsonObject attributes = new JsonObject();
+        for (int i = 0; i < names.length; i++)
+            attributes.addProperty(names[i], getValue(i));
+
+        JsonObject profile = new JsonObject();
+        profile.addProperty("id", id);
+        profile.add("attrs", attributes);
+
+        return profile;
+    }
+
+    @Override
+    public String toString() {
+        return toJson().toString();
+    }
+}
@@ -0,0 +1,268 @@
+package DMP_integration_with_CI360;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process cache of the decrypted DMP profiles keyed by user id.
+ * <br> <br>
+ * Entries expire after the TTL; "user not found" is cached too, with its own (usually shorter) TTL.
+ * The cache is bounded by the number of entries and by the estimated size of the profiles,
+ * the least recently used entries are evicted first. The users are spread over segments with a lock
+ * and a share of the limits each, so hits of different users do not wait for each other;
+ * the least recently used entry is evicted within its segment.
+ * Concurrent misses for the same user are collapsed into one DMP request (single-flight):
+ * the first thread loads the profile, the others wait for its result. Errors are not cached.
+ * Expired entries stay in the cache until they are replaced or evicted, so {@link #getStale(String)}
+ * can serve the last known profile when the DMP is unavailable.
+ */
+public class DMPProfileCache {
+
+    /**
+     * Loads the decrypted profile from the DMP.
+     */
+    public interface ProfileLoader {
+        /**
+         * @return Returns the decrypted profile or null if the user is not found.
+         */
+        DMPProfile load(String userId) throws Exception;
+    }
+
+    /**
+     * The segments are never smaller than this, so a small cache keeps an LRU order close to the global one.
+     */
+    private static final int MIN_SEGMENT_ENTRIES = 64;
+    private static final int MAX_SEGMENTS = 16;
+
+    private static final class Entry {
+        final DMPProfile profile;
+        final long expiresAt;
+        final long weight;
+
+        Entry(DMPProfile profile, long expiresAt, long weight) {
+            this.profile = profile;
+            this.expiresAt = expiresAt;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Users of one segment, in access order, guarded by the monitor of the segment.
+     */
+    private static final class Segment {
+        final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        long bytes;
+
+        void remove(String userId) {
+            Entry entry = entries.remove(userId);
+            if (entry != null)
+                bytes -= entry.weight;
+        }
+    }
+
+    private final long ttlMillis;
+    private final long negativeTtlMillis;
+    private final int maxSegmentEntries;
+    private final long maxSegmentBytes;
+
+    private final Segment[] segments;
+    private final ConcurrentHashMap<String, CompletableFuture<DMPProfile>> loading = new ConcurrentHashMap<String, CompletableFuture<DMPProfile>>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong collapsedLoads = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+
+    /**
+     * @param ttlMillis         This parameter is the lifetime of a found profile.
+     * @param negativeTtlMillis This parameter is the lifetime of "user not found", 0 disables negative caching.
+     * @param maxEntries        This parameter is the maximum number of cached users.
+     * @param maxBytes          This parameter is the maximum estimated size of the cached profiles, 0 means no limit.
+     */
+    public DMPProfileCache(long ttlMillis, long negativeTtlMillis, int maxEntries, long maxBytes) {
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+        int segmentCount = 1;
+        while (segmentCount < MAX_SEGMENTS && maxEntries / (segmentCount * 2) >= MIN_SEGMENT_ENTRIES)
+            segmentCount *= 2;
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++)
+            segments[i] = new Segment();
+        this.maxSegmentEntries = Math.max(1, (maxEntries + segmentCount - 1) / segmentCount);
+        this.maxSegmentBytes = (maxBytes + segmentCount - 1) / segmentCount;
+    }
+
+    /**
+     * This method returns the cached profile or loads it, making one DMP request for all concurrent callers.
+     *
+     * @param userId This parameter is the user id.
+     * @param loader This parameter is the loader called on a miss.
+     * @return Returns the decrypted profile or null if the user is not found.
+     */
+    public DMPProfile get(String userId, ProfileLoader loader) throws Exception {
+        Segment segment = segmentFor(userId);
+        Entry entry = getFresh(segment, userId);
+        if (entry != null) {
+            hits.incrementAndGet();
+            return entry.profile;
+        }
+
+        CompletableFuture<DMPProfile> future = new CompletableFuture<DMPProfile>();
+        CompletableFuture<DMPProfile> inFlight = loading.putIfAbsent(userId, future);
+        if (inFlight != null) {
+            misses.incrementAndGet();
+            collapsedLoads.incrementAndGet();
+            try {
+                return inFlight.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                // The interrupt belongs to the loading thread, for this one the load just failed.
+                if (cause instanceof InterruptedException)
+                    throw new IOException("Load of the profile of user " + userId + " was interrupted", cause);
+                throw cause instanceof Exception ? (Exception) cause : e;
+            }
+        }
+
+        // A load that finished between the lookup and putIfAbsent has already cached the profile.
+        entry = getFresh(segment, userId);
+        if (entry != null) {
+            loading.remove(userId, future);
+            future.complete(entry.profile);
+            hits.incrementAndGet();
+            return entry.profile;
+        }
+        misses.incrementAndGet();
+
+        try {
+            DMPProfile profile = loader.load(userId);
+            put(segment, userId, profile);
+            future.complete(profile);
+
+            return profile;
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(userId, future);
+        }
+    }
+
+    /**
+     * This method returns the cached profile even if it has expired, without loading it.
+     *
+     * @param userId This parameter is the user id.
+     * @return Returns the last known profile or null if the user is not cached or was not found in the DMP.
+     */
+    public DMPProfile getStale(String userId) {
+        Segment segment = segmentFor(userId);
+        Entry entry;
+        synchronized (segment) {
+            entry = segment.entries.get(userId);
+        }
+        if (entry == null || entry.profile == null)
+            return null;
+
+        staleHits.incrementAndGet();
+        return entry.profile;
+    }
+
+    public void invalidate(String userId) {
+        Segment segment = segmentFor(userId);
+        synchronized (segment) {
+            segment.remove(userId);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments)
+            synchronized (segment) {
+                size += segment.entries.size();
+            }
+
+        return size;
+    }
+
+    public long getEstimatedBytes() {
+        long bytes = 0;
+        for (Segment segment : segments)
+            synchronized (segment) {
+                bytes += segment.bytes;
+            }
+
+        return bytes;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getCollapsedLoads() {
+        return collapsedLoads.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getStaleHits() {
+        return staleHits.get();
+    }
+
+    private Segment segmentFor(String userId) {
+        int hash = userId.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (segments.length - 1)];
+    }
+
+    /**
+     * @return Returns the entry of the user if it has not expired, null otherwise.
+     */
+    private static Entry getFresh(Segment segment, String userId) {
+        long now = System.currentTimeMillis();
+        synchronized (segment) {
+            Entry entry = segment.entries.get(userId);
+            return entry != null && entry.expiresAt > now ? entry : null;
+        }
+    }
+
+    private void put(Segment segment, String userId, DMPProfile profile) {
+        long ttl = profile == null ? negativeTtlMillis : ttlMillis;
+        if (ttl <= 0)
+            return;
+
+        Entry entry = new Entry(profile, System.currentTimeMillis() + ttl, weigh(userId, profile));
+        synchronized (segment) {
+            segment.remove(userId);
+            segment.entries.put(userId, entry);
+            segment.bytes += entry.weight;
+
+            Iterator<Map.Entry<String, Entry>> eldest = segment.entries.entrySet().iterator();
+            while (eldest.hasNext() && (segment.entries.size() > maxSegmentEntries
+                    || (maxSegmentBytes > 0 && segment.bytes > maxSegmentBytes))) {
+                segment.bytes -= eldest.next().getValue().weight;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * This method estimates the heap taken by the entry: the key, the nodes and the profile.
+     */
+    private static long weigh(String userId, DMPProfile profile) {
+        long weight = 64 + 2L * userId.length();
+        // Attribute names and dictionary values are shared with the taxonomy, the profile does not count them.
+        return profile != null ? weight + profile.estimateBytes() : weight;
+    }
+}
@@ -0,0 +1,55 @@
+package DMP_integration_with_CI360;
+
+import com.google.gson.JsonObject;
+
+import java.util.Set;
+
+/**
+ * Codec of a DMP provider: loads the taxonomy of the provider and decodes its responses.
+ * <br> <br>
+ * Codecs are found with {@link java.util.ServiceLoader} (see {@link DMPProviders}), so the decoder of another DMP
+ * is added by putting a jar with the implementation and its
+ * "META-INF/services/DMP_integration_with_CI360.DMPProviderCodec" file on the classpath.
+ * An implementation must have a public constructor without parameters; a new instance is created for every
+ * provider of the configuration file.
+ * <br> <br>
+ * At startup the codec loads the taxonomy ({@link #configure(JsonObject)}) and compiles it into the decoder of the
+ * responses ({@link #compile(Set)}). The decoder is bound to the routes of the provider, so the workers call it directly,
+ * without looking up or branching on the provider of the event.
+ */
+public interface DMPProviderCodec extends ReaderInterface {
+
+    /**
+     * @return Returns the name of the provider used in the "provider" field of "dmp_providers", e.g. "cleverdata".
+     */
+    String getProviderName();
+
+    /**
+     * This method loads the taxonomy of the provider.
+     *
+     * @param settings This parameter is the configuration file with the fields of the provider entry on top of it.
+     */
+    void configure(JsonObject settings) throws Exception;
+
+    /**
+     * This method compiles the loaded taxonomy into the decoder of the DMP responses. It is called once at startup;
+     * if the codec reloads the taxonomy, the returned decoder must pick up the new one.
+     * The decoder should skip the attributes that are not projected, they are never sent to ci360.
+     *
+     * @param projectedAttributes This parameter is the names of the attributes used by the streams of the provider
+     *                            (see {@link AttributeProjection}), null to decode all the attributes.
+     * @return Returns the decoder that reads the response of the DMP and returns the decrypted profile
+     * (a codec building the json form {"id": ..., "attrs": {attribute name: value}} can return {@link DMPProfile#fromJson(JsonObject)}).
+     */
+    DMPClient.ResponseDecoder<DMPProfile> compile(Set<String> projectedAttributes);
+
+    /**
+     * @return Returns the state of the taxonomy for the console, e.g. its version.
+     */
+    String describe();
+
+    /**
+     * This method stops the background work of the codec, e.g. the reloading of the taxonomy.
+     */
+    void close();
+}
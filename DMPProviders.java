@@ -0,0 +1,39 @@
+package DMP_integration_with_CI360;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+
+/**
+ * Finds the {@link DMPProviderCodec} implementations on the classpath with {@link ServiceLoader}.
+ * The lookup is done only at startup, while the DMP providers of the configuration file are created.
+ */
+public final class DMPProviders {
+
+    private DMPProviders() {
+    }
+
+    /**
+     * @param providerName This parameter is the name of the provider, e.g. "cleverdata".
+     * @return Returns a new instance of the codec of the provider.
+     * @throws IllegalArgumentException if there is no codec of the provider on the classpath.
+     */
+    public static DMPProviderCodec create(String providerName) {
+        for (DMPProviderCodec codec : ServiceLoader.load(DMPProviderCodec.class))
+            if (codec.getProviderName().equalsIgnoreCase(providerName))
+                return codec;
+
+        throw new IllegalArgumentException("Unknown DMP provider \"" + providerName + "\", available: " + getProviderNames());
+    }
+
+    /**
+     * @return Returns the names of the providers whose codecs are on the classpath.
+     */
+    public static List<String> getProviderNames() {
+        List<String> names = new ArrayList<String>();
+        for (DMPProviderCodec codec : ServiceLoader.load(DMPProviderCodec.class))
+            names.add(codec.getProviderName());
+
+        return names;
+    }
+}
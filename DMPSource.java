@@ -0,0 +1,44 @@
+package DMP_integration_with_CI360;
+
+/**
+ * One DMP provider of the agent: its codec, the client of its endpoint and the cache of its profiles.
+ * Every provider has its own connection pool, concurrency limit, circuit breaker and cache,
+ * so a slow or failed DMP does not affect the routes of the others.
+ */
+public final class DMPSource {
+    public final String name;
+    public final DMPProviderCodec codec;
+    public final DMPClient dmpClient;
+    /**
+     * The cache of the decrypted profiles of this provider, null if caching is disabled.
+     */
+    public final DMPProfileCache profileCache;
+    /**
+     * The decoder compiled by the codec from the taxonomy of the provider.
+     */
+    public final DMPClient.ResponseDecoder<DMPProfile> decoder;
+
+    /**
+     * @param name         This parameter is the name of the provider entry, referenced by "dmp_provider" of "dmp_streams".
+     * @param codec        This parameter is the codec of the provider, null if the decoder was compiled elsewhere.
+     * @param profileCache This parameter is the cache of the decrypted profiles, null disables caching.
+     * @param decoder      This parameter is the decoder of the DMP responses.
+     */
+    public DMPSource(String name, DMPProviderCodec codec, DMPClient dmpClient, DMPProfileCache profileCache,
+                     DMPClient.ResponseDecoder<DMPProfile> decoder) {
+        this.name = name;
+        this.codec = codec;
+        this.dmpClient = dmpClient;
+        this.profileCache = profileCache;
+        this.decoder = decoder;
+    }
+
+    /**
+     * This method stops the codec and the client of the provider.
+     */
+    public void stop() {
+        if (codec != null)
+            codec.close();
+        dmpClient.stop();
+    }
+}
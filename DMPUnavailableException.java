@@ -0,0 +1,24 @@
+package DMP_integration_with_CI360;
+
+import java.io.IOException;
+
+/**
+ * The request was not sent to the DMP because its circuit is open or the concurrency limit is reached.
+ */
+public class DMPUnavailableException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfterMillis;
+
+    /**
+     * @param retryAfterMillis This parameter is the time after which the DMP may accept requests again.
+     */
+    public DMPUnavailableException(String message, long retryAfterMillis) {
+        super(message);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
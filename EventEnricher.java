@@ -0,0 +1,302 @@
+package DMP_integration_with_CI360;
+
+import com.google.gson.*;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * This class handles the intercepted ci360 event: requests information about the user from the DMP,
+ * decrypts it and sends an external event with the user attributes to ci360.
+ * It is called by the workers of {@link EventPipeline}, so it must not keep per-event state in fields.
+ */
+public class EventEnricher implements EventPipeline.EventHandler {
+
+    /**
+     * What to do with an event when the DMP is unavailable (its circuit is open or the concurrency limit is reached)
+     * or the request fails:
+     * SKIP - do not send the external event,
+     * CACHED - send the last known profile from {@link DMPProfileCache} even if it has expired, skip if there is none,
+     * DEFER - handle the event again later (see {@link EventPipeline.DeferEventException}),
+     * SPOOL - write the event to the {@link EventSpool} and replay it when the DMP recovers.
+     */
+    public enum DMPFallback {
+        SKIP, CACHED, DEFER, SPOOL
+    }
+
+    private final CI360EventSink ci360Sink;
+    private final StreamRoutes streamRoutes;
+    private final AgentMetrics metrics;
+    private final DMPFallback dmpFallback;
+    private final long deferDelayMillis;
+    private final CoalescingWindow coalescingWindow;
+
+    /**
+     * @param streamRoutes This parameter is the compiled routes, every route refers to its DMP provider.
+     * @param metrics      This parameter is the metrics of the agent, the latency of every stage is recorded there.
+     */
+    public EventEnricher(CI360EventSink ci360Sink, StreamRoutes streamRoutes, AgentMetrics metrics) {
+        this(ci360Sink, streamRoutes, metrics, DMPFallback.SKIP, 0);
+    }
+
+    /**
+     * @param dmpFallback      This parameter is what to do with the event when the DMP is unavailable.
+     * @param deferDelayMillis This parameter is the minimum delay of a deferred event.
+     */
+    public EventEnricher(CI360EventSink ci360Sink, StreamRoutes streamRoutes, AgentMetrics metrics,
+                         DMPFallback dmpFallback, long deferDelayMillis) {
+        this(ci360Sink, streamRoutes, metrics, dmpFallback, deferDelayMillis, null);
+    }
+
+    /**
+     * @param coalescingWindow This parameter is the window in which repeated events of a user are merged, null disables it.
+     */
+    public EventEnricher(CI360EventSink ci360Sink, StreamRoutes streamRoutes, AgentMetrics metrics,
+                         DMPFallback dmpFallback, long deferDelayMillis, CoalescingWindow coalescingWindow) {
+        this.ci360Sink = ci360Sink;
+        this.streamRoutes = streamRoutes;
+        this.metrics = metrics;
+        this.dmpFallback = dmpFallback;
+        this.deferDelayMillis = deferDelayMillis;
+        this.coalescingWindow = coalescingWindow;
+    }
+
+    /**
+     * This method analyzes the intercepted event and sends requests to DMP and ci360.
+     *
+     * @param event This parameter is a json string that contains the event fields
+     */
+    public void handleEvent(String event) throws Exception {
+        //  Parse event
+        EventParser.ParsedEvent parsedEvent = parseEvent(event);
+        if (parsedEvent == null)
+            return;
+
+        //  Get user ID
+        String userId = parsedEvent.userId;
+
+        List<StreamRoutes.Route> routes = streamRoutes.get(parsedEvent.eventName);
+        if (routes.isEmpty()) {
+            metrics.increment(AgentMetrics.Counter.UNROUTED);
+            return;
+        }
+
+        // Repeated events of the user within the window are merged into the first one, which is enriched and sent.
+        String coalescingKey = null;
+        if (coalescingWindow != null) {
+            coalescingKey = userId + '\u0000' + parsedEvent.eventName;
+            if (!coalescingWindow.tryAcquire(coalescingKey)) {
+                metrics.increment(AgentMetrics.Counter.COALESCED);
+                AgentLog.debug("Event \"{}\" of user {} merged into the previous one", parsedEvent.eventDisplayName, userId);
+                return;
+            }
+        }
+
+        // Send to every dmp once for all the external events of the intercepted event.
+        // The routes are ordered by provider, and all the profiles are received before anything is sent to ci360,
+        // so a deferred or spooled event is not sent twice.
+        DMPProfile[] responsesDMP = new DMPProfile[routes.size()];
+        try {
+            for (int i = 0; i < routes.size(); i++) {
+                DMPSource dmpSource = routes.get(i).dmpSource;
+                responsesDMP[i] = i > 0 && routes.get(i - 1).dmpSource == dmpSource ? responsesDMP[i - 1] : sendDMP(dmpSource, userId);
+            }
+        } catch (EventPipeline.DeferEventException | EventPipeline.SpoolEventException e) {
+            // The event comes back later, it must not be merged into itself.
+            if (coalescingKey != null)
+                coalescingWindow.release(coalescingKey);
+            throw e;
+        }
+
+        // Send to ci360
+        for (int i = 0; i < routes.size(); i++)
+            if (responsesDMP[i] != null)
+                sendCI360(routes.get(i).ci360ExternalEvent, routes.get(i).projection, userId, responsesDMP[i]);
+    }
+
+    /**
+     * This method parses the information about the intercepted event.
+     * If the information does not contain identification attributes,
+     * then null is returned, which leads to the completion of event handling.
+     * Only the identification attribute and the event names are read, the rest of the event is skipped.
+     *
+     * @param event This parameter is a json string that contains the event fields
+     * @return Returns the fields of the intercepted event used by the agent
+     */
+    public EventParser.ParsedEvent parseEvent(String event) throws IOException {
+        long start = System.nanoTime();
+        EventParser.ParsedEvent parsedEvent = EventParser.parse(event);
+        metrics.recordSince(AgentMetrics.Stage.PARSE, start);
+
+        // In the demo case the identity is datahub_id (subject_id and email_id are not used).
+        if (parsedEvent.userId == null) {
+            metrics.increment(AgentMetrics.Counter.REJECTED);
+            AgentLog.info("Event \"{}\" has no identity and rejected", parsedEvent.eventDisplayName);
+
+            return null;
+        } else
+            AgentLog.info("Event \"{}\" received", parsedEvent.eventDisplayName);
+
+        return parsedEvent;
+    }
+
+    /**
+     * This method sends a request to the DMP to get information about the user.
+     * Data from DMP comes in encrypted form, so decryption occurs in the same method.
+     * Decrypted profiles are kept in {@link DMPProfileCache}, so repeated events of the same user
+     * do not request the DMP again until the profile expires.
+     * Data decryption is carried out by the decoder compiled by the {@link DMPProviderCodec} of the provider.
+     * Depending on the DMP and the data provider, you will need to write your own codec.
+     * The code inside was written based on the demo case.
+     * You can define your own rules for sending and processing a request.
+     * When the DMP is unavailable, the {@link DMPFallback} is applied.
+     *
+     * @param dmpSource This parameter is the DMP provider to request.
+     * @param userId    This parameter in the demo case is the user id for which you need to get information.
+     * @return Returns the decrypted profile received from the DMP, or null if there is nothing to send
+     * @throws EventPipeline.DeferEventException if the DMP is unavailable and the event must be handled later.
+     * @throws EventPipeline.SpoolEventException if the DMP is unavailable and the event must be spooled.
+     */
+    public DMPProfile sendDMP(final DMPSource dmpSource, String userId)
+            throws EventPipeline.DeferEventException, EventPipeline.SpoolEventException {
+        try {
+            DMPProfile convertedData = dmpSource.profileCache != null
+                    ? dmpSource.profileCache.get(userId, id -> loadProfile(dmpSource, id))
+                    : loadProfile(dmpSource, userId);
+            if (convertedData == null) {
+                metrics.increment(AgentMetrics.Counter.DMP_NOT_FOUND);
+                AgentLog.info("User {} not found in DMP {}", userId, dmpSource.name);
+            }
+
+            return convertedData;
+        } catch (DMPUnavailableException e) {
+            metrics.increment(AgentMetrics.Counter.DMP_SHED);
+            return fallback(dmpSource, userId, e.getMessage(), e.getRetryAfterMillis());
+        } catch (InterruptedException e) {
+            // The worker is interrupted by the shutdown, the event is spooled and handled again after the restart.
+            Thread.currentThread().interrupt();
+            throw new EventPipeline.SpoolEventException("DMP request for user " + userId + " was interrupted");
+        } catch (Exception e) {
+            metrics.increment(AgentMetrics.Counter.DMP_ERRORS);
+            AgentLog.error("DMP request for user {} failed", userId, e);
+
+            // Connection errors, timeouts and error statuses are outages, other errors would fail again on retry.
+            return e instanceof IOException || e instanceof TimeoutException ? fallback(dmpSource, userId, e.getMessage(), 0) : null;
+        }
+    }
+
+    private DMPProfile fallback(DMPSource dmpSource, String userId, String reason, long retryAfterMillis)
+            throws EventPipeline.DeferEventException, EventPipeline.SpoolEventException {
+        switch (dmpFallback) {
+            case CACHED:
+                DMPProfile staleProfile = dmpSource.profileCache != null ? dmpSource.profileCache.getStale(userId) : null;
+                if (staleProfile != null) {
+                    metrics.increment(AgentMetrics.Counter.DMP_FALLBACK_CACHED);
+                    return staleProfile;
+                }
+                break;
+            case DEFER:
+                throw new EventPipeline.DeferEventException(reason, Math.max(deferDelayMillis, retryAfterMillis));
+            case SPOOL:
+                throw new EventPipeline.SpoolEventException(reason);
+            case SKIP:
+            default:
+                break;
+        }
+
+        AgentLog.debug("Event of user {} skipped: {}", userId, reason);
+        return null;
+    }
+
+    /**
+     * This method requests the encrypted profile from the DMP and decrypts it.
+     *
+     * @param dmpSource This parameter is the DMP provider to request.
+     * @param userId    This parameter is the user id for which you need to get information.
+     * @return Returns the decrypted profile or null if the user is not found.
+     */
+    private DMPProfile loadProfile(final DMPSource dmpSource, String userId) throws Exception {
+        // This is where the data is decrypted, while the response is read.
+        long start = System.nanoTime();
+        DMPProfile convertedData = dmpSource.dmpClient.fetch(userId, reader -> decodeProfile(dmpSource, reader));
+        metrics.recordSince(AgentMetrics.Stage.DMP_FETCH, start);
+        if (convertedData == null)
+            return null;
+
+        // The json form of the profile is built only if the payload is logged.
+        AgentLog.payload("Response from DMP", convertedData);
+
+        return convertedData;
+    }
+
+    private DMPProfile decodeProfile(DMPSource dmpSource, JsonReader reader) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return dmpSource.decoder.decode(reader);
+        } finally {
+            metrics.recordSince(AgentMetrics.Stage.DECODE, start);
+        }
+    }
+
+    /**
+     * This method sends a request to ci360, which triggers an external event defined in ci360.
+     * To initiate an external event,
+     * it is imperative that you specify the user identification attribute and the name of the external event.
+     *
+     * @param externalEvent This parameter is the name of the external event.
+     * @param projection    This parameter is the mapping of the DMP attributes to the attributes of the external event.
+     * @param userId        This parameter is an identification attribute that can be datahub_id.
+     * @param userData      This parameter is the profile of the user received from DMP.
+     */
+    public void sendCI360(String externalEvent, AttributeProjection projection, String userId, DMPProfile userData) throws IOException {
+        String event = buildExternalEvent(externalEvent, projection, userId, userData);
+        AgentLog.payload("The following event will be send to CI360", event);
+
+        // The event is delivered by the sink in a batch, the response is logged when it arrives.
+        long start = System.nanoTime();
+        ci360Sink.send(event).whenComplete((response, error) -> {
+            metrics.recordSince(AgentMetrics.Stage.CI360_SEND, start);
+            metrics.increment(error != null ? AgentMetrics.Counter.CI360_ERRORS : AgentMetrics.Counter.CI360_SENT);
+            if (error != null) {
+                AgentLog.warn("Event \"{}\" was not delivered to CI360: {}", externalEvent, error.getMessage());
+            } else {
+                AgentLog.debug("Response from CI360: {}", response);
+            }
+        });
+    }
+
+    /**
+     * This method writes the payload of the external event: the name of the event, the identification attribute
+     * and the attributes of the user mapped by the projection.
+     *
+     * @param externalEvent This parameter is the name of the external event.
+     * @param projection    This parameter is the mapping of the DMP attributes to the attributes of the external event.
+     * @param userId        This parameter is an identification attribute that can be datahub_id.
+     * @param userData      This parameter is the profile of the user received from DMP.
+     * @return Returns the json string of the external event.
+     */
+    public static String buildExternalEvent(String externalEvent, AttributeProjection projection, String userId,
+                                            DMPProfile userData) throws IOException {
+        // The payload is written straight to the string, without building a json tree.
+        StringWriter payload = new StringWriter(256);
+        JsonWriter toCI360 = new JsonWriter(payload);
+        toCI360.beginObject();
+        toCI360.name("eventname").value(externalEvent);
+        toCI360.name("datahub_id").value(userId);
+
+//        if (EmailValidator.getInstance().isValid(userId))
+//            toCI360.name("email_id").value(userId);
+//        else
+//            toCI360.name("datahub_id").value(userId);
+
+        projection.write(toCI360, userData);
+        toCI360.endObject();
+        toCI360.close();
+
+        return payload.toString();
+    }
+}
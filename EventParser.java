@@ -0,0 +1,96 @@
+package DMP_integration_with_CI360;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+/**
+ * Streaming parser of the intercepted ci360 events.
+ * Only the fields needed for the enrichment are read from "attributes"; everything else is skipped
+ * without building a json tree.
+ */
+public final class EventParser {
+
+    /**
+     * Fields of the intercepted event used by the agent.
+     */
+    public static final class ParsedEvent {
+        /**
+         * Identification attribute (datahub_id), null if the event has no identity.
+         */
+        public final String userId;
+        /**
+         * Name of the event used for routing (eventName).
+         */
+        public final String eventName;
+        /**
+         * Name of the event for logging (eventname).
+         */
+        public final String eventDisplayName;
+
+        ParsedEvent(String userId, String eventName, String eventDisplayName) {
+            this.userId = userId;
+            this.eventName = eventName;
+            this.eventDisplayName = eventDisplayName;
+        }
+    }
+
+    private EventParser() {
+    }
+
+    /**
+     * @param event This parameter is a json string that contains the event fields.
+     * @return Returns the fields of the event.
+     */
+    public static ParsedEvent parse(String event) throws IOException {
+        String userId = null, eventName = null, eventDisplayName = null;
+
+        JsonReader reader = new JsonReader(new StringReader(event));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!reader.nextName().equals("attributes") || reader.peek() != JsonToken.BEGIN_OBJECT) {
+                    reader.skipValue();
+                    continue;
+                }
+
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (name.equals("datahub_id"))
+                        userId = readString(reader);
+                    else if (name.equals("eventName"))
+                        eventName = readString(reader);
+                    else if (name.equals("eventname"))
+                        eventDisplayName = readString(reader);
+                    else
+                        reader.skipValue();
+                }
+                reader.endObject();
+            }
+            reader.endObject();
+        } finally {
+            reader.close();
+        }
+
+        return new ParsedEvent(userId, eventName, eventDisplayName);
+    }
+
+    /**
+     * This method reads a string or a number as a string.
+     *
+     * @return Returns the value or null for null, objects and arrays.
+     */
+    static String readString(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER)
+            return reader.nextString();
+        if (token == JsonToken.BOOLEAN)
+            return String.valueOf(reader.nextBoolean());
+
+        reader.skipValue();
+        return null;
+    }
+}
@@ -0,0 +1,412 @@
+package DMP_integration_with_CI360;
+
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue of intercepted CI360 events with a fixed pool of worker threads.
+ * The stream thread only puts events into the queue, the enrichment (DMP request, decryption,
+ * sending to ci360) is carried out by the workers.
+ * When the queue is full, the behavior is determined by the {@link OverflowPolicy}.
+ * A handler may postpone an event by throwing {@link DeferEventException}: the event is put into the queue again
+ * after the delay, up to the configured number of attempts and of events waiting at the same time.
+ * With an {@link EventSpool}, events the handler asks to spool ({@link SpoolEventException})
+ * and deferred events that cannot wait any longer are written to the spool instead of being dropped.
+ * On the way down the pipeline is drained ({@link #drain(long)}) and what is left is spooled by {@link #shutdown()}.
+ * <br> <br>
+ * When the agent hosts several tenants, every tenant has its own pipeline (queue, overflow policy, deferred events)
+ * and the workers are those of a {@link FairSharePool} shared by the pipelines.
+ */
+public class EventPipeline {
+
+    /**
+     * What to do with an event when the queue is full:
+     * BLOCK - wait for free space (backpressure on the stream thread),
+     * DROP_NEWEST - reject the incoming event,
+     * DROP_OLDEST - remove the oldest queued event and put the incoming one,
+     * CALLER_RUNS - handle the event on the stream thread.
+     */
+    public enum OverflowPolicy {
+        BLOCK, DROP_NEWEST, DROP_OLDEST, CALLER_RUNS
+    }
+
+    /**
+     * Handler that is called by the workers for each event.
+     */
+    public interface EventHandler {
+        void handleEvent(String event) throws Exception;
+    }
+
+    /**
+     * Thrown by the handler to handle the event again later, e.g. while the DMP is unavailable.
+     */
+    public static class DeferEventException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final long delayMillis;
+
+        public DeferEventException(String message, long delayMillis) {
+            super(message);
+            this.delayMillis = delayMillis;
+        }
+
+        public long getDelayMillis() {
+            return delayMillis;
+        }
+    }
+
+    /**
+     * Thrown by the handler to write the event to the spool and replay it when the dependency recovers.
+     */
+    public static class SpoolEventException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public SpoolEventException(String message) {
+            super(message);
+        }
+    }
+
+    private static final class QueuedEvent {
+        final String event;
+        final long submittedAt;
+        final int attempt;
+
+        QueuedEvent(String event, long submittedAt, int attempt) {
+            this.event = event;
+            this.submittedAt = submittedAt;
+            this.attempt = attempt;
+        }
+    }
+
+    private final BlockingQueue<QueuedEvent> queue;
+    private final EventHandler handler;
+    private final AgentMetrics metrics;
+    private final OverflowPolicy overflowPolicy;
+    private final Thread[] workers;
+    private final AtomicLong submittedEvents = new AtomicLong();
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private final int maxDeferAttempts;
+    private final int maxDeferredEvents;
+    private final ScheduledExecutorService deferrer;
+    private final AtomicInteger deferredEvents = new AtomicInteger();
+    private final AtomicInteger handlingEvents = new AtomicInteger();
+    private final Set<QueuedEvent> deferredQueue = ConcurrentHashMap.newKeySet();
+    private final EventSpool spool;
+    private final FairSharePool pool;
+    private volatile boolean running = true;
+
+    /**
+     * @param workerThreads  This parameter is the number of worker threads.
+     * @param queueCapacity  This parameter is the maximum number of events waiting for the workers.
+     * @param overflowPolicy This parameter is the policy applied when the queue is full.
+     * @param handler        This parameter is the handler that enriches the event.
+     * @param metrics        This parameter is the metrics of the agent (received and failed events, time in the queue).
+     */
+    public EventPipeline(int workerThreads, int queueCapacity, OverflowPolicy overflowPolicy, EventHandler handler,
+                         AgentMetrics metrics) {
+        this(workerThreads, queueCapacity, overflowPolicy, handler, metrics, 0, 0, null);
+    }
+
+    /**
+     * @param maxDeferAttempts  This parameter is the number of times an event may be deferred, 0 drops deferred events.
+     * @param maxDeferredEvents This parameter is the maximum number of deferred events waiting at the same time.
+     * @param spool             This parameter is the spool of the events that could not be handled, null drops them.
+     */
+    public EventPipeline(int workerThreads, int queueCapacity, OverflowPolicy overflowPolicy, EventHandler handler,
+                         AgentMetrics metrics, int maxDeferAttempts, int maxDeferredEvents, EventSpool spool) {
+        this(workerThreads, null, queueCapacity, overflowPolicy, handler, metrics, maxDeferAttempts, maxDeferredEvents, spool);
+    }
+
+    /**
+     * @param pool This parameter is the pool whose workers handle the events; the pipeline must be registered
+     *             in it ({@link FairSharePool#register(String, EventPipeline, int, int, double)}).
+     */
+    public EventPipeline(FairSharePool pool, int queueCapacity, OverflowPolicy overflowPolicy, EventHandler handler,
+                         AgentMetrics metrics, int maxDeferAttempts, int maxDeferredEvents, EventSpool spool) {
+        this(0, pool, queueCapacity, overflowPolicy, handler, metrics, maxDeferAttempts, maxDeferredEvents, spool);
+    }
+
+    private EventPipeline(int workerThreads, FairSharePool pool, int queueCapacity, OverflowPolicy overflowPolicy, EventHandler handler,
+                          AgentMetrics metrics, int maxDeferAttempts, int maxDeferredEvents, EventSpool spool) {
+        if (pool == null && workerThreads < 1)
+            throw new IllegalArgumentException("workerThreads must be positive: " + workerThreads);
+        if (queueCapacity < 1)
+            throw new IllegalArgumentException("queueCapacity must be positive: " + queueCapacity);
+
+        this.queue = new ArrayBlockingQueue<QueuedEvent>(queueCapacity);
+        this.handler = handler;
+        this.metrics = metrics;
+        this.overflowPolicy = overflowPolicy;
+        this.maxDeferAttempts = maxDeferAttempts;
+        this.maxDeferredEvents = maxDeferredEvents;
+        this.spool = spool;
+        this.pool = pool;
+        this.deferrer = maxDeferAttempts > 0 ? Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "dmp-deferrer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }) : null;
+        this.workers = new Thread[pool == null ? workerThreads : 0];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, "dmp-worker-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * This method puts the event into the queue and returns immediately,
+     * unless the queue is full and the policy is BLOCK or CALLER_RUNS.
+     *
+     * @param event This parameter is a json string that contains the event fields.
+     * @return Returns false if the event was dropped.
+     */
+    public boolean submit(String event) {
+        metrics.increment(AgentMetrics.Counter.RECEIVED);
+        if (!running) {
+            droppedEvents.incrementAndGet();
+            return false;
+        }
+
+        submittedEvents.incrementAndGet();
+        QueuedEvent queuedEvent = new QueuedEvent(event, System.nanoTime(), 0);
+        if (queue.offer(queuedEvent)) {
+            queued();
+            return true;
+        }
+
+        switch (overflowPolicy) {
+            case BLOCK:
+                try {
+                    queue.put(queuedEvent);
+                    queued();
+                    return true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    droppedEvents.incrementAndGet();
+                    return false;
+                }
+            case DROP_OLDEST:
+                while (!queue.offer(queuedEvent)) {
+                    if (queue.poll() != null)
+                        droppedEvents.incrementAndGet();
+                }
+                queued();
+                return true;
+            case CALLER_RUNS:
+                handle(queuedEvent);
+                return true;
+            case DROP_NEWEST:
+            default:
+                droppedEvents.incrementAndGet();
+                return false;
+        }
+    }
+
+    /**
+     * This method puts the event into the queue only if there is room, regardless of the overflow policy.
+     * It is used to replay the spooled events without pushing out the live ones.
+     *
+     * @return Returns false if the queue is full or the pipeline is stopped.
+     */
+    public boolean offer(String event) {
+        if (!running || !queue.offer(new QueuedEvent(event, System.nanoTime(), 0)))
+            return false;
+
+        queued();
+        return true;
+    }
+
+    /**
+     * This method waits until the queued, deferred and in-flight events are handled, e.g. before the agent stops.
+     * The pipeline keeps accepting events, the caller is expected to stop the stream first.
+     *
+     * @param timeoutMillis This parameter is the maximum time to wait.
+     * @return Returns true if the pipeline is idle, false if the timeout elapsed first.
+     */
+    public boolean drain(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        // Idle is checked twice: a worker that has just taken the last event is not counted as handling it yet.
+        boolean idle = false;
+        while (true) {
+            if (isIdle()) {
+                if (idle)
+                    return true;
+                idle = true;
+            } else {
+                idle = false;
+            }
+            if (System.currentTimeMillis() >= deadline)
+                return false;
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * This method stops accepting events and interrupts the workers.
+     * Events still waiting in the queue or deferred are written to the spool, if there is one.
+     */
+    public void shutdown() {
+        running = false;
+        if (deferrer != null) {
+            deferrer.shutdownNow();
+            try {
+                deferrer.awaitTermination(1000, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (QueuedEvent deferred : deferredQueue)
+                spool(deferred, "the pipeline is stopped");
+            deferredQueue.clear();
+        }
+        for (Thread worker : workers)
+            worker.interrupt();
+        for (Thread worker : workers) {
+            try {
+                worker.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        QueuedEvent queuedEvent;
+        while ((queuedEvent = queue.poll()) != null)
+            spool(queuedEvent, "the pipeline is stopped");
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getSubmittedEvents() {
+        return submittedEvents.get();
+    }
+
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    public int getDeferredEvents() {
+        return deferredEvents.get();
+    }
+
+    /**
+     * @return Returns the number of events being handled by the workers.
+     */
+    public int getHandlingEvents() {
+        return handlingEvents.get();
+    }
+
+    /**
+     * This method handles the next queued event on the calling worker of the {@link FairSharePool}.
+     *
+     * @return Returns false if the queue was empty or the pipeline is stopped.
+     */
+    boolean runNext() {
+        QueuedEvent queuedEvent = running ? queue.poll() : null;
+        if (queuedEvent == null)
+            return false;
+
+        handle(queuedEvent);
+        return true;
+    }
+
+    private void queued() {
+        if (pool != null)
+            pool.signal();
+    }
+
+    private boolean isIdle() {
+        return queue.isEmpty() && handlingEvents.get() == 0 && deferredEvents.get() == 0;
+    }
+
+    private void work() {
+        while (running) {
+            QueuedEvent queuedEvent;
+            try {
+                queuedEvent = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            handle(queuedEvent);
+        }
+    }
+
+    private void handle(QueuedEvent queuedEvent) {
+        metrics.recordSince(AgentMetrics.Stage.RECEIVE, queuedEvent.submittedAt);
+        handlingEvents.incrementAndGet();
+        try {
+            handler.handleEvent(queuedEvent.event);
+        } catch (DeferEventException e) {
+            defer(queuedEvent, e.getDelayMillis());
+        } catch (SpoolEventException e) {
+            spool(queuedEvent, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            spool(queuedEvent, "the worker was interrupted");
+        } catch (Exception e) {
+            // An event cut off by the shutdown is handled again after the restart.
+            if (!running) {
+                spool(queuedEvent, "the pipeline is stopped");
+                return;
+            }
+            metrics.increment(AgentMetrics.Counter.FAILED);
+            AgentLog.error("Event handling failed: {}", e.getMessage(), e);
+        } finally {
+            handlingEvents.decrementAndGet();
+        }
+    }
+
+    private void defer(final QueuedEvent queuedEvent, long delayMillis) {
+        if (deferrer == null || !running || queuedEvent.attempt >= maxDeferAttempts) {
+            spool(queuedEvent, "deferred " + queuedEvent.attempt + " times");
+            return;
+        }
+        if (deferredEvents.incrementAndGet() > maxDeferredEvents) {
+            deferredEvents.decrementAndGet();
+            spool(queuedEvent, maxDeferredEvents + " events are already deferred");
+            return;
+        }
+
+        metrics.increment(AgentMetrics.Counter.DEFERRED);
+        deferredQueue.add(queuedEvent);
+        try {
+            deferrer.schedule(new Runnable() {
+                public void run() {
+                    if (!deferredQueue.remove(queuedEvent))
+                        return;
+                    deferredEvents.decrementAndGet();
+                    QueuedEvent retry = new QueuedEvent(queuedEvent.event, System.nanoTime(), queuedEvent.attempt + 1);
+                    if (queue.offer(retry))
+                        queued();
+                    else
+                        spool(retry, "the queue is full");
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The pipeline is shutting down.
+            deferredQueue.remove(queuedEvent);
+            deferredEvents.decrementAndGet();
+            spool(queuedEvent, "the pipeline is stopped");
+        }
+    }
+
+    private void spool(QueuedEvent queuedEvent, String reason) {
+        if (spool != null && spool.append(EventSpool.TYPE_EVENT, queuedEvent.event)) {
+            metrics.increment(AgentMetrics.Counter.SPOOLED);
+            return;
+        }
+
+        droppedEvents.incrementAndGet();
+        AgentLog.warn("Event dropped: {}", reason);
+    }
+}
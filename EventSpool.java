@@ -0,0 +1,375 @@
+package DMP_integration_with_CI360;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only on-disk spool of the events that could not be handled because the DMP or CI360 was unavailable.
+ * <br> <br>
+ * The spool is a directory of memory-mapped segment files of a fixed size. A record is
+ * [length int][crc32 int][timestamp long][type byte][utf-8 event]; the crc covers everything after it,
+ * a zero length marks the end of the written part of a segment. After a crash the spool is recovered
+ * up to the last complete record. The replay position is kept in the memory-mapped "checkpoint" file,
+ * replayed segments are deleted. Records are replayed at least once: a crash between the replay
+ * of a record and the checkpoint replays it again.
+ * <br> <br>
+ * Appends and reads are serialized by the spool lock; the spool is used only on the failure path.
+ */
+public class EventSpool {
+    /**
+     * The intercepted event, it is enriched again on replay.
+     */
+    public static final byte TYPE_EVENT = 1;
+    /**
+     * The external event for CI360, it is only delivered again on replay.
+     */
+    public static final byte TYPE_DELIVERY = 2;
+
+    private static final int HEADER_SIZE = 17;
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    /**
+     * A record read from the spool.
+     */
+    public static final class Record {
+        public final byte type;
+        public final String event;
+        public final long timestampMillis;
+        final long segment;
+        final int nextPosition;
+
+        Record(byte type, String event, long timestampMillis, long segment, int nextPosition) {
+            this.type = type;
+            this.event = event;
+            this.timestampMillis = timestampMillis;
+            this.segment = segment;
+            this.nextPosition = nextPosition;
+        }
+    }
+
+    private final File directory;
+    private final int segmentBytes;
+    private final long maxBytes;
+
+    private final TreeMap<Long, File> segments = new TreeMap<Long, File>();
+    private final MappedByteBuffer checkpoint;
+    private MappedByteBuffer writeBuffer;
+    private long writeSegment;
+    private MappedByteBuffer readBuffer;
+    private long readSegment;
+    private int readPosition;
+
+    private long pendingEvents;
+    private final AtomicLong spooledEvents = new AtomicLong();
+    private final AtomicLong replayedEvents = new AtomicLong();
+    private final AtomicLong droppedEvents = new AtomicLong();
+
+    /**
+     * This method opens the spool and recovers it after a restart.
+     *
+     * @param directory    This parameter is the directory of the spool, it is created if needed.
+     * @param segmentBytes This parameter is the size of a segment file, the largest event must fit in it.
+     * @param maxBytes     This parameter is the maximum size of all the segments, events over it are dropped.
+     */
+    public EventSpool(File directory, int segmentBytes, long maxBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create the spool directory " + directory);
+
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+
+        File[] files = directory.listFiles();
+        for (File file : files != null ? files : new File[0]) {
+            String name = file.getName();
+            if (name.endsWith(SEGMENT_SUFFIX))
+                segments.put(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+        }
+
+        this.checkpoint = map(new File(directory, CHECKPOINT_FILE), 16);
+        if (segments.isEmpty())
+            segments.put(0L, new File(directory, segmentName(0)));
+
+        // The write position is after the last complete record of the last segment.
+        writeSegment = segments.lastKey();
+        writeBuffer = map(segments.get(writeSegment), segmentBytes);
+        writeBuffer.position(scan(writeBuffer, 0));
+
+        restoreCheckpoint();
+        pendingEvents = countPending();
+        if (pendingEvents > 0)
+            AgentLog.info("Spool {} has {} events to replay", directory, pendingEvents);
+    }
+
+    /**
+     * This method appends the event to the spool.
+     *
+     * @param type  This parameter is {@link #TYPE_EVENT} or {@link #TYPE_DELIVERY}.
+     * @param event This parameter is the json string of the event.
+     * @return Returns false if the event was dropped because the spool is full or the event is too large.
+     */
+    public synchronized boolean append(byte type, String event) {
+        byte[] payload = event.getBytes(StandardCharsets.UTF_8);
+        int size = HEADER_SIZE + payload.length;
+        // A segment always keeps room for the zero length that marks its end.
+        if (size + 4 > segmentBytes) {
+            droppedEvents.incrementAndGet();
+            AgentLog.warn("Event of {} bytes does not fit in a spool segment, dropped", payload.length);
+            return false;
+        }
+
+        try {
+            if (writeBuffer.position() + size + 4 > segmentBytes) {
+                if ((long) (segments.size() + 1) * segmentBytes > maxBytes) {
+                    // During a long outage every event is dropped here, so only every 1000th drop is logged.
+                    if (droppedEvents.incrementAndGet() % 1000 == 1)
+                        AgentLog.warn("Spool is full ({} bytes), {} events dropped", maxBytes, droppedEvents.get());
+                    return false;
+                }
+                writeBuffer.force();
+                writeSegment++;
+                segments.put(writeSegment, new File(directory, segmentName(writeSegment)));
+                writeBuffer = map(segments.get(writeSegment), segmentBytes);
+            }
+        } catch (IOException e) {
+            droppedEvents.incrementAndGet();
+            AgentLog.error("Spool segment was not created: {}", e.getMessage(), e);
+            return false;
+        }
+
+        long timestamp = System.currentTimeMillis();
+        CRC32 crc = new CRC32();
+        crc.update(longBytes(timestamp));
+        crc.update(type);
+        crc.update(payload);
+
+        int start = writeBuffer.position();
+        writeBuffer.position(start + 4);
+        writeBuffer.putInt((int) crc.getValue());
+        writeBuffer.putLong(timestamp);
+        writeBuffer.put(type);
+        writeBuffer.put(payload);
+        // The length is written last, so a reader never sees a record that is not complete.
+        writeBuffer.putInt(start, payload.length);
+
+        pendingEvents++;
+        spooledEvents.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * This method reads the next record to replay without moving the replay position.
+     *
+     * @return Returns the record or null if everything is replayed.
+     */
+    public synchronized Record peek() {
+        while (true) {
+            if (readBuffer == null || readSegment > writeSegment)
+                return null;
+
+            Record record = read(readBuffer, readSegment, readPosition);
+            if (record != null)
+                return record;
+
+            // The rest of the segment is empty or damaged: move to the next segment, if the writer has left this one.
+            if (readSegment == writeSegment)
+                return null;
+            if (readPosition < segmentBytes - 4 && readBuffer.getInt(readPosition) != 0)
+                AgentLog.warn("Spool segment {} is damaged at {}, the rest of it is skipped", readSegment, readPosition);
+            moveToSegment(segments.higherKey(readSegment));
+        }
+    }
+
+    /**
+     * This method moves the replay position past the record returned by {@link #peek()}.
+     */
+    public synchronized void commit(Record record) {
+        if (record.segment != readSegment || record.nextPosition <= readPosition)
+            return;
+
+        readPosition = record.nextPosition;
+        pendingEvents--;
+        replayedEvents.incrementAndGet();
+        saveCheckpoint();
+    }
+
+    public synchronized long getPendingEvents() {
+        return pendingEvents;
+    }
+
+    /**
+     * @return Returns the bytes of the segments not replayed yet.
+     */
+    public synchronized long getPendingBytes() {
+        long bytes = (writeSegment - readSegment) * (long) segmentBytes + writeBuffer.position() - readPosition;
+        return Math.max(0, bytes);
+    }
+
+    /**
+     * @return Returns the age of the oldest record waiting for the replay, 0 if everything is replayed.
+     */
+    public long getReplayLagMillis() {
+        Record record = peek();
+        return record == null ? 0 : Math.max(0, System.currentTimeMillis() - record.timestampMillis);
+    }
+
+    public long getSpooledEvents() {
+        return spooledEvents.get();
+    }
+
+    public long getReplayedEvents() {
+        return replayedEvents.get();
+    }
+
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    /**
+     * This method writes the mapped segments to the disk.
+     */
+    public synchronized void force() {
+        writeBuffer.force();
+        checkpoint.force();
+    }
+
+    private Record read(MappedByteBuffer buffer, long segment, int position) {
+        if (position + HEADER_SIZE > segmentBytes)
+            return null;
+
+        int length = buffer.getInt(position);
+        if (length <= 0 || position + HEADER_SIZE + length > segmentBytes)
+            return null;
+
+        int crc = buffer.getInt(position + 4);
+        long timestamp = buffer.getLong(position + 8);
+        byte type = buffer.get(position + 16);
+        byte[] payload = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(position + HEADER_SIZE);
+        view.get(payload);
+
+        CRC32 actual = new CRC32();
+        actual.update(longBytes(timestamp));
+        actual.update(type);
+        actual.update(payload);
+        if ((int) actual.getValue() != crc)
+            return null;
+
+        return new Record(type, new String(payload, StandardCharsets.UTF_8), timestamp, segment, position + HEADER_SIZE + length);
+    }
+
+    /**
+     * This method skips the valid records from the position.
+     *
+     * @return Returns the position after the last valid record.
+     */
+    private int scan(MappedByteBuffer buffer, int position) {
+        Record record;
+        while ((record = read(buffer, -1, position)) != null)
+            position = record.nextPosition;
+
+        return position;
+    }
+
+    private long countPending() throws IOException {
+        long count = 0;
+        for (long segment : segments.tailMap(readSegment, true).keySet()) {
+            MappedByteBuffer buffer = segment == writeSegment ? writeBuffer : segment == readSegment ? readBuffer : map(segments.get(segment), segmentBytes);
+            int position = segment == readSegment ? readPosition : 0;
+            Record record;
+            while ((record = read(buffer, segment, position)) != null) {
+                position = record.nextPosition;
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    private void restoreCheckpoint() throws IOException {
+        long segment = checkpoint.getLong(0);
+        int position = checkpoint.getInt(8);
+        int crc = checkpoint.getInt(12);
+        CRC32 expected = new CRC32();
+        expected.update(longBytes(segment));
+        expected.update(longBytes(position));
+
+        if ((int) expected.getValue() != crc || !segments.containsKey(segment)) {
+            // No checkpoint or the segment of it is gone: replay from the oldest segment.
+            segment = segments.firstKey();
+            position = 0;
+        }
+
+        // The segments before the checkpoint are replayed.
+        for (Long replayed : segments.headMap(segment, false).keySet().toArray(new Long[0]))
+            delete(replayed);
+
+        readSegment = segment;
+        readBuffer = segment == writeSegment ? writeBuffer : map(segments.get(segment), segmentBytes);
+        readPosition = position;
+    }
+
+    private void saveCheckpoint() {
+        CRC32 crc = new CRC32();
+        crc.update(longBytes(readSegment));
+        crc.update(longBytes(readPosition));
+        checkpoint.putLong(0, readSegment);
+        checkpoint.putInt(8, readPosition);
+        checkpoint.putInt(12, (int) crc.getValue());
+    }
+
+    private void moveToSegment(Long next) {
+        long replayed = readSegment;
+        try {
+            readSegment = next;
+            readBuffer = next == writeSegment ? writeBuffer : map(segments.get(next), segmentBytes);
+            readPosition = 0;
+            saveCheckpoint();
+            delete(replayed);
+        } catch (IOException e) {
+            AgentLog.error("Spool segment {} cannot be read", next, e);
+            readBuffer = null;
+        }
+    }
+
+    private void delete(long segment) {
+        File file = segments.remove(segment);
+        if (file != null && !file.delete())
+            AgentLog.warn("Replayed spool segment {} was not deleted", file);
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            if (randomAccessFile.length() < size)
+                randomAccessFile.setLength(size);
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            // The mapping stays valid after the file is closed.
+            randomAccessFile.close();
+        }
+    }
+
+    private static String segmentName(long segment) {
+        return String.format("%020d", segment) + SEGMENT_SUFFIX;
+    }
+
+    private static byte[] longBytes(long value) {
+        byte[] bytes = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            bytes[i] = (byte) value;
+            value >>>= 8;
+        }
+        return bytes;
+    }
+}
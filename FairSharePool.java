@@ -0,0 +1,267 @@
+package DMP_integration_with_CI360;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pool of worker threads shared by the {@link EventPipeline}s of the tenants hosted by the agent.
+ * <br> <br>
+ * Every pipeline keeps its own queue; a free worker takes the next event of the tenant that has used the least worker time
+ * for its weight (stride scheduling over the handling time): while both have events, a tenant of weight 2 gets twice
+ * the worker time of a tenant of weight 1, and the share of an idle tenant goes to the others. The time of an event
+ * is charged when the event is taken, as the average time of the tenant, and corrected when the event is done,
+ * so a tenant whose DMP is slow cannot take all the workers before its first event completes.
+ * <br> <br>
+ * A tenant may also be limited to a number of workers and to a rate of events per second; meanwhile its events wait
+ * in its queue and its overflow policy applies, the other tenants are not affected.
+ */
+public class FairSharePool {
+    private static final long INITIAL_COST_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final class Share {
+        final EventPipeline pipeline;
+        final int weight;
+        final int maxWorkers;
+        final double tokensPerNano;
+        final double maxTokens;
+        double tokens;
+        long refilledAt;
+        long averageCostNanos = INITIAL_COST_NANOS;
+        /**
+         * Worker time used by the tenant divided by its weight; the tenant with the smallest pass goes next.
+         */
+        long pass;
+        int busyWorkers;
+        long workerNanos;
+
+        Share(EventPipeline pipeline, int weight, int maxWorkers, double ratePerSecond) {
+            this.pipeline = pipeline;
+            this.weight = weight;
+            this.maxWorkers = maxWorkers;
+            this.tokensPerNano = ratePerSecond / 1e9;
+            // A tenant may catch up for a tenth of a second, like the ticks of the spool replay.
+            this.maxTokens = Math.max(1, ratePerSecond / 10);
+            this.tokens = maxTokens;
+            this.refilledAt = System.nanoTime();
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition work = lock.newCondition();
+    private final List<Share> shares = new ArrayList<Share>();
+    private final Thread[] workers;
+    private long virtualTime;
+    private long nextTokenNanos;
+    private volatile int waitingWorkers;
+    private volatile boolean stopped;
+
+    /**
+     * @param workerThreads This parameter is the number of worker threads shared by all the tenants.
+     */
+    public FairSharePool(int workerThreads) {
+        if (workerThreads < 1)
+            throw new IllegalArgumentException("workerThreads must be positive: " + workerThreads);
+
+        this.workers = new Thread[workerThreads];
+        for (int i = 0; i < workerThreads; i++) {
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    work();
+                }
+            }, "dmp-worker-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * This method gives the pipeline of a tenant its share of the workers.
+     *
+     * @param name          This parameter is the name of the tenant.
+     * @param pipeline      This parameter is the pipeline of the tenant, created with this pool.
+     * @param weight        This parameter is the share of the worker time relative to the other tenants.
+     * @param maxWorkers    This parameter is the maximum number of workers handling the events of the tenant at once.
+     * @param ratePerSecond This parameter is the maximum number of events of the tenant handled per second, 0 for no limit.
+     */
+    public void register(String name, EventPipeline pipeline, int weight, int maxWorkers, double ratePerSecond) {
+        if (weight < 1)
+            throw new IllegalArgumentException("Weight of tenant " + name + " must be positive: " + weight);
+
+        lock.lock();
+        try {
+            Share share = new Share(pipeline, weight, Math.max(1, Math.min(maxWorkers, workers.length)), ratePerSecond);
+            share.pass = virtualTime;
+            shares.add(share);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * This method wakes a worker, it is called by the pipelines when an event is queued.
+     */
+    void signal() {
+        if (waitingWorkers == 0)
+            return;
+
+        lock.lock();
+        try {
+            work.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * This method stops the workers; the pipelines are shut down first, so the events cut off are spooled.
+     */
+    public void shutdown() {
+        stopped = true;
+        for (Thread worker : workers)
+            worker.interrupt();
+        for (Thread worker : workers) {
+            try {
+                worker.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    public int getWorkerThreads() {
+        return workers.length;
+    }
+
+    /**
+     * @return Returns the number of workers handling the events of the pipeline now.
+     */
+    public int getBusyWorkers(EventPipeline pipeline) {
+        lock.lock();
+        try {
+            Share share = find(pipeline);
+            return share != null ? share.busyWorkers : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Returns the worker time spent on the events of the pipeline, in milliseconds.
+     */
+    public long getWorkerMillis(EventPipeline pipeline) {
+        lock.lock();
+        try {
+            Share share = find(pipeline);
+            return share != null ? share.workerNanos / 1000000 : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Share find(EventPipeline pipeline) {
+        for (Share share : shares)
+            if (share.pipeline == pipeline)
+                return share;
+
+        return null;
+    }
+
+    private void work() {
+        while (!stopped) {
+            Share share;
+            long charged;
+            lock.lock();
+            try {
+                // The worker counts as waiting before it looks at the queues, so an event queued meanwhile wakes it.
+                waitingWorkers++;
+                try {
+                    while ((share = pick(System.nanoTime())) == null) {
+                        if (stopped)
+                            return;
+                        if (nextTokenNanos == Long.MAX_VALUE)
+                            work.await();
+                        else
+                            work.awaitNanos(nextTokenNanos);
+                    }
+                } finally {
+                    waitingWorkers--;
+                }
+                charged = share.averageCostNanos;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            long start = System.nanoTime();
+            boolean handled = false;
+            try {
+                handled = share.pipeline.runNext();
+            } finally {
+                complete(share, charged, handled, System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * @return Returns the share whose event is handled next, or null if no tenant may go now.
+     * Then {@link #nextTokenNanos} is the time until a rate-limited tenant may go, or Long.MAX_VALUE.
+     */
+    private Share pick(long now) {
+        Share best = null;
+        nextTokenNanos = Long.MAX_VALUE;
+        for (int i = 0; i < shares.size(); i++) {
+            Share share = shares.get(i);
+            if (share.busyWorkers >= share.maxWorkers || share.pipeline.getQueueDepth() == 0)
+                continue;
+            if (share.tokensPerNano > 0) {
+                share.tokens = Math.min(share.maxTokens, share.tokens + (now - share.refilledAt) * share.tokensPerNano);
+                share.refilledAt = now;
+                if (share.tokens < 1) {
+                    nextTokenNanos = Math.min(nextTokenNanos, (long) ((1 - share.tokens) / share.tokensPerNano) + 1);
+                    continue;
+                }
+            }
+            if (best == null || share.pass < best.pass)
+                best = share;
+        }
+        if (best == null)
+            return null;
+
+        // A tenant that was idle or held back does not bank the worker time it did not use.
+        best.pass = Math.max(best.pass, virtualTime);
+        virtualTime = best.pass;
+        best.pass += best.averageCostNanos / best.weight;
+        best.busyWorkers++;
+        if (best.tokensPerNano > 0)
+            best.tokens -= 1;
+
+        return best;
+    }
+
+    private void complete(Share share, long charged, boolean handled, long elapsedNanos) {
+        lock.lock();
+        try {
+            share.busyWorkers--;
+            if (handled) {
+                share.pass += (elapsedNanos - charged) / share.weight;
+                share.averageCostNanos = Math.max(1000, share.averageCostNanos + (elapsedNanos - share.averageCostNanos) / 8);
+                share.workerNanos += elapsedNanos;
+            } else {
+                // Another worker took the event: nothing was used.
+                share.pass -= charged / share.weight;
+                if (share.tokensPerNano > 0)
+                    share.tokens += 1;
+            }
+            // A worker may wait for this tenant to get below its maximum.
+            if (waitingWorkers > 0)
+                work.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
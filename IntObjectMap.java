@@ -0,0 +1,97 @@
+package DMP_integration_with_CI360;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Open addressing hash map with primitive int keys.
+ * It is used by {@link TaxonomyIndex} to look up taxonomy ids without boxing and without allocation.
+ * The map is filled once while the index is built and is only read afterwards.
+ */
+public class IntObjectMap<V> {
+    private static final int FREE_KEY = Integer.MIN_VALUE;
+
+    private int[] keys;
+    private Object[] values;
+    private int size;
+    private int mask;
+
+    public IntObjectMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        this.keys = new int[capacity];
+        this.values = new Object[capacity];
+        this.mask = capacity - 1;
+        Arrays.fill(keys, FREE_KEY);
+    }
+
+    /**
+     * @param key This parameter is the key, Integer.MIN_VALUE is reserved.
+     * @return Returns the value for the key or null.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int slot = mix(key) & mask;
+        while (true) {
+            int current = keys[slot];
+            if (current == key)
+                return (V) values[slot];
+            if (current == FREE_KEY)
+                return null;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    public void put(int key, V value) {
+        if (key == FREE_KEY)
+            throw new IllegalArgumentException("Key " + key + " is reserved");
+        if ((size + 1) * 2 > keys.length)
+            resize(keys.length << 1);
+
+        int slot = mix(key) & mask;
+        while (keys[slot] != FREE_KEY && keys[slot] != key)
+            slot = (slot + 1) & mask;
+        if (keys[slot] == FREE_KEY)
+            size++;
+        keys[slot] = key;
+        values[slot] = value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return Returns the values of the map in no particular order.
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        List<V> result = new ArrayList<V>(size);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != FREE_KEY)
+                result.add((V) values[i]);
+        }
+
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        size = 0;
+        Arrays.fill(keys, FREE_KEY);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE_KEY)
+                put(oldKeys[i], (V) oldValues[i]);
+        }
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,53 @@
+package DMP_integration_with_CI360;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Local HTTP endpoint serving {@link AgentMetrics} in the Prometheus text format at /metrics.
+ * Requests are served by the dispatcher thread of the server, so scraping does not take the workers.
+ */
+public class MetricsHttpServer {
+    private final HttpServer server;
+
+    /**
+     * @param bindAddress This parameter is the address to listen on, e.g. 127.0.0.1 to expose the metrics locally only.
+     * @param port        This parameter is the port to listen on.
+     * @param metrics     This parameter is the metrics to serve.
+     */
+    public MetricsHttpServer(String bindAddress, int port, final AgentMetrics metrics) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(bindAddress, port), 16);
+        server.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                StringWriter text = new StringWriter(8192);
+                metrics.writePrometheus(text);
+                byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    out.write(body);
+                } finally {
+                    out.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+}
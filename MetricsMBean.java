@@ -0,0 +1,72 @@
+package DMP_integration_with_CI360;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+/**
+ * JMX view of {@link AgentMetrics}: every metric of {@link AgentMetrics#snapshot()} is a read-only attribute
+ * of the MBean "DMP_integration_with_CI360:type=AgentMetrics" (visible in jconsole / VisualVM).
+ * The metrics of every tenant are the MBean "DMP_integration_with_CI360:type=AgentMetrics,tenant=&lt;name&gt;".
+ */
+public class MetricsMBean implements DynamicMBean {
+    public static final String OBJECT_NAME = "DMP_integration_with_CI360:type=AgentMetrics";
+
+    private final AgentMetrics metrics;
+
+    public MetricsMBean(AgentMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * This method registers the metrics and the metrics of the tenants created so far in the platform MBean server.
+     */
+    public static void register(AgentMetrics metrics) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(new MetricsMBean(metrics), new ObjectName(OBJECT_NAME));
+        for (AgentMetrics tenant : metrics.getTenants())
+            server.registerMBean(new MetricsMBean(tenant), new ObjectName(OBJECT_NAME + ",tenant=" + ObjectName.quote(tenant.getTenant())));
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = metrics.snapshot().get(attribute);
+        if (value == null)
+            throw new AttributeNotFoundException(attribute);
+
+        return value;
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Long> snapshot = metrics.snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Long value = snapshot.get(attribute);
+            if (value != null)
+                list.add(new Attribute(attribute, value));
+        }
+
+        return list;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+        throw new MBeanException(new UnsupportedOperationException(actionName));
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Long> snapshot = metrics.snapshot();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+        int i = 0;
+        for (String name : snapshot.keySet())
+            attributes[i++] = new MBeanAttributeInfo(name, Long.class.getName(), name, true, false, false);
+
+        return new MBeanInfo(getClass().getName(), "Metrics of the DMP agent", attributes, null, null, null);
+    }
+}
@@ -1,14 +1,14 @@
 package DMP_integration_with_CI360;
 
-import org.apache.poi.xssf.usermodel.XSSFWorkbook;
-
 import java.util.Map;
 
 /**
- * Interface that implements reader class
+ * Interface that implements reader class.
+ * A reader loads the taxonomy: the "Attributes" sheet and the hashmap of the taxonomy sheets,
+ * which are necessary for decrypting data.
  */
 public interface ReaderInterface {
-    XSSFWorkbook openBook(final String path);
+    AttributesTaxonomy getAttributesTaxonomy();
 
-    Map<String, Map<String, String>> getDictionaryAttributesTaxonomy(XSSFWorkbook book);
+    Map<String, Map<String, String>> getDictionaryAttributesTaxonomy();
 }
@@ -0,0 +1,108 @@
+package DMP_integration_with_CI360;
+
+import com.google.gson.stream.JsonReader;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * HTTP endpoint receiving the events forwarded by the other instances of the {@link ShardRing} at /ingest.
+ * The body is a json array of event strings (see {@link ShardRouter}); the events are put into the local pipeline
+ * and are not routed again. The response {"accepted": n} tells how many events, from the first, were taken.
+ */
+public class ShardIngestServer {
+    static final String PATH = "/ingest";
+
+    private final HttpServer server;
+
+    /**
+     * @param bindAddress This parameter is the address to listen on.
+     * @param port        This parameter is the port to listen on.
+     * @param token       This parameter is the shared secret expected in the Authorization header; it is required,
+     *                    otherwise any host reaching the port could inject events that are sent to CI360.
+     * @param pipeline    This parameter is the local pipeline.
+     */
+    public ShardIngestServer(String bindAddress, int port, final String token, final EventPipeline pipeline,
+                             final AgentMetrics metrics) throws IOException {
+        if (token == null || token.isEmpty())
+            throw new IllegalArgumentException("Shard ingest endpoint needs a token");
+        final byte[] tokenBytes = token.getBytes(StandardCharsets.UTF_8);
+        this.server = HttpServer.create(new InetSocketAddress(bindAddress, port), 64);
+        server.createContext(PATH, new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    if (!exchange.getRequestMethod().equals("POST")) {
+                        exchange.sendResponseHeaders(405, -1);
+                        return;
+                    }
+                    // The comparison takes the same time whatever the first wrong character, so the token cannot be guessed by timing.
+                    String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+                    if (authorization == null || !MessageDigest.isEqual(tokenBytes, authorization.getBytes(StandardCharsets.UTF_8))) {
+                        exchange.sendResponseHeaders(401, -1);
+                        return;
+                    }
+
+                    // The batch is read whole before submitting, so a broken batch is refused without duplicates.
+                    List<String> events = new ArrayList<String>();
+                    JsonReader reader = new JsonReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+                    try {
+                        reader.beginArray();
+                        while (reader.hasNext())
+                            events.add(reader.nextString());
+                        reader.endArray();
+                    } catch (IllegalStateException | IOException e) {
+                        AgentLog.warn("Invalid forwarded events: {}", e.getMessage());
+                        exchange.sendResponseHeaders(400, -1);
+                        return;
+                    }
+
+                    // Events are taken in order while the local queue has room, the peer handles the rest itself:
+                    // a full instance answers at once instead of holding the sender of the peer.
+                    int accepted = 0;
+                    while (accepted < events.size() && pipeline.offer(events.get(accepted)))
+                        accepted++;
+                    metrics.add(AgentMetrics.Counter.SHARD_INGESTED, accepted);
+
+                    // A response without a body makes the server reuse the connection before the exchange is closed,
+                    // which resets the next request of the peer.
+                    byte[] body = ("{\"accepted\":" + accepted + "}").getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "application/json");
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        // Peers posting at the same time are served in parallel.
+        server.setExecutor(Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "shard-ingest");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+}
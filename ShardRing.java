@@ -0,0 +1,98 @@
+package DMP_integration_with_CI360;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Consistent-hash ring of the agent instances sharing the event stream: every user (datahub_id) is owned by one instance,
+ * so all the events of the user are enriched there and the profile cache of that instance stays hot.
+ * <br> <br>
+ * Every instance is placed on the ring at a number of virtual points (hashes of "id#n"); a user belongs to the instance
+ * of the first point at or after the hash of the user id. With enough virtual points the users are spread evenly,
+ * and adding or removing an instance moves only the users of its share. The ring is built once from the static list
+ * of instances into sorted arrays, so a lookup is a binary search without allocation.
+ */
+public final class ShardRing {
+    private final long[] points;
+    private final String[] owners;
+    private final List<String> members;
+
+    /**
+     * @param members      This parameter is the ids of the instances; every instance must use the same list.
+     * @param virtualNodes This parameter is the number of points of every instance on the ring.
+     */
+    public ShardRing(Collection<String> members, int virtualNodes) {
+        if (members.isEmpty())
+            throw new IllegalArgumentException("Shard ring needs at least one member");
+        if (virtualNodes < 1)
+            throw new IllegalArgumentException("Shard ring needs at least one virtual node per member: " + virtualNodes);
+        this.members = Collections.unmodifiableList(new ArrayList<String>(members));
+
+        int size = members.size() * virtualNodes;
+        long[] hashes = new long[size];
+        String[] hashOwners = new String[size];
+        int i = 0;
+        for (String member : members) {
+            for (int n = 0; n < virtualNodes; n++) {
+                hashes[i] = hash(member + "#" + n);
+                hashOwners[i] = member;
+                i++;
+            }
+        }
+
+        // Points are sorted together with their owners; equal hashes keep the smallest owner, so every instance agrees.
+        Integer[] order = new Integer[size];
+        for (i = 0; i < size; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> hashes[a] != hashes[b]
+                ? Long.compare(hashes[a], hashes[b])
+                : hashOwners[a].compareTo(hashOwners[b]));
+        this.points = new long[size];
+        this.owners = new String[size];
+        for (i = 0; i < size; i++) {
+            points[i] = hashes[order[i]];
+            owners[i] = hashOwners[order[i]];
+        }
+    }
+
+    /**
+     * @param userId This parameter is the datahub_id of the user.
+     * @return Returns the id of the instance owning the user.
+     */
+    public String ownerOf(String userId) {
+        int index = Arrays.binarySearch(points, hash(userId));
+        if (index < 0)
+            index = -index - 1;
+        else
+            while (index > 0 && points[index - 1] == points[index])
+                index--;
+
+        return owners[index == points.length ? 0 : index];
+    }
+
+    public List<String> getMembers() {
+        return members;
+    }
+
+    /**
+     * 64-bit FNV-1a of the UTF-8 bytes with the MurmurHash3 finalizer, so close ids land far apart on the ring.
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,306 @@
+package DMP_integration_with_CI360;
+
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.util.StringContentProvider;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Router of the intercepted events between the agent instances of a {@link ShardRing}:
+ * events of the users owned by this instance go to the local {@link EventPipeline},
+ * events of the other users are handled according to the policy.
+ * <br> <br>
+ * FORWARD sends the event to the {@link ShardIngestServer} of the owner. Every peer has a bounded queue
+ * and a sender thread posting the queued events in batches, so the stream thread only parses the user id
+ * and enqueues. A peer takes the events while its own queue has room; the rest of the batch waits for it,
+ * and new events for the peer are handled here once its forward queue is full. When the peer cannot be reached,
+ * its events are handled here and the peer is not tried again for the retry interval:
+ * enriching on the wrong instance only costs a cache miss.
+ * DROP ignores the event, for streams delivered to every instance. LOCAL handles every event here,
+ * like a single instance, e.g. while the peers are being rolled out.
+ * <br> <br>
+ * Forwarded events are never forwarded again ({@link ShardIngestServer} submits them to the pipeline directly),
+ * so instances with different peer lists cannot bounce an event between them.
+ */
+public class ShardRouter {
+    private static final long FULL_PEER_BACKOFF_MILLIS = 10;
+    private static final long MAX_FULL_PEER_BACKOFF_MILLIS = 500;
+
+    /**
+     * What to do with the events of users owned by another instance.
+     */
+    public enum Policy {
+        FORWARD, DROP, LOCAL
+    }
+
+    private static final class Peer {
+        final String id;
+        final String ingestUrl;
+        final ArrayBlockingQueue<String> queue;
+        volatile long downUntil;
+        Thread sender;
+
+        Peer(String id, String ingestUrl, int capacity) {
+            this.id = id;
+            this.ingestUrl = ingestUrl;
+            this.queue = new ArrayBlockingQueue<String>(capacity);
+        }
+    }
+
+    private final ShardRing ring;
+    private final String selfId;
+    private final Policy policy;
+    private final String token;
+    private final int batchSize;
+    private final long requestTimeoutMillis;
+    private final long retryMillis;
+    private final EventPipeline pipeline;
+    private final AgentMetrics metrics;
+    private final Map<String, Peer> peers = new LinkedHashMap<String, Peer>();
+    private final HttpClient httpClient;
+
+    private volatile boolean stopped;
+
+    /**
+     * @param ring                 This parameter is the ring of all the instances, this one included.
+     * @param selfId               This parameter is the id of this instance on the ring.
+     * @param peerUrls             This parameter is the base url of every instance (e.g. http://host:9091), by id.
+     * @param policy               This parameter is what to do with the events of users owned by another instance.
+     * @param token                This parameter is the shared secret sent to the peers in the Authorization header, null for none.
+     * @param batchSize            This parameter is the maximum number of events posted to a peer at once.
+     * @param maxPendingForwards   This parameter is the capacity of the queue of every peer.
+     * @param requestTimeoutMillis This parameter is the maximum time of a post to a peer.
+     * @param retryMillis          This parameter is the time a peer is not tried after a failed post.
+     * @param pipeline             This parameter is the local pipeline.
+     */
+    public ShardRouter(ShardRing ring, String selfId, Map<String, String> peerUrls, Policy policy, String token,
+                       int batchSize, int maxPendingForwards, long requestTimeoutMillis, long retryMillis,
+                       EventPipeline pipeline, AgentMetrics metrics) throws Exception {
+        if (!ring.getMembers().contains(selfId))
+            throw new IllegalArgumentException("Instance \"" + selfId + "\" is not one of the shard peers " + ring.getMembers());
+        this.ring = ring;
+        this.selfId = selfId;
+        this.policy = policy;
+        this.token = token;
+        this.batchSize = Math.max(1, batchSize);
+        this.requestTimeoutMillis = requestTimeoutMillis;
+        this.retryMillis = retryMillis;
+        this.pipeline = pipeline;
+        this.metrics = metrics;
+
+        this.httpClient = new HttpClient();
+        httpClient.setFollowRedirects(false);
+        if (policy == Policy.FORWARD)
+            httpClient.start();
+
+        for (String member : ring.getMembers()) {
+            if (member.equals(selfId))
+                continue;
+            String url = peerUrls.get(member);
+            if (url == null)
+                throw new IllegalArgumentException("Shard peer \"" + member + "\" has no url");
+            final Peer peer = new Peer(member, url.replaceAll("/+$", "") + ShardIngestServer.PATH, maxPendingForwards);
+            peers.put(member, peer);
+
+            if (policy == Policy.FORWARD) {
+                peer.sender = new Thread(new Runnable() {
+                    public void run() {
+                        sendLoop(peer);
+                    }
+                }, "shard-forward-" + member);
+                peer.sender.setDaemon(true);
+                peer.sender.start();
+            }
+        }
+    }
+
+    /**
+     * This method handles the intercepted event on the instance owning its user.
+     *
+     * @param event This parameter is the json string of the event.
+     * @return Returns false if the event was dropped because the local queue was full.
+     */
+    public boolean route(String event) {
+        String userId;
+        try {
+            userId = EventParser.parse(event).userId;
+        } catch (IOException | RuntimeException e) {
+            // The worker rejects it and counts it.
+            return pipeline.submit(event);
+        }
+        if (userId == null || policy == Policy.LOCAL)
+            return pipeline.submit(event);
+
+        String owner = ring.ownerOf(userId);
+        if (owner.equals(selfId))
+            return pipeline.submit(event);
+
+        if (policy == Policy.DROP) {
+            metrics.increment(AgentMetrics.Counter.SHARD_NOT_OWNED);
+            return true;
+        }
+
+        Peer peer = peers.get(owner);
+        if (stopped || System.currentTimeMillis() < peer.downUntil || !peer.queue.offer(event)) {
+            metrics.increment(AgentMetrics.Counter.SHARD_FALLBACK);
+            return pipeline.submit(event);
+        }
+
+        return true;
+    }
+
+    /**
+     * This method sends the queued events to the peers and stops the senders.
+     *
+     * @param timeoutMillis This parameter is the maximum time to wait for the senders.
+     */
+    public void stop(long timeoutMillis) {
+        stopped = true;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (Peer peer : peers.values()) {
+            if (peer.sender == null)
+                continue;
+            try {
+                peer.sender.join(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        try {
+            httpClient.stop();
+        } catch (Exception e) {
+            AgentLog.warn("Shard forwarding client was not stopped: {}", e.getMessage());
+        }
+    }
+
+    public String getSelfId() {
+        return selfId;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public int getPendingForwards() {
+        int pending = 0;
+        for (Peer peer : peers.values())
+            pending += peer.queue.size();
+
+        return pending;
+    }
+
+    /**
+     * @return Returns the peers that are not tried because their last post failed.
+     */
+    public List<String> getDownPeers() {
+        List<String> down = new ArrayList<String>();
+        long now = System.currentTimeMillis();
+        for (Peer peer : peers.values())
+            if (now < peer.downUntil)
+                down.add(peer.id);
+
+        return down;
+    }
+
+    private void sendLoop(Peer peer) {
+        List<String> batch = new ArrayList<String>(batchSize);
+        while (true) {
+            String first;
+            try {
+                first = stopped ? peer.queue.poll() : peer.queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (first == null) {
+                if (stopped)
+                    return;
+                continue;
+            }
+
+            // Events queued while the previous batch was posted go together.
+            batch.clear();
+            batch.add(first);
+            peer.queue.drainTo(batch, batchSize - 1);
+            int sent = 0;
+            long backoff = FULL_PEER_BACKOFF_MILLIS;
+            while (sent < batch.size()) {
+                int accepted = System.currentTimeMillis() < peer.downUntil ? -1 : post(peer, batch.subList(sent, batch.size()));
+                if (accepted < 0) {
+                    handleLocally(batch.subList(sent, batch.size()));
+                    break;
+                }
+
+                sent += accepted;
+                // The queue of the peer is full: the rest waits for it (backing off, the peer has work for a while),
+                // and meanwhile new events of the peer overflow its forward queue and are handled here.
+                if (sent < batch.size()) {
+                    if (stopped) {
+                        handleLocally(batch.subList(sent, batch.size()));
+                        break;
+                    }
+                    try {
+                        Thread.sleep(backoff);
+                        backoff = Math.min(backoff * 2, MAX_FULL_PEER_BACKOFF_MILLIS);
+                    } catch (InterruptedException e) {
+                        handleLocally(batch.subList(sent, batch.size()));
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private void handleLocally(List<String> events) {
+        metrics.add(AgentMetrics.Counter.SHARD_FALLBACK, events.size());
+        for (String event : events)
+            if (!pipeline.submit(event))
+                AgentLog.warn("Event queue is full, event dropped");
+    }
+
+    /**
+     * @return Returns the number of events, from the first, taken by the peer, or -1 if the post failed.
+     */
+    private int post(Peer peer, List<String> batch) {
+        try {
+            StringWriter body = new StringWriter(batch.size() * 512);
+            JsonWriter writer = new JsonWriter(body);
+            writer.beginArray();
+            for (String event : batch)
+                writer.value(event);
+            writer.endArray();
+            writer.close();
+
+            ContentResponse response = httpClient.newRequest(peer.ingestUrl)
+                    .method("POST")
+                    .header("Authorization", token)
+                    .content(new StringContentProvider("application/json", body.toString(), StandardCharsets.UTF_8))
+                    .timeout(requestTimeoutMillis, TimeUnit.MILLISECONDS)
+                    .send();
+            if (response.getStatus() / 100 != 2)
+                throw new IOException("Status " + response.getStatus());
+
+            int accepted = JsonParser.parseString(response.getContentAsString()).getAsJsonObject().get("accepted").getAsInt();
+            metrics.add(AgentMetrics.Counter.SHARD_FORWARDED, accepted);
+            return accepted;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        } catch (Exception e) {
+            peer.downUntil = System.currentTimeMillis() + retryMillis;
+            AgentLog.warn("Forwarding to instance {} failed, its events are handled here: {}", peer.id, e.getMessage());
+            return -1;
+        }
+    }
+}
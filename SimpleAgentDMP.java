@@ -1,8 +1,7 @@
 package DMP_integration_with_CI360;
 
 import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.URI;
 import java.nio.file.Paths;
 import java.util.*;
 
@@ -12,7 +11,6 @@ import com.sas.mkt.agent.sdk.CI360Agent;
 import com.sas.mkt.agent.sdk.CI360AgentException;
 import com.sas.mkt.agent.sdk.CI360StreamInterface;
 import com.sas.mkt.agent.sdk.ErrorCode;
-import org.eclipse.jetty.client.api.ContentResponse;
 import org.apache.commons.validator.routines.EmailValidator;
 
 /**
@@ -28,16 +26,19 @@ import org.apache.commons.validator.routines.EmailValidator;
  * <br> <br>
  * bulk - requests a Signed S3 URL be returned for uploaded events into CI360.   Following the "bulk" command
  * is the application ID to use.   See {@link CI360Agent#requestBulkEventURL(String)}.
+ * <br> <br>
+ * tenants - shows the status of every tenant; "use" followed by the name of a tenant sends the commands above to it.
+ * <br> <br>
+ * Started as "SimpleAgentDMP &lt;config&gt; --bulk &lt;file of user ids&gt; &lt;output file&gt; [--upload]",
+ * the agent does not listen to the stream: it enriches the users of the file and exits (see {@link BulkEnricher}).
  *
  * @author magibs
  */
 public class SimpleAgentDMP {
 
-    static boolean exiting = false;
-
     /**
      * Main method: reads the configuration file; sets the settings for connecting to DMP and ci360;
-     * creates an agent to listen for ci360 events; reads a taxonomy file using the CleverDataReader class;
+     * creates an agent to listen for ci360 events; creates the DMP providers, whose codecs load and compile the taxonomies;
      * defines the processEvent method, in which the intercepted event is analyzed and sent requests to DMP and ci360.
      */
     public static void main(String[] args) {
@@ -45,226 +46,246 @@ public class SimpleAgentDMP {
         try {
             final JsonObject config = readConfig(args[0]);
 
-            // DMP settings
-            final String dmpEndpoint = config.get("dmp_endpoint_get_user_info").getAsString();
-            final String dmpAuthorizationToken = config.get("dmp_authorization_token").getAsString();
-
-            // ci360 settings
-            String ci360Endpoint = config.get("ci360_endpoint").getAsString();
-            String ci360TenantId = config.get("ci360_tenant_id").getAsString();
-            String ci360ClientSecret = config.get("ci360_client_secret").getAsString();
-
-            final JsonArray dmpStreams = config.get("dmp_streams").getAsJsonArray();
-
-            // DMP attribute list sent to CI360
-            List<String> ci360Attributes = new ArrayList<String>();
-            JsonArray attributes = config.get("ci360_attributes").getAsJsonArray();
-            for (JsonElement attribute : attributes)
-                ci360Attributes.add(attribute.getAsString());
-
-            final CI360Agent agent = new CI360Agent(ci360Endpoint, ci360TenantId, ci360ClientSecret);
-            CleverDataReader cleverDataReader = new CleverDataReader("cleverdata_taxonomy_client.xlsm");
-
-            CI360StreamInterface streamListener = new CI360StreamInterface() {
-                public boolean processEvent(String event) {
-                    try {
-                        //  Parse event
-                        JsonObject attributes = parseEvent(event);
-                        if (attributes == null)
-                            return true;
-
-                        //  Get user ID
-                        String userId = null;
-                        userId = attributes.get("datahub_id").getAsString();
-
-//                        if (attributes.get("subject_id") != null)
-//                            userId = attributes.get("subject_id").getAsString();
-//                        else
-//                            userId = attributes.get("email_id").getAsString();
-
-                        for (JsonElement dmpStreamElement : dmpStreams) {
-                            JsonObject dmpStream = dmpStreamElement.getAsJsonObject();
-                            if (dmpStream.get("event_name") != null && dmpStream.get("event_name").getAsString().equals(attributes.get("eventName").getAsString())) {
-                                //Send to dmp
-                                JsonObject responseDMP = sendDMP(dmpEndpoint, dmpAuthorizationToken, userId);
-                                if (responseDMP == null)
-                                    return true;
-
-                                // Send to ci360
-                                if (dmpStream.get("ci360_external_event") != null)
-                                    sendCI360(dmpStream.get("ci360_external_event").getAsString(), userId, responseDMP);
-                            }
-                        }
-                    } catch (Exception e) {
-                        System.out.println(e.getMessage());
-                        e.printStackTrace();
-
-                        return true;
-                    }
-
-                    return true;
+            // Log settings: payloads (DMP responses, CI360 events) are written at DEBUG level for the sampled share of events
+            AgentLog.Level logLevel = config.has("log_level") ? AgentLog.Level.valueOf(config.get("log_level").getAsString().toUpperCase()) : AgentLog.Level.INFO;
+            double logPayloadSampleRate = config.has("log_payload_sample_rate") ? config.get("log_payload_sample_rate").getAsDouble() : 0;
+            int logBufferSize = config.has("log_buffer_size") ? config.get("log_buffer_size").getAsInt() : 8192;
+            boolean logJson = config.has("log_format") && config.get("log_format").getAsString().equalsIgnoreCase("json");
+            AgentLog.configure(logLevel, logPayloadSampleRate, logBufferSize, logJson);
+
+            // Tenants: every entry of "tenants" has a "name" and its own CI360 credentials, streams, queue, spool and limits;
+            // missing settings are taken from the top level. Without "tenants" the top level describes one tenant.
+            // The DMP providers of the top level are shared by the tenants: one taxonomy, client and cache per provider.
+            JsonArray tenantEntries = config.has("tenants") ? config.get("tenants").getAsJsonArray() : null;
+            Map<String, JsonObject> tenantSettings = new LinkedHashMap<String, JsonObject>();
+            if (tenantEntries == null) {
+                tenantSettings.put("default", config);
+            } else {
+                for (JsonElement tenantEntry : tenantEntries) {
+                    if (tenantEntry.getAsJsonObject().get("name") == null)
+                        throw new IllegalArgumentException("tenants entry " + tenantEntry + " has no name");
+                    JsonObject settings = entrySettings(config, tenantEntry.getAsJsonObject());
+                    tenantSettings.put(settings.get("name").getAsString(), settings);
                 }
+                if (tenantSettings.isEmpty())
+                    throw new IllegalArgumentException("\"tenants\" is empty");
+            }
 
-                /**
-                 * This method parses the information about the intercepted event.
-                 * If the information does not contain identification attributes,
-                 * then null is returned, which leads to the completion of event handling.
-                 * @param event This parameter is a json string that contains the event fields
-                 * @return JsonObject returns a json object that represents the attributes of the intercepted event
-                 */
-                public JsonObject parseEvent(String event) {
-                    JsonParser parser = new JsonParser();
-                    JsonObject eventJson = parser.parse(event).getAsJsonObject();
-                    JsonObject attributes = eventJson.get("attributes").getAsJsonObject();
-
-//                    if (!attributes.has("subject_id") && !attributes.has("email_id") && !attributes.has("datahub_id"))
-                    if (!attributes.has("datahub_id")) {
-                        System.out.println("Event \"" + attributes.get("eventname").getAsString() + "\" has no identity and rejected");
-
-                        return null;
-                    } else
-                        System.out.println("Event \"" + attributes.get("eventname").getAsString() + "\" received");
-
-                    return attributes;
+            // DMP attributes sent to CI360 by the streams without their own "ci360_attributes" (see AttributeProjection), by tenant
+            Map<String, AttributeProjection> ci360Attributes = new LinkedHashMap<String, AttributeProjection>();
+            for (Map.Entry<String, JsonObject> tenant : tenantSettings.entrySet())
+                ci360Attributes.put(tenant.getKey(), tenant.getValue().has("ci360_attributes")
+                        ? AttributeProjection.compile(tenant.getValue().get("ci360_attributes").getAsJsonArray())
+                        : AttributeProjection.LEGACY);
+
+            final AgentMetrics metrics = new AgentMetrics();
+
+            // DMP providers: every entry of "dmp_providers" has a "name" referenced by "dmp_provider" of "dmp_streams",
+            // the codec of its "provider" ("cleverdata" by default) and its own DMP, taxonomy and cache settings,
+            // missing settings are taken from the top level. Without "dmp_providers" the top level describes one provider.
+            // Every codec decodes only the attributes sent by the streams of its provider, of all the tenants.
+            JsonArray dmpProviders = config.has("dmp_providers") ? config.get("dmp_providers").getAsJsonArray() : null;
+            Map<String, JsonObject> dmpProviderSettings = new LinkedHashMap<String, JsonObject>();
+            if (dmpProviders == null) {
+                dmpProviderSettings.put("default", config);
+            } else {
+                for (JsonElement dmpProvider : dmpProviders) {
+                    JsonObject settings = entrySettings(config, dmpProvider.getAsJsonObject());
+                    dmpProviderSettings.put(settings.get("name").getAsString(), settings);
                 }
-
-                /**
-                 * This method sends a request to the DMP to get information about the user.
-                 * Data from DMP comes in encrypted form, so decryption occurs in the same method.
-                 * Data decryption is carried out using the CleverDataConverter class.
-                 * Depending on the DMP and the data provider, you will need to write your own decryption class.
-                 * The code inside was written based on the demo case.
-                 * You can define your own rules for sending and processing a request.
-                 * @param endpoint This parameter is the url of the DMP endpoint that is used to access server methods.
-                 * @param authorizationToken This parameter is an authorization token.
-                 * @param userId This parameter in the demo case is the user id for which you need to get information.
-                 * @return JsonObject returns a json object that represents the decrypted response from the DMP
-                 */
-                public JsonObject sendDMP(String endpoint, String authorizationToken, String userId) {
-                    Gson gson = new GsonBuilder().setPrettyPrinting().create();
-                    JsonParser parser = new JsonParser();
-
-                    JsonObject codedDataJsonObject = null;
-                    try {
-                        URL url = new URL(endpoint + userId);
-                        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-                        connection.setRequestMethod("GET");
-                        connection.setRequestProperty("Authorization", authorizationToken);
-
-                        BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-                        StringBuffer response = new StringBuffer();
-                        String inputLine = null;
-                        while ((inputLine = in.readLine()) != null)
-                            response.append(inputLine);
-
-                        codedDataJsonObject = parser.parse(response.toString()).getAsJsonObject();
-                        in.close();
-                    } catch (Exception e) {
-                        System.out.println(e.getMessage());
-                        e.printStackTrace();
-
-                        return null;
-                    }
-
-                    // This is where the data is decrypted.
-                    CleverDataConverter cleverDataConverter = new CleverDataConverter(cleverDataReader.attributesTaxonomy, cleverDataReader.dictionaryAttributesTaxonomy);
-                    JsonObject convertedData = null;
-                    if (codedDataJsonObject != null) {
-                        convertedData = cleverDataConverter.getConvertedCookieData(codedDataJsonObject);
-                        System.out.println("Response from DMP:");
-                        System.out.println(gson.toJson(convertedData));
-                    } else {
-                        System.out.println("User not found...");
-
-                        return null;
-                    }
-
-                    return convertedData;
+            }
+            Map<String, Set<String>> dmpAttributes = new LinkedHashMap<String, Set<String>>();
+            for (Map.Entry<String, JsonObject> tenant : tenantSettings.entrySet()) {
+                Map<String, Set<String>> tenantDMPAttributes = StreamRoutes.getDMPAttributes(tenant.getValue().get("dmp_streams").getAsJsonArray(),
+                        ci360Attributes.get(tenant.getKey()), new ArrayList<String>(dmpProviderSettings.keySet()));
+                for (Map.Entry<String, Set<String>> provider : tenantDMPAttributes.entrySet()) {
+                    if (dmpAttributes.containsKey(provider.getKey()))
+                        dmpAttributes.get(provider.getKey()).addAll(provider.getValue());
+                    else
+                        dmpAttributes.put(provider.getKey(), provider.getValue());
                 }
+            }
 
-                /**
-                 * This method sends a request to ci360, which triggers an external event defined in ci360.
-                 * To initiate an external event,
-                 * it is imperative that you specify the user identification attribute and the name of the external event.
-                 * @param externalEvent This parameter is the name of the external event.
-                 * @param userId This parameter is an identification attribute that can be datahub_id.
-                 * @param userData This parameter is a json object with attributes of user received from DMP.
-                 */
-                public void sendCI360(String externalEvent, String userId, JsonObject userData) throws Exception {
-                    Gson gson = new GsonBuilder().setPrettyPrinting().create();
-                    JsonParser parser = new JsonParser();
-                    JsonObject userAttributes = userData.get("attrs").getAsJsonObject();
-
-                    JsonObject toCI360 = new JsonObject();
-                    toCI360.addProperty("eventname", externalEvent);
-                    toCI360.addProperty("datahub_id", userId);
-
-//                    if (EmailValidator.getInstance().isValid(userId))
-//                        toCI360.addProperty("email_id", userId);
-//                    else
-//                        toCI360.addProperty("datahub_id", userId);
-
-//                    for (String attribute : ci360Attributes) {
-//                        if (userAttributes.has(attribute))
-//                            toCI360.add(attribute, userAttributes.get(attribute));
-//                    }
-
-                    if (userAttributes.has("consumerelectronics_interest_type"))
-                        toCI360.addProperty("attribute_1", userAttributes.get("consumerelectronics_interest_type").getAsString());
-                    if (userAttributes.has("fin_acc_balance_avg_3m"))
-                        toCI360.addProperty("attribute_2", userAttributes.get("fin_acc_balance_avg_3m").getAsString());
-                    if (userAttributes.has("leisure_hobby"))
-                        toCI360.addProperty("attribute_3", userAttributes.get("leisure_hobby").getAsString());
-                    if (userAttributes.has("sd_age_estimated"))
-                        toCI360.addProperty("attribute_4", userAttributes.get("sd_age_estimated").getAsString());
-                    if (userAttributes.has("sd_job_pos_category"))
-                        toCI360.addProperty("attribute_5", userAttributes.get("sd_job_pos_category").getAsString());
-                    if (userAttributes.has("consumerelectronics_owner_type"))
-                        toCI360.addProperty("attribute_6", userAttributes.get("consumerelectronics_owner_type").getAsString());
-
-
-                    System.out.println("The following event will be send to CI360:");
-                    System.out.println(gson.toJson(toCI360));
-
-                    System.out.println("Response from CI360:");
-                    System.out.println(gson.toJson(parser.parse(sendToCI360(toCI360.toString(), "events", agent)).getAsJsonObject()));
-                }
+            // Bulk mode: "<config> --bulk <file of user ids> <output file> [--upload]" enriches the users of the file and exits.
+            // The events are built with the "ci360_attributes" of the "bulk_tenant" (the first tenant by default)
+            // and the profiles are requested from the "bulk_dmp_provider" (the first provider by default).
+            final boolean bulkMode = args.length >= 4 && args[1].equals("--bulk");
+            String bulkTenant = config.has("bulk_tenant") ? config.get("bulk_tenant").getAsString() : tenantSettings.keySet().iterator().next();
+            String bulkDMPProvider = config.has("bulk_dmp_provider")
+                    ? config.get("bulk_dmp_provider").getAsString()
+                    : dmpProviderSettings.keySet().iterator().next();
+            if (bulkMode) {
+                if (!tenantSettings.containsKey(bulkTenant))
+                    throw new IllegalArgumentException("Unknown bulk_tenant \"" + bulkTenant + "\"");
+                if (!dmpAttributes.containsKey(bulkDMPProvider))
+                    throw new IllegalArgumentException("Unknown bulk_dmp_provider \"" + bulkDMPProvider + "\"");
+                dmpAttributes.get(bulkDMPProvider).addAll(ci360Attributes.get(bulkTenant).getDMPAttributes());
+            }
 
-                public void streamClosed(ErrorCode errorCode, String message) {
-                    if (exiting) {
-                        System.out.println("Stream closed");
-                    } else {
-                        System.out.println("Stream closed " + errorCode + ": " + message);
-                        try {
-                            Thread.sleep(15000);
-                        } catch (InterruptedException e) {
-
-                        }
-                        try {
-                            //Try to reconnect to the event stream.
-                            agent.startStream(this, true);
-                        } catch (CI360AgentException e) {
-                            System.err.println("ERROR " + e.getErrorCode() + ": " + e.getMessage());
-                        }
-                    }
-                }
-            };
-            agent.startStream(streamListener, true);
+            final Map<String, DMPSource> dmpSources = new LinkedHashMap<String, DMPSource>();
+            for (Map.Entry<String, JsonObject> provider : dmpProviderSettings.entrySet()) {
+                String name = provider.getKey();
+                dmpSources.put(name, createDMPSource(name, provider.getValue(), dmpAttributes.get(name), metrics,
+                        dmpProviders == null ? "" : "_" + name));
+            }
+            if (bulkMode) {
+                JsonObject bulkSettings = tenantSettings.get(bulkTenant);
+                runBulk(bulkSettings, args, createAgent(bulkSettings), dmpSources.get(bulkDMPProvider), ci360Attributes.get(bulkTenant));
+                for (DMPSource dmpSource : dmpSources.values())
+                    dmpSource.stop();
+                AgentLog.flush(2000);
+                System.exit(0);
+            }
+
+            final List<CircuitBreaker> dmpCircuitBreakers = new ArrayList<CircuitBreaker>();
+            for (DMPSource dmpSource : dmpSources.values())
+                dmpCircuitBreakers.add(dmpSource.dmpClient.getCircuitBreaker());
+
+            // Lifecycle settings: reconnects to the stream back off exponentially with jitter from "stream_reconnect_initial_delay_ms"
+            // to "stream_reconnect_max_delay_ms"; on exit or SIGTERM the queued and in-flight events are drained for up to
+            // "shutdown_drain_timeout_ms", what is left is spooled (with "spool_dir") or dropped.
+            long reconnectInitialDelay = config.has("stream_reconnect_initial_delay_ms") ? config.get("stream_reconnect_initial_delay_ms").getAsLong() : 1000;
+            long reconnectMaxDelay = config.has("stream_reconnect_max_delay_ms") ? config.get("stream_reconnect_max_delay_ms").getAsLong() : 60000;
+            long stableConnection = config.has("stream_stable_connection_ms") ? config.get("stream_stable_connection_ms").getAsLong() : 60000;
+            long shutdownDrainTimeout = config.has("shutdown_drain_timeout_ms") ? config.get("shutdown_drain_timeout_ms").getAsLong() : 10000;
+            final AgentLifecycle lifecycle = new AgentLifecycle(reconnectInitialDelay, reconnectMaxDelay, stableConnection, shutdownDrainTimeout);
+
+            // With several tenants the "worker_threads" are shared by their pipelines (see FairSharePool)
+            int workerThreads = config.has("worker_threads") ? config.get("worker_threads").getAsInt() : 16;
+            final FairSharePool workerPool = tenantEntries != null ? new FairSharePool(workerThreads) : null;
+
+            final Map<String, Tenant> tenants = new LinkedHashMap<String, Tenant>();
+            for (Map.Entry<String, JsonObject> tenant : tenantSettings.entrySet()) {
+                String name = tenant.getKey();
+                CI360Agent agent = createAgent(tenant.getValue());
+                tenants.put(name, createTenant(name, tenant.getValue(), agent, new AgentCI360Transport(agent), ci360Attributes.get(name),
+                        dmpSources, dmpCircuitBreakers, workerPool, tenantEntries == null ? metrics : metrics.forTenant(name), lifecycle));
+            }
+            final Tenant firstTenant = tenants.values().iterator().next();
+
+            // Sharding of the users between agent instances ("shard_peers" enables it, see ShardRing): "shard_peers" maps the id
+            // of every instance to its base url and "shard_self" is the id of this one, whose url gives the port of the ingest endpoint.
+            // Events of users owned by another instance are forwarded to it, dropped or handled here ("shard_policy").
+            ShardRouter shardRouter = null;
+            ShardIngestServer shardIngestServer = null;
+            if (config.has("shard_peers")) {
+                if (tenantEntries != null)
+                    throw new IllegalArgumentException("\"shard_peers\" cannot be used with \"tenants\"");
+                Map<String, String> shardPeers = new LinkedHashMap<String, String>();
+                for (Map.Entry<String, JsonElement> peer : config.get("shard_peers").getAsJsonObject().entrySet())
+                    shardPeers.put(peer.getKey(), peer.getValue().getAsString());
+                if (!config.has("shard_self"))
+                    throw new IllegalArgumentException("\"shard_peers\" needs \"shard_self\", the id of this instance");
+                String shardSelf = config.get("shard_self").getAsString();
+                ShardRouter.Policy shardPolicy = config.has("shard_policy")
+                        ? ShardRouter.Policy.valueOf(config.get("shard_policy").getAsString().toUpperCase())
+                        : ShardRouter.Policy.FORWARD;
+                int shardVirtualNodes = config.has("shard_virtual_nodes") ? config.get("shard_virtual_nodes").getAsInt() : 128;
+                String shardToken = config.has("shard_token") ? config.get("shard_token").getAsString() : null;
+                if (shardPolicy == ShardRouter.Policy.FORWARD && (shardToken == null || shardToken.isEmpty()))
+                    throw new IllegalArgumentException("\"shard_policy\" forward needs \"shard_token\", the secret shared by the peers for /ingest");
+                if (!shardPeers.containsKey(shardSelf))
+                    throw new IllegalArgumentException("\"shard_self\" " + shardSelf + " is not one of \"shard_peers\" " + shardPeers.keySet());
+                int shardIngestPort = new URI(shardPeers.get(shardSelf)).getPort();
+                if (shardPolicy == ShardRouter.Policy.FORWARD && shardIngestPort < 1)
+                    throw new IllegalArgumentException("\"shard_peers\" url of " + shardSelf + " needs a port for /ingest: " + shardPeers.get(shardSelf));
+                String shardBindAddress = config.has("shard_bind_address") ? config.get("shard_bind_address").getAsString() : "0.0.0.0";
+                int shardBatchSize = config.has("shard_batch_size") ? config.get("shard_batch_size").getAsInt() : 500;
+                int shardMaxPendingForwards = config.has("shard_max_pending_forwards") ? config.get("shard_max_pending_forwards").getAsInt() : 10000;
+                long shardRequestTimeout = config.has("shard_request_timeout_ms") ? config.get("shard_request_timeout_ms").getAsLong() : 5000;
+                long shardRetry = config.has("shard_retry_ms") ? config.get("shard_retry_ms").getAsLong() : 5000;
+
+                shardRouter = new ShardRouter(new ShardRing(shardPeers.keySet(), shardVirtualNodes), shardSelf, shardPeers, shardPolicy,
+                        shardToken, shardBatchSize, shardMaxPendingForwards, shardRequestTimeout, shardRetry, firstTenant.eventPipeline, metrics);
+                if (shardPolicy == ShardRouter.Policy.FORWARD)
+                    shardIngestServer = new ShardIngestServer(shardBindAddress, shardIngestPort,
+                            shardToken, firstTenant.eventPipeline, metrics);
+                metrics.registerGauge("shard_pending_forwards", "Events waiting to be forwarded to the instance owning the user",
+                        shardRouter::getPendingForwards);
+                AgentLog.info("Instance {} of the shard peers {}", shardSelf, shardPeers.keySet());
+            }
+            final ShardRouter eventRouter = shardRouter;
+            final ShardIngestServer ingestServer = shardIngestServer;
+
+            // Metrics are exported through JMX and, if "metrics_port" is set, at http://<metrics_bind_address>:<metrics_port>/metrics
+            metrics.registerGauge("log_dropped", "Log messages dropped because the log buffer was full", AgentLog::getDroppedMessages);
+            MetricsMBean.register(metrics);
+            int metricsPort = config.has("metrics_port") ? config.get("metrics_port").getAsInt() : 0;
+            String metricsBindAddress = config.has("metrics_bind_address") ? config.get("metrics_bind_address").getAsString() : "127.0.0.1";
+            final MetricsHttpServer metricsServer = metricsPort > 0 ? new MetricsHttpServer(metricsBindAddress, metricsPort, metrics) : null;
+
+            // Shutdown steps, after the streams are stopped: forwarded events reach their owners, the pipelines are drained,
+            // the external events are delivered and the clients are closed.
+            if (eventRouter != null)
+                lifecycle.onStop("shard router", remaining -> eventRouter.stop(Math.max(remaining, 1000)));
+            if (ingestServer != null)
+                lifecycle.onStop("shard ingest", remaining -> ingestServer.stop());
+            lifecycle.onStop("spool replayers", remaining -> {
+                for (Tenant tenant : tenants.values())
+                    if (tenant.spoolReplayer != null)
+                        tenant.spoolReplayer.stop();
+            });
+            lifecycle.onStop("event pipelines", remaining -> {
+                // The pipelines are drained within one deadline: the workers handle all of them while the first one is awaited.
+                long deadline = System.currentTimeMillis() + remaining;
+                for (Tenant tenant : tenants.values())
+                    if (!tenant.eventPipeline.drain(Math.max(0, deadline - System.currentTimeMillis())))
+                        AgentLog.warn("Event pipeline of {} was not drained: {}", tenant.name,
+                                tenant.eventPipeline.getQueueDepth() + " queued, " + tenant.eventPipeline.getHandlingEvents() + " in flight");
+                for (Tenant tenant : tenants.values())
+                    tenant.eventPipeline.shutdown();
+                if (workerPool != null)
+                    workerPool.shutdown();
+            });
+            lifecycle.onStop("ci360 sinks", remaining -> {
+                long deadline = System.currentTimeMillis() + remaining;
+                for (Tenant tenant : tenants.values())
+                    tenant.ci360Sink.close(Math.max(deadline - System.currentTimeMillis(), 1000));
+            });
+            lifecycle.onStop("dmp providers", remaining -> {
+                for (DMPSource dmpSource : dmpSources.values())
+                    dmpSource.stop();
+            });
+            lifecycle.onStop("coalescing windows", remaining -> {
+                for (Tenant tenant : tenants.values())
+                    if (tenant.coalescingWindow != null)
+                        tenant.coalescingWindow.stop();
+            });
+            if (metricsServer != null)
+                lifecycle.onStop("metrics server", remaining -> metricsServer.stop());
+            lifecycle.installShutdownHook();
+
+            for (Tenant tenant : tenants.values())
+                lifecycle.startStream(tenant.name, tenant.agent, createStreamListener(tenant, eventRouter, lifecycle));
 
             // Continue until user enters "exit" to standard input.
+            // The commands of the agent (send, ping, config...) go to the tenant selected with "use <tenant>", the first one by default.
+            Tenant consoleTenant = firstTenant;
             Scanner in = new Scanner(System.in);
             while (true) {
                 String input = in.nextLine();
+                CI360Agent agent = consoleTenant.agent;
                 if (input.equalsIgnoreCase("exit")) {
-                    exiting = true;
-                    agent.stopStream();
+                    lifecycle.shutdown();
                     in.close();
-                    try {
-                        Thread.sleep(2000);
-                    } catch (InterruptedException e) {
-
-                    }
                     System.exit(0);
+                } else if (input.startsWith("use ")) {
+                    Tenant tenant = tenants.get(input.substring(4).trim());
+                    if (tenant == null) {
+                        System.err.println("ERROR: Unknown tenant " + input.substring(4).trim() + ", tenants: " + tenants.keySet());
+                    } else {
+                        consoleTenant = tenant;
+                        System.out.println("SUCCESS: Commands go to tenant " + tenant.name);
+                    }
+                } else if (input.startsWith("tenants")) {
+                    for (Tenant tenant : tenants.values())
+                        System.out.println(tenant.name + (tenant == consoleTenant ? " (selected)" : "")
+                                + ": connection: " + (tenant.agent.isConnected() ? "UP" : "DOWN")
+                                + ", received: " + tenant.metrics.getCount(AgentMetrics.Counter.RECEIVED)
+                                + ", queue depth: " + tenant.eventPipeline.getQueueDepth()
+                                + (workerPool != null ? ", busy workers: " + workerPool.getBusyWorkers(tenant.eventPipeline)
+                                + ", worker time: " + workerPool.getWorkerMillis(tenant.eventPipeline) + " ms" : "")
+                                + ", reconnects: " + lifecycle.getReconnects(tenant.agent));
                 } else if (input.startsWith("send ")) {
                     try {
                         String message = agent.injectEvent(input.substring(5));
@@ -293,6 +314,68 @@ public class SimpleAgentDMP {
                     } catch (CI360AgentException e) {
                         System.err.println("ERROR: " + e.getMessage());
                     }
+                } else if (input.startsWith("queue")) {
+                    for (Tenant tenant : tenants.values())
+                        System.out.println(consolePrefix(tenants, tenant) + "Queue depth: " + tenant.eventPipeline.getQueueDepth()
+                                + ", submitted: " + tenant.eventPipeline.getSubmittedEvents()
+                                + ", dropped: " + tenant.eventPipeline.getDroppedEvents());
+                } else if (input.startsWith("taxonomy")) {
+                    for (DMPSource dmpSource : dmpSources.values())
+                        System.out.println(consolePrefix(dmpSources, dmpSource) + dmpSource.codec.describe());
+                } else if (input.startsWith("cache")) {
+                    for (DMPSource dmpSource : dmpSources.values()) {
+                        DMPProfileCache profileCache = dmpSource.profileCache;
+                        if (profileCache == null)
+                            System.out.println(consolePrefix(dmpSources, dmpSource) + "Profile cache is disabled");
+                        else
+                            System.out.println(consolePrefix(dmpSources, dmpSource) + "Profile cache size: " + profileCache.size()
+                                    + ", estimated bytes: " + profileCache.getEstimatedBytes()
+                                    + ", hits: " + profileCache.getHits()
+                                    + ", misses: " + profileCache.getMisses()
+                                    + ", collapsed loads: " + profileCache.getCollapsedLoads()
+                                    + ", evictions: " + profileCache.getEvictions());
+                    }
+                } else if (input.startsWith("sink")) {
+                    for (Tenant tenant : tenants.values())
+                        System.out.println(consolePrefix(tenants, tenant) + "CI360 delivered: " + tenant.ci360Sink.getDeliveredEvents()
+                                + ", failed: " + tenant.ci360Sink.getFailedEvents()
+                                + ", pending: " + tenant.ci360Sink.getPendingEvents()
+                                + ", overflow: " + tenant.ci360Sink.getOverflowEvents()
+                                + ", bulk uploads: " + tenant.ci360Sink.getBulkUploads());
+                } else if (input.startsWith("dmp")) {
+                    for (DMPSource dmpSource : dmpSources.values())
+                        System.out.println(consolePrefix(dmpSources, dmpSource) + "DMP circuit: " + dmpSource.dmpClient.getCircuitBreaker().getState()
+                                + ", concurrency limit: " + dmpSource.dmpClient.getLimiter().getLimit()
+                                + ", in flight: " + dmpSource.dmpClient.getLimiter().getInFlight());
+                    for (Tenant tenant : tenants.values())
+                        System.out.println(consolePrefix(tenants, tenant) + "Deferred events: " + tenant.eventPipeline.getDeferredEvents());
+                } else if (input.startsWith("spool")) {
+                    for (Tenant tenant : tenants.values()) {
+                        EventSpool spool = tenant.spool;
+                        if (spool == null)
+                            System.out.println(consolePrefix(tenants, tenant) + "Spool is disabled");
+                        else
+                            System.out.println(consolePrefix(tenants, tenant) + "Spool pending events: " + spool.getPendingEvents()
+                                    + ", pending bytes: " + spool.getPendingBytes()
+                                    + ", replay lag: " + spool.getReplayLagMillis() + " ms"
+                                    + ", replayed: " + spool.getReplayedEvents()
+                                    + ", dropped: " + spool.getDroppedEvents());
+                    }
+                } else if (input.startsWith("shard")) {
+                    if (eventRouter == null)
+                        System.out.println("Sharding is disabled");
+                    else
+                        System.out.println("Shard instance: " + eventRouter.getSelfId()
+                                + ", policy: " + eventRouter.getPolicy()
+                                + ", forwarded: " + metrics.getCount(AgentMetrics.Counter.SHARD_FORWARDED)
+                                + ", ingested: " + metrics.getCount(AgentMetrics.Counter.SHARD_INGESTED)
+                                + ", not owned: " + metrics.getCount(AgentMetrics.Counter.SHARD_NOT_OWNED)
+                                + ", fallbacks: " + metrics.getCount(AgentMetrics.Counter.SHARD_FALLBACK)
+                                + ", pending: " + eventRouter.getPendingForwards()
+                                + ", down peers: " + eventRouter.getDownPeers());
+                } else if (input.startsWith("metrics")) {
+                    for (Map.Entry<String, Long> metric : metrics.snapshot().entrySet())
+                        System.out.println(metric.getKey() + ": " + metric.getValue());
                 } else if (input.startsWith("connection")) {
                     boolean status = agent.isConnected();
                     System.out.println("Connection Status: " + (status ? "UP" : "DOWN"));
@@ -329,19 +412,297 @@ public class SimpleAgentDMP {
             System.out.println(e.getMessage());
             e.printStackTrace();
             System.exit(-1);
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            e.printStackTrace();
+            System.exit(-1);
         }
 
     }
 
+    /**
+     * This method merges an entry of "tenants" or "dmp_providers" into the configuration file.
+     *
+     * @param config This parameter is the configuration file, whose settings are taken when the entry does not have them.
+     * @param entry  This parameter is the entry.
+     * @return Returns a copy of the configuration file with the fields of the entry on top of it.
+     */
+    public static JsonObject entrySettings(JsonObject config, JsonObject entry) {
+        JsonObject settings = config.deepCopy();
+        for (Map.Entry<String, JsonElement> field : entry.entrySet())
+            settings.add(field.getKey(), field.getValue());
+
+        return settings;
+    }
+
+    /**
+     * This method creates a DMP provider: loads and compiles its taxonomy with the codec of the provider
+     * and creates the client of its endpoint with the concurrency limit, the circuit breaker and the profile cache.
+     *
+     * @param name                This parameter is the name of the provider.
+     * @param settings            This parameter is the configuration file with the fields of the provider entry on top of it.
+     * @param projectedAttributes This parameter is the names of the DMP attributes sent by the streams of the provider.
+     * @param metrics             This parameter is the metrics of the agent, the gauges of the provider are registered there.
+     * @param metricSuffix        This parameter is appended to the names of the gauges of the provider, empty for a single provider.
+     */
+    public static DMPSource createDMPSource(String name, JsonObject settings, Set<String> projectedAttributes,
+                                             AgentMetrics metrics, String metricSuffix) throws Exception {
+        // DMP settings
+        String dmpEndpoint = settings.get("dmp_endpoint_get_user_info").getAsString();
+        String dmpAuthorizationToken = settings.get("dmp_authorization_token").getAsString();
+
+        // The codec loads the taxonomy of the provider and compiles it into the decoder of the responses.
+        String providerName = settings.has("provider") ? settings.get("provider").getAsString() : CleverDataCodec.PROVIDER_NAME;
+        DMPProviderCodec codec = DMPProviders.create(providerName);
+        codec.configure(settings);
+        DMPClient.ResponseDecoder<DMPProfile> decoder = codec.compile(projectedAttributes);
+
+        // DMP client settings
+        int dmpMaxConnections = settings.has("dmp_max_connections") ? settings.get("dmp_max_connections").getAsInt() : 64;
+        long dmpConnectTimeout = settings.has("dmp_connect_timeout_ms") ? settings.get("dmp_connect_timeout_ms").getAsLong() : 2000;
+        long dmpReadTimeout = settings.has("dmp_read_timeout_ms") ? settings.get("dmp_read_timeout_ms").getAsLong() : 5000;
+        long dmpRequestTimeout = settings.has("dmp_request_timeout_ms") ? settings.get("dmp_request_timeout_ms").getAsLong() : 10000;
+
+        // Adaptive concurrency limit of the DMP requests (AIMD): slow or failed responses shrink the limit
+        int dmpLimitInitial = settings.has("dmp_limit_initial") ? settings.get("dmp_limit_initial").getAsInt() : 20;
+        int dmpLimitMin = settings.has("dmp_limit_min") ? settings.get("dmp_limit_min").getAsInt() : 4;
+        int dmpLimitMax = settings.has("dmp_limit_max") ? settings.get("dmp_limit_max").getAsInt() : dmpMaxConnections;
+        long dmpLimitLatencyThreshold = settings.has("dmp_limit_latency_threshold_ms") ? settings.get("dmp_limit_latency_threshold_ms").getAsLong() : 1000;
+        double dmpLimitBackoff = settings.has("dmp_limit_backoff") ? settings.get("dmp_limit_backoff").getAsDouble() : 0.9;
+        final AdaptiveLimiter dmpLimiter = new AdaptiveLimiter(dmpLimitInitial, dmpLimitMin, dmpLimitMax, dmpLimitLatencyThreshold, dmpLimitBackoff);
+
+        // Circuit breaker of the DMP
+        double dmpBreakerFailureRate = settings.has("dmp_breaker_failure_rate") ? settings.get("dmp_breaker_failure_rate").getAsDouble() : 0.5;
+        int dmpBreakerWindow = settings.has("dmp_breaker_window") ? settings.get("dmp_breaker_window").getAsInt() : 50;
+        int dmpBreakerMinCalls = settings.has("dmp_breaker_min_calls") ? settings.get("dmp_breaker_min_calls").getAsInt() : 20;
+        long dmpBreakerOpen = settings.has("dmp_breaker_open_ms") ? settings.get("dmp_breaker_open_ms").getAsLong() : 10000;
+        int dmpBreakerProbes = settings.has("dmp_breaker_half_open_probes") ? settings.get("dmp_breaker_half_open_probes").getAsInt() : 3;
+        final CircuitBreaker dmpCircuitBreaker = new CircuitBreaker(metricSuffix.isEmpty() ? "DMP" : "DMP " + name,
+                dmpBreakerFailureRate, dmpBreakerWindow, dmpBreakerMinCalls, dmpBreakerOpen, dmpBreakerProbes);
+
+        DMPClient dmpClient = new DMPClient(dmpEndpoint, dmpAuthorizationToken, dmpMaxConnections,
+                dmpConnectTimeout, dmpReadTimeout, dmpRequestTimeout, dmpLimiter, dmpCircuitBreaker);
+
+        // Profile cache settings (a zero TTL disables the cache)
+        long dmpCacheTtl = settings.has("dmp_cache_ttl_seconds") ? settings.get("dmp_cache_ttl_seconds").getAsLong() : 300;
+        long dmpCacheNegativeTtl = settings.has("dmp_cache_negative_ttl_seconds") ? settings.get("dmp_cache_negative_ttl_seconds").getAsLong() : 60;
+        int dmpCacheMaxEntries = settings.has("dmp_cache_max_entries") ? settings.get("dmp_cache_max_entries").getAsInt() : 100000;
+        long dmpCacheMaxBytes = settings.has("dmp_cache_max_bytes") ? settings.get("dmp_cache_max_bytes").getAsLong() : 0;
+        DMPProfileCache profileCache = dmpCacheTtl > 0
+                ? new DMPProfileCache(dmpCacheTtl * 1000, dmpCacheNegativeTtl * 1000, dmpCacheMaxEntries, dmpCacheMaxBytes)
+                : null;
+
+        metrics.registerGauge("dmp_concurrency_limit" + metricSuffix, "Current adaptive limit of concurrent DMP requests", dmpLimiter::getLimit);
+        metrics.registerGauge("dmp_in_flight" + metricSuffix, "DMP requests in flight", dmpLimiter::getInFlight);
+        metrics.registerGauge("dmp_circuit_state" + metricSuffix, "State of the DMP circuit: 0 closed, 1 open, 2 half-open",
+                () -> dmpCircuitBreaker.getState().ordinal());
+        if (codec instanceof CleverDataCodec)
+            metrics.registerGauge("taxonomy_failed_reloads" + metricSuffix, "Failed reloads of the taxonomy",
+                    ((CleverDataCodec) codec).getTaxonomyWatcher()::getFailedReloadCount);
+        if (profileCache != null) {
+            metrics.registerGauge("profile_cache_entries" + metricSuffix, "Users in the profile cache", profileCache::size);
+            metrics.registerGauge("profile_cache_hits" + metricSuffix, "Profile cache hits", profileCache::getHits);
+            metrics.registerGauge("profile_cache_misses" + metricSuffix, "Profile cache misses", profileCache::getMisses);
+        }
+
+        AgentLog.info("DMP provider {} ({}) created", name, codec.getProviderName());
+        return new DMPSource(name, codec, dmpClient, profileCache, decoder);
+    }
+
+    /**
+     * This method enriches the users of a file (see {@link BulkEnricher}).
+     *
+     * @param args      This parameter is the command line: the configuration file, "--bulk", the file of user ids,
+     *                  the output file and optionally "--upload" to upload the output to CI360
+     *                  (needs "ci360_bulk_application_id").
+     * @param dmpSource This parameter is the DMP provider requested for the profiles.
+     */
+    private static void runBulk(JsonObject config, String[] args, CI360Agent agent, DMPSource dmpSource,
+                                AttributeProjection projection) throws Exception {
+        // Bulk settings
+        if (!config.has("bulk_external_event"))
+            throw new IllegalArgumentException("Bulk mode needs \"bulk_external_event\", the name of the external event of the output");
+        String bulkExternalEvent = config.get("bulk_external_event").getAsString();
+        int bulkParallelism = config.has("bulk_parallelism") ? config.get("bulk_parallelism").getAsInt() : 16;
+        int bulkMaxRetries = config.has("bulk_max_retries") ? config.get("bulk_max_retries").getAsInt() : 5;
+        long bulkCheckpointInterval = config.has("bulk_checkpoint_interval_ms") ? config.get("bulk_checkpoint_interval_ms").getAsLong() : 5000;
+        int bulkUploadPartEvents = config.has("bulk_upload_part_events") ? config.get("bulk_upload_part_events").getAsInt() : 100000;
+        boolean upload = args.length >= 5 && args[4].equals("--upload");
+        String bulkApplicationId = config.has("ci360_bulk_application_id") ? config.get("ci360_bulk_application_id").getAsString() : null;
+        if (upload && bulkApplicationId == null)
+            throw new IllegalArgumentException("--upload needs \"ci360_bulk_application_id\"");
+
+        BulkEnricher bulkEnricher = new BulkEnricher(dmpSource, bulkExternalEvent, projection, bulkParallelism, bulkMaxRetries,
+                bulkCheckpointInterval, upload ? new AgentCI360Transport(agent) : null, bulkApplicationId, bulkUploadPartEvents);
+        bulkEnricher.run(new File(args[2]), new File(args[3]));
+    }
+
+    /**
+     * This method creates the CI360 agent of a tenant.
+     *
+     * @param settings This parameter is the configuration file with the fields of the tenant entry on top of it.
+     */
+    private static CI360Agent createAgent(JsonObject settings) throws CI360AgentException {
+        // ci360 settings
+        String ci360Endpoint = settings.get("ci360_endpoint").getAsString();
+        String ci360TenantId = settings.get("ci360_tenant_id").getAsString();
+        String ci360ClientSecret = settings.get("ci360_client_secret").getAsString();
+
+        return new CI360Agent(ci360Endpoint, ci360TenantId, ci360ClientSecret);
+    }
+
+    /**
+     * This method creates a tenant: the delivery of its external events, its spool and its pipeline,
+     * whose routes use the shared DMP providers. The events are handled by the workers of the pool, if any,
+     * within the weight, the maximum workers and the rate limit of the tenant, or by workers of its own.
+     *
+     * @param name               This parameter is the name of the tenant.
+     * @param settings           This parameter is the configuration file with the fields of the tenant entry on top of it.
+     * @param agent              This parameter is the CI360 agent of the tenant.
+     * @param ci360Transport     This parameter is the connection to CI360 used to deliver the external events of the tenant.
+     * @param ci360Attributes    This parameter is the DMP attributes sent to CI360 by the streams without their own.
+     * @param dmpSources         This parameter is the DMP providers by name.
+     * @param dmpCircuitBreakers This parameter is the circuit breakers of the DMP providers, the spool is replayed while they are closed.
+     * @param workerPool         This parameter is the workers shared by the tenants, null for a single tenant.
+     * @param metrics            This parameter is the metrics of the tenant, its gauges are registered there.
+     * @param lifecycle          This parameter is the lifecycle of the agent, it counts the reconnects of the stream of the tenant.
+     */
+    public static Tenant createTenant(String name, JsonObject settings, final CI360Agent agent, CI360Transport ci360Transport,
+                                      AttributeProjection ci360Attributes, Map<String, DMPSource> dmpSources,
+                                      List<CircuitBreaker> dmpCircuitBreakers, FairSharePool workerPool,
+                                      AgentMetrics metrics, AgentLifecycle lifecycle) throws Exception {
+        JsonArray dmpStreams = settings.get("dmp_streams").getAsJsonArray();
+
+        // Worker pool settings: with the shared pool, "tenant_weight" is the share of the worker time of the tenant,
+        // "tenant_max_workers" the workers it may take at once and "tenant_rate_limit" the events it may handle per second
+        int workerThreads = settings.has("worker_threads") ? settings.get("worker_threads").getAsInt() : 16;
+        int workerQueueCapacity = settings.has("worker_queue_capacity") ? settings.get("worker_queue_capacity").getAsInt() : 10000;
+        EventPipeline.OverflowPolicy overflowPolicy = settings.has("worker_overflow_policy")
+                ? EventPipeline.OverflowPolicy.valueOf(settings.get("worker_overflow_policy").getAsString().toUpperCase())
+                : EventPipeline.OverflowPolicy.BLOCK;
+        int tenantWeight = settings.has("tenant_weight") ? settings.get("tenant_weight").getAsInt() : 1;
+        int tenantMaxWorkers = settings.has("tenant_max_workers") ? settings.get("tenant_max_workers").getAsInt() : workerThreads;
+        double tenantRateLimit = settings.has("tenant_rate_limit") ? settings.get("tenant_rate_limit").getAsDouble() : 0;
+
+        // Fallback applied while a DMP is unavailable ("skip", "cached", "defer" or "spool")
+        EventEnricher.DMPFallback dmpFallback = settings.has("dmp_fallback")
+                ? EventEnricher.DMPFallback.valueOf(settings.get("dmp_fallback").getAsString().toUpperCase())
+                : EventEnricher.DMPFallback.SKIP;
+        long dmpDeferDelay = settings.has("dmp_defer_delay_ms") ? settings.get("dmp_defer_delay_ms").getAsLong() : 1000;
+        int dmpDeferMaxAttempts = settings.has("dmp_defer_max_attempts") ? settings.get("dmp_defer_max_attempts").getAsInt() : 3;
+        int dmpDeferMaxEvents = settings.has("dmp_defer_max_events") ? settings.get("dmp_defer_max_events").getAsInt() : workerQueueCapacity;
+        if (dmpFallback == EventEnricher.DMPFallback.CACHED)
+            for (DMPSource dmpSource : dmpSources.values())
+                if (dmpSource.profileCache == null)
+                    AgentLog.warn("dmp_fallback \"cached\" needs the profile cache, events of DMP {} are skipped while it is unavailable", dmpSource.name);
+
+        // Spool of the events that could not be handled during DMP/CI360 outages ("spool_dir" enables it),
+        // with several tenants every tenant spools into the subdirectory of its name
+        final EventSpool spool = settings.has("spool_dir")
+                ? new EventSpool(workerPool != null ? new File(settings.get("spool_dir").getAsString(), name) : new File(settings.get("spool_dir").getAsString()),
+                settings.has("spool_segment_bytes") ? settings.get("spool_segment_bytes").getAsInt() : 64 * 1024 * 1024,
+                settings.has("spool_max_bytes") ? settings.get("spool_max_bytes").getAsLong() : 1024L * 1024 * 1024)
+                : null;
+        int spoolReplayRate = settings.has("spool_replay_rate") ? settings.get("spool_replay_rate").getAsInt() : 100;
+        long spoolReplayBackoff = settings.has("spool_replay_backoff_ms") ? settings.get("spool_replay_backoff_ms").getAsLong() : 5000;
+        if (dmpFallback == EventEnricher.DMPFallback.SPOOL && spool == null)
+            AgentLog.warn("dmp_fallback \"spool\" needs \"spool_dir\", events of {} are dropped while the DMP is unavailable", name);
+
+        // CI360 batching settings (bulk uploads need "ci360_bulk_application_id")
+        int ci360BatchSize = settings.has("ci360_batch_size") ? settings.get("ci360_batch_size").getAsInt() : 1000;
+        long ci360BatchLinger = settings.has("ci360_batch_linger_ms") ? settings.get("ci360_batch_linger_ms").getAsLong() : 20;
+        int ci360BulkThreshold = settings.has("ci360_bulk_threshold") ? settings.get("ci360_bulk_threshold").getAsInt() : 500;
+        String ci360BulkApplicationId = settings.has("ci360_bulk_application_id") ? settings.get("ci360_bulk_application_id").getAsString() : null;
+        int ci360SenderThreads = settings.has("ci360_sender_threads") ? settings.get("ci360_sender_threads").getAsInt() : 16;
+        // Events waiting for CI360 are limited, the workers wait "ci360_pending_wait_ms" for room before the event overflows
+        int ci360MaxPending = settings.has("ci360_max_pending_events") ? settings.get("ci360_max_pending_events").getAsInt() : CI360EventSink.DEFAULT_MAX_PENDING_EVENTS;
+        long ci360PendingWait = settings.has("ci360_pending_wait_ms") ? settings.get("ci360_pending_wait_ms").getAsLong() : CI360EventSink.DEFAULT_PENDING_WAIT_MILLIS;
+        final CI360EventSink ci360Sink = new CI360EventSink(ci360Transport, ci360BatchSize, ci360BatchLinger,
+                ci360BulkThreshold, ci360BulkApplicationId, ci360SenderThreads, spool, ci360MaxPending, ci360PendingWait);
+
+        // Repeated events of a user within "coalesce_window_ms" are merged into the first one (0 disables merging)
+        long coalesceWindow = settings.has("coalesce_window_ms") ? settings.get("coalesce_window_ms").getAsLong() : 0;
+        int coalesceMaxKeys = settings.has("coalesce_max_keys") ? settings.get("coalesce_max_keys").getAsInt() : 100000;
+        final CoalescingWindow coalescingWindow = coalesceWindow > 0 ? new CoalescingWindow(coalesceWindow, coalesceMaxKeys) : null;
+
+        EventEnricher eventEnricher = new EventEnricher(ci360Sink, StreamRoutes.compile(dmpStreams, ci360Attributes, dmpSources), metrics,
+                dmpFallback, dmpDeferDelay, coalescingWindow);
+        int maxDeferAttempts = dmpFallback == EventEnricher.DMPFallback.DEFER ? dmpDeferMaxAttempts : 0;
+        final EventPipeline eventPipeline = workerPool != null
+                ? new EventPipeline(workerPool, workerQueueCapacity, overflowPolicy, eventEnricher, metrics, maxDeferAttempts, dmpDeferMaxEvents, spool)
+                : new EventPipeline(workerThreads, workerQueueCapacity, overflowPolicy, eventEnricher, metrics, maxDeferAttempts, dmpDeferMaxEvents, spool);
+        if (workerPool != null)
+            workerPool.register(name, eventPipeline, tenantWeight, tenantMaxWorkers, tenantRateLimit);
+        final SpoolReplayer spoolReplayer = spool != null
+                ? new SpoolReplayer(spool, eventPipeline, ci360Sink, dmpCircuitBreakers, spoolReplayRate, spoolReplayBackoff)
+                : null;
+        if (spoolReplayer != null)
+            spoolReplayer.start();
+
+        metrics.registerGauge("queue_depth", "Events waiting for a worker", eventPipeline::getQueueDepth);
+        metrics.registerGauge("events_dropped", "Events dropped because the queue was full", eventPipeline::getDroppedEvents);
+        metrics.registerGauge("events_deferred_waiting", "Deferred events waiting to be handled again", eventPipeline::getDeferredEvents);
+        metrics.registerGauge("ci360_pending", "External events waiting for the delivery to CI360", ci360Sink::getPendingEvents);
+        metrics.registerGauge("ci360_overflow", "External events spooled or dropped because too many were waiting for CI360", ci360Sink::getOverflowEvents);
+        metrics.registerGauge("ci360_bulk_uploads", "Batches uploaded to CI360 in bulk", ci360Sink::getBulkUploads);
+        metrics.registerGauge("stream_reconnects", "Reconnects to the CI360 stream", () -> lifecycle.getReconnects(agent));
+        if (workerPool != null) {
+            metrics.registerGauge("workers_busy", "Shared workers handling the events of the tenant", () -> workerPool.getBusyWorkers(eventPipeline));
+            metrics.registerGauge("worker_time_ms", "Time the shared workers spent on the events of the tenant", () -> workerPool.getWorkerMillis(eventPipeline));
+        }
+        if (coalescingWindow != null) {
+            metrics.registerGauge("coalescing_window_keys", "Users and events with an open coalescing window", coalescingWindow::size);
+            metrics.registerGauge("coalescing_window_overflows", "Events not merged because the coalescing window was full", coalescingWindow::getOverflows);
+        }
+        if (spool != null) {
+            metrics.registerGauge("spool_pending_events", "Spooled events waiting for the replay", spool::getPendingEvents);
+            metrics.registerGauge("spool_pending_bytes", "Bytes of the spool waiting for the replay", spool::getPendingBytes);
+            metrics.registerGauge("spool_replay_lag_ms", "Age of the oldest spooled event waiting for the replay", spool::getReplayLagMillis);
+            metrics.registerGauge("spool_replayed", "Spooled events replayed", spool::getReplayedEvents);
+            metrics.registerGauge("spool_dropped", "Events dropped because the spool was full", spool::getDroppedEvents);
+            metrics.registerGauge("ci360_spooled", "External events spooled after a failed delivery", ci360Sink::getSpooledEvents);
+        }
+
+        return new Tenant(name, agent, metrics, ci360Sink, eventPipeline, spool, spoolReplayer, coalescingWindow);
+    }
+
+    /**
+     * This method creates the listener of the stream of a tenant.
+     *
+     * @param tenant      This parameter is the tenant, its pipeline handles the events.
+     * @param eventRouter This parameter is the router of the events between the shard peers, null without sharding.
+     * @param lifecycle   This parameter is the lifecycle of the agent, it reconnects the stream when it is closed.
+     */
+    public static CI360StreamInterface createStreamListener(final Tenant tenant, final ShardRouter eventRouter,
+                                                            final AgentLifecycle lifecycle) {
+        return new CI360StreamInterface() {
+            public boolean processEvent(String event) {
+                // The event is handled by the workers, so the stream thread does not wait for DMP and ci360.
+                // With sharding, only the events of the users owned by this instance stay here.
+                if (!(eventRouter != null ? eventRouter.route(event) : tenant.eventPipeline.submit(event)))
+                    AgentLog.warn("Event queue is full, event dropped");
+
+                return true;
+            }
+
+            public void streamClosed(ErrorCode errorCode, String message) {
+                // The reconnect is scheduled by the lifecycle, the callback thread returns at once.
+                lifecycle.streamClosed(tenant.agent, errorCode, message);
+            }
+        };
+    }
+
+    private static String consolePrefix(Map<String, DMPSource> dmpSources, DMPSource dmpSource) {
+        return dmpSources.size() > 1 ? dmpSource.name + ": " : "";
+    }
+
+    private static String consolePrefix(Map<String, Tenant> tenants, Tenant tenant) {
+        return tenants.size() > 1 ? tenant.name + ": " : "";
+    }
+
     private static JsonObject readConfig(String filepath) throws FileNotFoundException {
         Gson gson = new Gson();
         File jsonFile = Paths.get(filepath).toFile();
         return gson.fromJson(new FileReader(jsonFile), JsonObject.class);
     }
-
-    private static String sendToCI360(String message, String endpoint, CI360Agent agent) throws Exception {
-        ContentResponse response = agent.postRequest(endpoint, message);
-        byte[] messageBytes = response.getContent();
-        return new String(messageBytes);
-    }
 }
@@ -0,0 +1,100 @@
+package DMP_integration_with_CI360;
+
+import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays the {@link EventSpool} at a controlled rate once the dependencies recover.
+ * <br> <br>
+ * Every tick replays at most rate / 10 records, in the order they were spooled. Intercepted events are
+ * put into the {@link EventPipeline} only while no DMP circuit is open and the queue has room;
+ * external events go back to the {@link CI360EventSink}, and a failed delivery pauses the replay for the backoff
+ * (the sink spools the event again). So a recovered dependency gets the backlog gradually instead of all at once.
+ */
+public class SpoolReplayer {
+    private static final long TICK_MILLIS = 100;
+
+    private final EventSpool spool;
+    private final EventPipeline eventPipeline;
+    private final CI360EventSink ci360Sink;
+    private final Collection<CircuitBreaker> dmpCircuitBreakers;
+    private final int recordsPerTick;
+    private final long backoffMillis;
+    private final ScheduledExecutorService scheduler;
+
+    private volatile long pausedUntil;
+
+    /**
+     * @param dmpCircuitBreakers This parameter is the circuit breakers of the DMP providers.
+     * @param ratePerSecond      This parameter is the maximum number of records replayed per second.
+     * @param backoffMillis      This parameter is the pause of the replay after a failed delivery.
+     */
+    public SpoolReplayer(EventSpool spool, EventPipeline eventPipeline, CI360EventSink ci360Sink,
+                         Collection<CircuitBreaker> dmpCircuitBreakers, int ratePerSecond, long backoffMillis) {
+        this.spool = spool;
+        this.eventPipeline = eventPipeline;
+        this.ci360Sink = ci360Sink;
+        this.dmpCircuitBreakers = dmpCircuitBreakers;
+        this.recordsPerTick = (int) Math.max(1, ratePerSecond * TICK_MILLIS / 1000);
+        this.backoffMillis = backoffMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "spool-replayer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void start() {
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    replay();
+                } catch (Exception e) {
+                    AgentLog.error("Spool replay failed: {}", e.getMessage(), e);
+                }
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+        spool.force();
+    }
+
+    private void replay() {
+        for (int i = 0; i < recordsPerTick; i++) {
+            if (System.currentTimeMillis() < pausedUntil)
+                return;
+
+            EventSpool.Record record = spool.peek();
+            if (record == null)
+                return;
+
+            if (record.type == EventSpool.TYPE_EVENT) {
+                if (isDMPCircuitOpen())
+                    return;
+                if (!eventPipeline.offer(record.event))
+                    return;
+            } else {
+                ci360Sink.send(record.event).whenComplete((response, error) -> {
+                    if (error != null)
+                        pausedUntil = System.currentTimeMillis() + backoffMillis;
+                });
+            }
+            spool.commit(record);
+        }
+    }
+
+    private boolean isDMPCircuitOpen() {
+        for (CircuitBreaker dmpCircuitBreaker : dmpCircuitBreakers)
+            if (dmpCircuitBreaker.getState() == CircuitBreaker.State.OPEN)
+                return true;
+
+        return false;
+    }
+}
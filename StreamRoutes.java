@@ -0,0 +1,152 @@
+package DMP_integration_with_CI360;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.*;
+
+/**
+ * The "dmp_streams" section of the configuration file compiled at startup into a map
+ * from the name of the intercepted ci360 event to the external events that it triggers.
+ * An event is looked up once instead of scanning all the streams, and every DMP is requested once
+ * for all the routes of the event.
+ * <br> <br>
+ * A stream may name its DMP provider in "dmp_provider" (the first provider by default). The provider is resolved
+ * when the routes are compiled, and the routes of an event are ordered by provider, so the routes of one
+ * provider follow each other.
+ * <br> <br>
+ * A stream may also define the attributes of its external event in "ci360_attributes" (see {@link AttributeProjection}),
+ * the top-level mapping is used otherwise.
+ */
+public final class StreamRoutes {
+
+    /**
+     * One entry of "dmp_streams": the external ci360 event sent when the intercepted event arrives.
+     */
+    public static final class Route {
+        public final String eventName;
+        public final String ci360ExternalEvent;
+        /**
+         * The DMP provider that is requested for the profile of the user.
+         */
+        public final DMPSource dmpSource;
+        /**
+         * The mapping of the DMP attributes to the attributes of the external event.
+         */
+        public final AttributeProjection projection;
+
+        Route(String eventName, String ci360ExternalEvent, DMPSource dmpSource, AttributeProjection projection) {
+            this.eventName = eventName;
+            this.ci360ExternalEvent = ci360ExternalEvent;
+            this.dmpSource = dmpSource;
+            this.projection = projection;
+        }
+    }
+
+    private final Map<String, List<Route>> routes;
+
+    private StreamRoutes(Map<String, List<Route>> routes) {
+        this.routes = routes;
+    }
+
+    /**
+     * This method compiles the "dmp_streams" section.
+     * Streams without "event_name" or "ci360_external_event" send nothing and are skipped.
+     *
+     * @param dmpStreams        This parameter is the "dmp_streams" array of the configuration file.
+     * @param defaultProjection This parameter is the mapping of the streams without "ci360_attributes".
+     * @param dmpSources        This parameter is the DMP providers by name, the first one is the default.
+     * @return Returns the compiled routes.
+     * @throws IllegalArgumentException if a stream references an unknown provider or its mapping is invalid.
+     */
+    public static StreamRoutes compile(JsonArray dmpStreams, AttributeProjection defaultProjection, Map<String, DMPSource> dmpSources) {
+        if (dmpSources.isEmpty())
+            throw new IllegalArgumentException("No DMP provider is configured");
+        final List<DMPSource> sourceOrder = new ArrayList<DMPSource>(dmpSources.values());
+
+        Map<String, List<Route>> routes = new HashMap<String, List<Route>>();
+        for (JsonElement dmpStreamElement : dmpStreams) {
+            JsonObject dmpStream = dmpStreamElement.getAsJsonObject();
+            if (!isRoutable(dmpStream))
+                continue;
+
+            String eventName = dmpStream.get("event_name").getAsString();
+            List<Route> eventRoutes = routes.get(eventName);
+            if (eventRoutes == null) {
+                eventRoutes = new ArrayList<Route>();
+                routes.put(eventName, eventRoutes);
+            }
+            String providerName = getProviderName(dmpStream, sourceOrder.get(0).name);
+            DMPSource dmpSource = dmpSources.get(providerName);
+            if (dmpSource == null)
+                throw new IllegalArgumentException("Stream of event \"" + eventName + "\" references unknown dmp_provider \""
+                        + providerName + "\"");
+            eventRoutes.add(new Route(eventName, dmpStream.get("ci360_external_event").getAsString(), dmpSource,
+                    getProjection(dmpStream, defaultProjection)));
+        }
+
+        for (Map.Entry<String, List<Route>> entry : routes.entrySet()) {
+            // The sort is stable, so the routes of a provider keep the order of the configuration file.
+            Collections.sort(entry.getValue(), new Comparator<Route>() {
+                public int compare(Route first, Route second) {
+                    return Integer.compare(sourceOrder.indexOf(first.dmpSource), sourceOrder.indexOf(second.dmpSource));
+                }
+            });
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+
+        return new StreamRoutes(routes);
+    }
+
+    /**
+     * This method collects the DMP attributes sent by the streams of every provider, so the codec of the provider
+     * can be compiled to decode only those before the routes are compiled.
+     *
+     * @param dmpStreams        This parameter is the "dmp_streams" array of the configuration file.
+     * @param defaultProjection This parameter is the mapping of the streams without "ci360_attributes".
+     * @param providerNames     This parameter is the names of the DMP providers, the first one is the default.
+     * @return Returns the names of the DMP attributes by provider name (providers without streams have an empty set).
+     */
+    public static Map<String, Set<String>> getDMPAttributes(JsonArray dmpStreams, AttributeProjection defaultProjection,
+                                                           List<String> providerNames) {
+        Map<String, Set<String>> attributes = new HashMap<String, Set<String>>();
+        for (String providerName : providerNames)
+            attributes.put(providerName, new HashSet<String>());
+
+        for (JsonElement dmpStreamElement : dmpStreams) {
+            JsonObject dmpStream = dmpStreamElement.getAsJsonObject();
+            if (!isRoutable(dmpStream))
+                continue;
+
+            Set<String> providerAttributes = attributes.get(getProviderName(dmpStream, providerNames.get(0)));
+            if (providerAttributes != null)
+                providerAttributes.addAll(getProjection(dmpStream, defaultProjection).getDMPAttributes());
+        }
+
+        return attributes;
+    }
+
+    private static boolean isRoutable(JsonObject dmpStream) {
+        return dmpStream.get("event_name") != null && dmpStream.get("ci360_external_event") != null;
+    }
+
+    private static String getProviderName(JsonObject dmpStream, String defaultProviderName) {
+        return dmpStream.get("dmp_provider") != null ? dmpStream.get("dmp_provider").getAsString() : defaultProviderName;
+    }
+
+    private static AttributeProjection getProjection(JsonObject dmpStream, AttributeProjection defaultProjection) {
+        return dmpStream.get("ci360_attributes") != null
+                ? AttributeProjection.compile(dmpStream.get("ci360_attributes").getAsJsonArray())
+                : defaultProjection;
+    }
+
+    /**
+     * @param eventName This parameter is the name of the intercepted event.
+     * @return Returns the routes of the event or an empty list.
+     */
+    public List<Route> get(String eventName) {
+        List<Route> eventRoutes = eventName == null ? null : routes.get(eventName);
+        return eventRoutes != null ? eventRoutes : Collections.<Route>emptyList();
+    }
+}
@@ -0,0 +1,267 @@
+package DMP_integration_with_CI360;
+
+import java.util.*;
+
+/**
+ * Compiled, immutable form of the CleverData taxonomy that is used for decrypting data.
+ * It is built once from {@link AttributesTaxonomy} and the dictionary sheets and replaces the list scans:
+ * numeric attribute ids (primary) and dictionary ids (secondary) are looked up in primitive int maps,
+ * all names and values are deduplicated, so decoding one attribute takes constant time and does not allocate.
+ */
+public final class TaxonomyIndex {
+    /**
+     * Types of significant attributes, their values are sent as is. All other types refer to taxonomy sheets.
+     */
+    public static final Set<String> VALUE_TYPES = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+            "Boolean", "Character", "Byte", "Integer",
+            "Long", "Double", "String", "Enum", "ABoolean",
+            "ACharacter", "AByte", "AInteger", "ALong", "ADouble",
+            "AString", "AEnum", "AAByte", "D-Currency"
+    )));
+
+    /**
+     * Dictionary value that means that the DMP has no information.
+     */
+    public static final String ABSENT_VALUE = "Отсутствует";
+
+    /**
+     * Attribute descriptor: a row of the "Attributes" sheet and the dictionary for its values.
+     */
+    public static final class Attribute {
+        public final String id;
+        public final String name;
+        public final String type;
+        public final boolean valueType;
+        private final Dictionary dictionary;
+
+        Attribute(String id, String name, String type, boolean valueType, Dictionary dictionary) {
+            this.id = id;
+            this.name = name;
+            this.type = type;
+            this.valueType = valueType;
+            this.dictionary = dictionary;
+        }
+
+        /**
+         * This method decodes the value of the attribute.
+         *
+         * @param secondary This parameter is the coded value (the "secondary" field of the DMP response).
+         * @return Returns the decoded value or null if the value must not be sent.
+         */
+        public String decodeValue(String secondary) {
+            if (valueType)
+                return isSendable(secondary) ? secondary : null;
+            if (dictionary == null || secondary == null)
+                return null;
+
+            return dictionary.get(secondary);
+        }
+    }
+
+    /**
+     * Values of one taxonomy sheet. Only the values that can be sent are kept.
+     */
+    static final class Dictionary {
+        private final IntObjectMap<String> numericValues;
+        private final Map<String, String> otherValues;
+
+        Dictionary(IntObjectMap<String> numericValues, Map<String, String> otherValues) {
+            this.numericValues = numericValues;
+            this.otherValues = otherValues;
+        }
+
+        String get(String key) {
+            int numericKey = parseId(key);
+            if (numericKey >= 0)
+                return numericValues.get(numericKey);
+
+            return otherValues.get(key);
+        }
+    }
+
+    private final IntObjectMap<Attribute> numericAttributes;
+    private final Map<String, Attribute> otherAttributes;
+    private final int attributeCount;
+    private final String version;
+
+    private TaxonomyIndex(IntObjectMap<Attribute> numericAttributes, Map<String, Attribute> otherAttributes, int attributeCount, String version) {
+        this.numericAttributes = numericAttributes;
+        this.otherAttributes = otherAttributes;
+        this.attributeCount = attributeCount;
+        this.version = version;
+    }
+
+    /**
+     * This method looks up the attribute by its id.
+     *
+     * @param primary This parameter is the attribute id (the "primary" field of the DMP response).
+     * @return Returns the attribute descriptor or null if the id is not in the taxonomy.
+     */
+    public Attribute getAttribute(String primary) {
+        if (primary == null)
+            return null;
+
+        int numericId = parseId(primary);
+        if (numericId >= 0)
+            return numericAttributes.get(numericId);
+
+        return otherAttributes.get(primary);
+    }
+
+    public int getAttributeCount() {
+        return attributeCount;
+    }
+
+    /**
+     * @return Returns the version of the taxonomy the index was built from.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * This method keeps only the attributes that are sent to ci360, so the other attributes of the DMP response
+     * are skipped by the lookup of their id instead of being decoded. The dictionaries of the dropped attributes
+     * are not referenced by the projected index.
+     *
+     * @param attributeNames This parameter is the names of the attributes to keep.
+     * @return Returns the index with the attributes of the names.
+     */
+    public TaxonomyIndex project(Set<String> attributeNames) {
+        IntObjectMap<Attribute> projectedNumericAttributes = new IntObjectMap<Attribute>(attributeNames.size());
+        Map<String, Attribute> projectedOtherAttributes = new HashMap<String, Attribute>();
+        int projectedCount = 0;
+        for (Attribute attribute : getAttributes()) {
+            if (!attributeNames.contains(attribute.name))
+                continue;
+
+            int numericId = parseId(attribute.id);
+            if (numericId >= 0)
+                projectedNumericAttributes.put(numericId, attribute);
+            else
+                projectedOtherAttributes.put(attribute.id, attribute);
+            projectedCount++;
+        }
+
+        return new TaxonomyIndex(projectedNumericAttributes, projectedOtherAttributes, projectedCount, version);
+    }
+
+    private List<Attribute> getAttributes() {
+        List<Attribute> attributes = numericAttributes.values();
+        attributes.addAll(otherAttributes.values());
+
+        return attributes;
+    }
+
+    /**
+     * This method compiles the taxonomy read from the Excel file.
+     *
+     * @param attributesTaxonomy           This parameter is the "Attributes" sheet.
+     * @param dictionaryAttributesTaxonomy This parameter is the hashmap of the taxonomy sheets.
+     * @return Returns the compiled taxonomy.
+     */
+    public static TaxonomyIndex build(AttributesTaxonomy attributesTaxonomy, Map<String, Map<String, String>> dictionaryAttributesTaxonomy) {
+        return build(attributesTaxonomy, dictionaryAttributesTaxonomy, "unknown");
+    }
+
+    /**
+     * This method compiles the taxonomy read from the Excel file.
+     *
+     * @param attributesTaxonomy           This parameter is the "Attributes" sheet.
+     * @param dictionaryAttributesTaxonomy This parameter is the hashmap of the taxonomy sheets.
+     * @param version                      This parameter is the version of the taxonomy.
+     * @return Returns the compiled taxonomy.
+     */
+    public static TaxonomyIndex build(AttributesTaxonomy attributesTaxonomy, Map<String, Map<String, String>> dictionaryAttributesTaxonomy, String version) {
+        Map<String, String> strings = new HashMap<String, String>();
+
+        Map<String, Dictionary> dictionaries = new HashMap<String, Dictionary>();
+        for (Map.Entry<String, Map<String, String>> sheet : dictionaryAttributesTaxonomy.entrySet()) {
+            IntObjectMap<String> numericValues = new IntObjectMap<String>(sheet.getValue().size());
+            Map<String, String> otherValues = new HashMap<String, String>();
+            for (Map.Entry<String, String> entry : sheet.getValue().entrySet()) {
+                String key = entry.getKey(), value = entry.getValue();
+                if (key == null || !isSendable(value))
+                    continue;
+
+                value = canonical(strings, value);
+                int numericKey = parseId(key);
+                if (numericKey >= 0)
+                    numericValues.put(numericKey, value);
+                else
+                    otherValues.put(key, value);
+            }
+            dictionaries.put(sheet.getKey(), new Dictionary(numericValues, otherValues));
+        }
+
+        int size = attributesTaxonomy.ids.size();
+        IntObjectMap<Attribute> numericAttributes = new IntObjectMap<Attribute>(size);
+        Map<String, Attribute> otherAttributes = new HashMap<String, Attribute>();
+        int attributeCount = 0;
+        for (int i = 0; i < size; i++) {
+            String id = attributesTaxonomy.ids.get(i);
+            if (id == null || i >= attributesTaxonomy.names.size() || i >= attributesTaxonomy.types.size())
+                continue;
+
+            String type = attributesTaxonomy.types.get(i);
+            boolean valueType = VALUE_TYPES.contains(type);
+            Attribute attribute = new Attribute(id, canonical(strings, attributesTaxonomy.names.get(i)), type, valueType,
+                    valueType ? null : dictionaries.get(type));
+
+            // The first row with the id wins, as List.indexOf did before.
+            int numericId = parseId(id);
+            if (numericId >= 0) {
+                if (numericAttributes.get(numericId) == null) {
+                    numericAttributes.put(numericId, attribute);
+                    attributeCount++;
+                }
+            } else if (!otherAttributes.containsKey(id)) {
+                otherAttributes.put(id, attribute);
+                attributeCount++;
+            }
+        }
+
+        return new TaxonomyIndex(numericAttributes, otherAttributes, attributeCount, version);
+    }
+
+    /**
+     * @return Returns false for the values that are not sent to ci360: empty, "0" and {@link #ABSENT_VALUE}.
+     */
+    static boolean isSendable(String value) {
+        return value != null && !value.isEmpty() && !value.equals(ABSENT_VALUE) && !value.equals("0");
+    }
+
+    /**
+     * This method parses a non-negative decimal id without allocation.
+     * Ids with leading zeros or out of the int range are not numeric, they are looked up as strings.
+     *
+     * @return Returns the id or -1 if the string is not a canonical non-negative int.
+     */
+    static int parseId(String id) {
+        int length = id.length();
+        if (length == 0 || length > 10 || (length > 1 && id.charAt(0) == '0'))
+            return -1;
+
+        long value = 0;
+        for (int i = 0; i < length; i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            value = value * 10 + (c - '0');
+        }
+
+        return value <= Integer.MAX_VALUE ? (int) value : -1;
+    }
+
+    private static String canonical(Map<String, String> strings, String value) {
+        if (value == null)
+            return null;
+
+        String existing = strings.get(value);
+        if (existing != null)
+            return existing;
+        strings.put(value, value);
+
+        return value;
+    }
+}
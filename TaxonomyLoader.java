@@ -0,0 +1,71 @@
+package DMP_integration_with_CI360;
+
+import java.io.File;
+import java.time.Instant;
+
+/**
+ * Loads the taxonomy for the agent: from the binary snapshot when it is up to date,
+ * otherwise from the Excel file, after which the snapshot is recompiled for the next start.
+ */
+public final class TaxonomyLoader {
+    public static final String DEFAULT_TAXONOMY_PATH = "cleverdata_taxonomy_client.xlsm";
+
+    private TaxonomyLoader() {
+    }
+
+    public static String defaultSnapshotPath(String taxonomyPath) {
+        return taxonomyPath + ".snapshot";
+    }
+
+    /**
+     * @return Returns the version of the taxonomy: the name and the modification time of the Excel file
+     * (or of the snapshot when there is no Excel file).
+     */
+    public static String version(String taxonomyPath, String snapshotPath) {
+        File file = new File(taxonomyPath);
+        if (!file.isFile())
+            file = new File(snapshotPath);
+
+        return file.getName() + "@" + Instant.ofEpochMilli(file.lastModified());
+    }
+
+    /**
+     * @param taxonomyPath This parameter is the path to the Excel file with the taxonomy.
+     * @param snapshotPath This parameter is the path to the binary snapshot.
+     * @param readerType   This parameter is the reader of the Excel file: "streaming" or "dom".
+     * @return Returns the reader with the loaded taxonomy.
+     * @throws IllegalStateException if the Excel file could not be read or has no attributes;
+     *                               then the snapshot is not written.
+     */
+    public static ReaderInterface load(String taxonomyPath, String snapshotPath, String readerType) {
+        if (TaxonomySnapshot.isFresh(snapshotPath, taxonomyPath)) {
+            try {
+                long start = System.nanoTime();
+                ReaderInterface reader = new TaxonomySnapshotReader(snapshotPath);
+                AgentLog.info("Taxonomy loaded from snapshot {} in {} ms", snapshotPath, (System.nanoTime() - start) / 1000000);
+
+                return reader;
+            } catch (Exception e) {
+                AgentLog.warn("Taxonomy snapshot {} is unreadable: {}", snapshotPath, e.getMessage());
+            }
+        }
+
+        long start = System.nanoTime();
+        ReaderInterface reader = readerType.equalsIgnoreCase("dom")
+                ? new CleverDataReader(taxonomyPath)
+                : new CleverDataStreamingReader(taxonomyPath);
+        AgentLog.info("Taxonomy loaded from {} in {} ms", taxonomyPath, (System.nanoTime() - start) / 1000000);
+
+        // An empty taxonomy means the file is being written, it must neither be used nor written into the snapshot.
+        if (reader.getAttributesTaxonomy().ids.isEmpty())
+            throw new IllegalStateException("Taxonomy file " + taxonomyPath + " has no attributes");
+
+        try {
+            TaxonomySnapshot.write(reader, taxonomyPath, snapshotPath);
+        } catch (Exception e) {
+            AgentLog.warn("Taxonomy snapshot {} was not written: {}", snapshotPath, e.getMessage());
+        }
+
+        return reader;
+    }
+}
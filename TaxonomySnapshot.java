@@ -0,0 +1,172 @@
+package DMP_integration_with_CI360;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of the taxonomy, compiled from the Excel file by {@link TaxonomySnapshotCompiler}
+ * and loaded by {@link TaxonomySnapshotReader}.
+ * <br> <br>
+ * Layout (big-endian):
+ * <br> header: magic "CDTX", format version, length and modification time of the source Excel file,
+ * payload length, CRC32 of the payload;
+ * <br> string table: count, length of the UTF-8 blob, end offsets of the strings, UTF-8 blob;
+ * <br> attributes: count, then the columns ids, names, shortNames, types, descriptions
+ * as arrays of string table indexes (-1 for null);
+ * <br> dictionaries: count, then for every sheet: sheet name index, entry count, key indexes, value indexes.
+ */
+public final class TaxonomySnapshot {
+    public static final int MAGIC = 0x43445458;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4 + 4;
+
+    private TaxonomySnapshot() {
+    }
+
+    /**
+     * This method checks that the snapshot exists and was compiled from the current version of the Excel file.
+     *
+     * @param snapshotPath This parameter is the path to the snapshot.
+     * @param sourcePath   This parameter is the path to the Excel file with the taxonomy.
+     * @return Returns false if the snapshot is missing, unreadable or stale.
+     */
+    public static boolean isFresh(String snapshotPath, String sourcePath) {
+        File snapshot = new File(snapshotPath);
+        if (!snapshot.isFile() || snapshot.length() < HEADER_SIZE)
+            return false;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        try (RandomAccessFile file = new RandomAccessFile(snapshot, "r")) {
+            file.readFully(header.array());
+        } catch (IOException e) {
+            return false;
+        }
+        if (header.getInt() != MAGIC || header.getInt() != VERSION)
+            return false;
+
+        File source = new File(sourcePath);
+        // Without the Excel file the snapshot is the only taxonomy there is.
+        if (!source.isFile())
+            return true;
+
+        return header.getLong() == source.length() && header.getLong() == source.lastModified();
+    }
+
+    /**
+     * This method writes the taxonomy to the snapshot file.
+     * The file is written next to the target and renamed, so a reader never sees a partial snapshot.
+     *
+     * @param reader       This parameter is the reader with the loaded taxonomy.
+     * @param sourcePath   This parameter is the path to the Excel file the taxonomy was read from.
+     * @param snapshotPath This parameter is the path to the snapshot.
+     */
+    public static void write(ReaderInterface reader, String sourcePath, String snapshotPath) throws IOException {
+        AttributesTaxonomy attributesTaxonomy = reader.getAttributesTaxonomy();
+        Map<String, Map<String, String>> dictionaries = reader.getDictionaryAttributesTaxonomy();
+
+        StringTable strings = new StringTable();
+        int attributeCount = attributesTaxonomy.ids.size();
+        List<List<String>> columns = Arrays.asList(attributesTaxonomy.ids, attributesTaxonomy.names,
+                attributesTaxonomy.shortNames, attributesTaxonomy.types, attributesTaxonomy.descriptions);
+        int[][] attributeColumns = new int[columns.size()][attributeCount];
+        for (int column = 0; column < columns.size(); column++) {
+            List<String> values = columns.get(column);
+            for (int i = 0; i < attributeCount; i++)
+                attributeColumns[column][i] = strings.add(i < values.size() ? values.get(i) : null);
+        }
+
+        List<int[]> sheets = new ArrayList<int[]>();
+        for (Map.Entry<String, Map<String, String>> sheet : dictionaries.entrySet()) {
+            Map<String, String> entries = sheet.getValue();
+            int[] sheetData = new int[2 + 2 * entries.size()];
+            sheetData[0] = strings.add(sheet.getKey());
+            sheetData[1] = entries.size();
+            int i = 0;
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                sheetData[2 + i] = strings.add(entry.getKey());
+                sheetData[2 + entries.size() + i] = strings.add(entry.getValue());
+                i++;
+            }
+            sheets.add(sheetData);
+        }
+
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(payloadBytes);
+        strings.writeTo(payload);
+        payload.writeInt(attributeCount);
+        for (int[] column : attributeColumns)
+            for (int index : column)
+                payload.writeInt(index);
+        payload.writeInt(sheets.size());
+        for (int[] sheetData : sheets)
+            for (int value : sheetData)
+                payload.writeInt(value);
+        payload.flush();
+
+        byte[] body = payloadBytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+
+        File source = new File(sourcePath);
+        File target = new File(snapshotPath);
+        File temp = new File(target.getAbsolutePath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temp))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(source.length());
+            out.writeLong(source.lastModified());
+            out.writeInt(body.length);
+            out.writeInt((int) crc.getValue());
+            out.write(body);
+        }
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Deduplicating string table of the snapshot.
+     */
+    private static final class StringTable {
+        private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+        private final List<byte[]> values = new ArrayList<byte[]>();
+
+        int add(String value) {
+            if (value == null)
+                return -1;
+
+            Integer index = indexes.get(value);
+            if (index == null) {
+                index = values.size();
+                indexes.put(value, index);
+                values.add(value.getBytes(StandardCharsets.UTF_8));
+            }
+
+            return index;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            int length = 0;
+            for (byte[] value : values)
+                length += value.length;
+
+            out.writeInt(values.size());
+            out.writeInt(length);
+            int offset = 0;
+            for (byte[] value : values) {
+                offset += value.length;
+                out.writeInt(offset);
+            }
+            for (byte[] value : values)
+                out.write(value);
+        }
+    }
+}
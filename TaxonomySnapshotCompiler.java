@@ -0,0 +1,27 @@
+package DMP_integration_with_CI360;
+
+/**
+ * Tool that compiles the Excel file with the taxonomy into the binary snapshot (see {@link TaxonomySnapshot}).
+ * <br> <br>
+ * Usage: java DMP_integration_with_CI360.TaxonomySnapshotCompiler [path to the taxonomy file] [path to the snapshot]
+ */
+public class TaxonomySnapshotCompiler {
+
+    public static void main(String[] args) {
+        String taxonomyPath = args.length > 0 ? args[0] : TaxonomyLoader.DEFAULT_TAXONOMY_PATH;
+        String snapshotPath = args.length > 1 ? args[1] : TaxonomyLoader.defaultSnapshotPath(taxonomyPath);
+
+        try {
+            long start = System.nanoTime();
+            ReaderInterface reader = new CleverDataStreamingReader(taxonomyPath);
+            TaxonomySnapshot.write(reader, taxonomyPath, snapshotPath);
+            System.out.println("Taxonomy snapshot " + snapshotPath + " compiled in " + (System.nanoTime() - start) / 1000000 + " ms: "
+                    + reader.getAttributesTaxonomy().ids.size() + " attributes, "
+                    + reader.getDictionaryAttributesTaxonomy().size() + " dictionary sheets");
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            e.printStackTrace();
+            System.exit(-1);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package DMP_integration_with_CI360;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Class for reading the binary taxonomy snapshot (see {@link TaxonomySnapshot}).
+ * The file is memory-mapped, its checksum is verified and the string table and id arrays are decoded
+ * straight from the mapping, which takes milliseconds instead of parsing the Excel file.
+ */
+public class TaxonomySnapshotReader implements ReaderInterface {
+    public AttributesTaxonomy attributesTaxonomy = new AttributesTaxonomy();
+    public Map<String, Map<String, String>> dictionaryAttributesTaxonomy = new HashMap<String, Map<String, String>>();
+
+    /**
+     * @param path This parameter is the path to the snapshot.
+     * @throws IOException if the snapshot cannot be read, has another format version or is corrupted.
+     */
+    public TaxonomySnapshotReader(String path) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(path, "r"); FileChannel channel = file.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            read(buffer);
+        }
+    }
+
+    public AttributesTaxonomy getAttributesTaxonomy() {
+        return attributesTaxonomy;
+    }
+
+    public Map<String, Map<String, String>> getDictionaryAttributesTaxonomy() {
+        return dictionaryAttributesTaxonomy;
+    }
+
+    private void read(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < TaxonomySnapshot.HEADER_SIZE || buffer.getInt() != TaxonomySnapshot.MAGIC)
+            throw new IOException("Not a taxonomy snapshot");
+        int version = buffer.getInt();
+        if (version != TaxonomySnapshot.VERSION)
+            throw new IOException("Unsupported taxonomy snapshot version " + version);
+        buffer.getLong();
+        buffer.getLong();
+        int payloadLength = buffer.getInt();
+        int checksum = buffer.getInt();
+        if (payloadLength != buffer.remaining())
+            throw new IOException("Truncated taxonomy snapshot");
+
+        ByteBuffer payload = buffer.slice();
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != checksum)
+            throw new IOException("Taxonomy snapshot checksum mismatch");
+
+        String[] strings = readStrings(payload);
+
+        int attributeCount = payload.getInt();
+        List<List<String>> columns = Arrays.asList(attributesTaxonomy.ids, attributesTaxonomy.names,
+                attributesTaxonomy.shortNames, attributesTaxonomy.types, attributesTaxonomy.descriptions);
+        for (List<String> column : columns)
+            for (int i = 0; i < attributeCount; i++)
+                column.add(string(strings, payload.getInt()));
+
+        int sheetCount = payload.getInt();
+        for (int sheet = 0; sheet < sheetCount; sheet++) {
+            String sheetName = string(strings, payload.getInt());
+            int entryCount = payload.getInt();
+            int keysPosition = payload.position();
+            int valuesPosition = keysPosition + 4 * entryCount;
+            Map<String, String> idDescription = new HashMap<String, String>(entryCount * 4 / 3 + 1);
+            for (int i = 0; i < entryCount; i++)
+                idDescription.put(string(strings, payload.getInt(keysPosition + 4 * i)), string(strings, payload.getInt(valuesPosition + 4 * i)));
+            payload.position(valuesPosition + 4 * entryCount);
+            dictionaryAttributesTaxonomy.put(sheetName, idDescription);
+        }
+    }
+
+    private static String[] readStrings(ByteBuffer payload) {
+        int count = payload.getInt();
+        int length = payload.getInt();
+        int offsetsPosition = payload.position();
+        int blobPosition = offsetsPosition + 4 * count;
+
+        byte[] blob = new byte[length];
+        payload.position(blobPosition);
+        payload.get(blob);
+
+        String[] strings = new String[count];
+        int start = 0;
+        for (int i = 0; i < count; i++) {
+            int end = payload.getInt(offsetsPosition + 4 * i);
+            strings[i] = new String(blob, start, end - start, StandardCharsets.UTF_8);
+            start = end;
+        }
+
+        return strings;
+    }
+
+    private static String string(String[] strings, int index) {
+        return index < 0 ? null : strings[index];
+    }
+}
@@ -0,0 +1,130 @@
+package DMP_integration_with_CI360;
+
+import java.io.File;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the taxonomy file and its snapshot and reloads the taxonomy without restarting the stream.
+ * The files are polled on a background thread; when they change, the taxonomy is loaded and compiled
+ * on that thread and the new {@link TaxonomyIndex} is swapped into the converter in one volatile write.
+ * Events that are being decrypted keep the index they started with, processEvent is never paused.
+ */
+public class TaxonomyWatcher {
+    private final String taxonomyPath;
+    private final String snapshotPath;
+    private final String readerType;
+    private final CleverDataConverter converter;
+    private final ScheduledExecutorService scheduler;
+
+    private String fileSignature;
+    private volatile long lastReloadMillis = -1;
+    private volatile long lastReloadTime;
+    private volatile long reloadCount;
+    private volatile long failedReloadCount;
+
+    /**
+     * @param taxonomyPath This parameter is the path to the Excel file with the taxonomy.
+     * @param snapshotPath This parameter is the path to the binary snapshot.
+     * @param readerType   This parameter is the reader of the Excel file: "streaming" or "dom".
+     * @param converter    This parameter is the converter that receives the new taxonomy.
+     */
+    public TaxonomyWatcher(String taxonomyPath, String snapshotPath, String readerType, CleverDataConverter converter) {
+        this.taxonomyPath = taxonomyPath;
+        this.snapshotPath = snapshotPath;
+        this.readerType = readerType;
+        this.converter = converter;
+        this.fileSignature = fileSignature();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "taxonomy-watcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * This method starts polling the files.
+     *
+     * @param intervalSeconds This parameter is the polling interval.
+     */
+    public void start(long intervalSeconds) {
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                checkForChanges();
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * This method reloads the taxonomy if the Excel file or the snapshot changed since the last load.
+     * A failed load (any error of the reader, e.g. a half-written file) or an empty taxonomy keeps the current taxonomy
+     * and the snapshot, counts as a failed reload and is retried on the next check.
+     */
+    void checkForChanges() {
+        String signature = fileSignature();
+        if (signature.equals(fileSignature))
+            return;
+
+        long start = System.nanoTime();
+        try {
+            String version = TaxonomyLoader.version(taxonomyPath, snapshotPath);
+            ReaderInterface reader = TaxonomyLoader.load(taxonomyPath, snapshotPath, readerType);
+            TaxonomyIndex taxonomyIndex = TaxonomyIndex.build(reader.getAttributesTaxonomy(), reader.getDictionaryAttributesTaxonomy(), version);
+            if (taxonomyIndex.getAttributeCount() == 0) {
+                failedReloadCount++;
+                AgentLog.warn("Taxonomy {} has no attributes, reload skipped", version);
+                return;
+            }
+
+            converter.setTaxonomyIndex(taxonomyIndex);
+            // Loading may have rewritten the snapshot, take the signature after it.
+            fileSignature = fileSignature();
+            lastReloadMillis = (System.nanoTime() - start) / 1000000;
+            lastReloadTime = System.currentTimeMillis();
+            reloadCount++;
+            AgentLog.info("Taxonomy reloaded: {} in {} ms", version, lastReloadMillis);
+        } catch (Exception e) {
+            failedReloadCount++;
+            AgentLog.error("Taxonomy reload failed: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return Returns the version of the taxonomy used for decrypting data.
+     */
+    public String getActiveVersion() {
+        return converter.getTaxonomyIndex().getVersion();
+    }
+
+    /**
+     * @return Returns the duration of the last successful reload in milliseconds, -1 if there was no reload.
+     */
+    public long getLastReloadMillis() {
+        return lastReloadMillis;
+    }
+
+    public long getLastReloadTime() {
+        return lastReloadTime;
+    }
+
+    public long getReloadCount() {
+        return reloadCount;
+    }
+
+    public long getFailedReloadCount() {
+        return failedReloadCount;
+    }
+
+    private String fileSignature() {
+        File taxonomy = new File(taxonomyPath), snapshot = new File(snapshotPath);
+        return taxonomy.length() + ":" + taxonomy.lastModified() + ":" + snapshot.length() + ":" + snapshot.lastModified();
+    }
+}
@@ -0,0 +1,40 @@
+package DMP_integration_with_CI360;
+
+import com.sas.mkt.agent.sdk.CI360Agent;
+
+/**
+ * One CI360 tenant hosted by the agent: its connection to CI360, its pipeline and the delivery of its external events.
+ * Every tenant has its own stream, queue, sink, spool and metrics; the DMP providers (taxonomies, clients and caches)
+ * and, with several tenants, the workers ({@link FairSharePool}) are shared.
+ */
+public final class Tenant {
+    public final String name;
+    public final CI360Agent agent;
+    public final AgentMetrics metrics;
+    public final CI360EventSink ci360Sink;
+    public final EventPipeline eventPipeline;
+    /**
+     * The spool of the tenant, null if spooling is disabled.
+     */
+    public final EventSpool spool;
+    /**
+     * The replayer of the spool, null if spooling is disabled.
+     */
+    public final SpoolReplayer spoolReplayer;
+    /**
+     * The window merging the repeated events of a user, null if merging is disabled.
+     */
+    public final CoalescingWindow coalescingWindow;
+
+    public Tenant(String name, CI360Agent agent, AgentMetrics metrics, CI360EventSink ci360Sink, EventPipeline eventPipeline,
+                  EventSpool spool, SpoolReplayer spoolReplayer, CoalescingWindow coalescingWindow) {
+        this.name = name;
+        this.agent = agent;
+        this.metrics = metrics;
+        this.ci360Sink = ci360Sink;
+        this.eventPipeline = eventPipeline;
+        this.spool = spool;
+        this.spoolReplayer = spoolReplayer;
+        this.coalescingWindow = coalescingWindow;
+    }
+}
@@ -0,0 +1,78 @@
+package DMP_integration_with_CI360.benchmarks;
+
+import DMP_integration_with_CI360.CleverDataConverter;
+import DMP_integration_with_CI360.DMPProfile;
+import DMP_integration_with_CI360.TaxonomyIndex;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decryption of the DMP profile with the compiled taxonomy, at realistic numbers of attributes per profile:
+ * streaming into the compact profile kept by the cache, and from the json tree of the response into a json object.
+ * With "projectedAttributes" set, only that many attributes of the taxonomy are decoded (as for the attributes
+ * sent to CI360), the others are skipped.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodeBenchmark {
+    private static final int RESPONSES = 256;
+
+    @Param({"20", "100", "500"})
+    public int attributeCount;
+
+    @Param({"5000"})
+    public int taxonomySize;
+
+    @Param({"0", "6"})
+    public int projectedAttributes;
+
+    private CleverDataConverter converter;
+    private String[] responses;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        SyntheticTaxonomy taxonomy = new SyntheticTaxonomy(taxonomySize, 50, 200, 1);
+        Set<String> projection = null;
+        if (projectedAttributes > 0) {
+            projection = new HashSet<String>();
+            for (int i = 0; i < projectedAttributes; i++)
+                projection.add(taxonomy.getAttributesTaxonomy().names.get(i * (taxonomySize / projectedAttributes)));
+        }
+        converter = new CleverDataConverter(TaxonomyIndex.build(taxonomy.getAttributesTaxonomy(), taxonomy.getDictionaryAttributesTaxonomy()),
+                projection);
+
+        Random random = new Random(2);
+        responses = new String[RESPONSES];
+        for (int i = 0; i < RESPONSES; i++)
+            responses[i] = taxonomy.encodedProfile("user" + i, attributeCount, random);
+    }
+
+    private String nextResponse() {
+        next = (next + 1) & (RESPONSES - 1);
+        return responses[next];
+    }
+
+    @Benchmark
+    public DMPProfile compact() throws IOException {
+        return converter.decodeProfile(new JsonReader(new StringReader(nextResponse())));
+    }
+
+    @Benchmark
+    public JsonObject jsonTree() {
+        return converter.getConvertedCookieData(JsonParser.parseString(nextResponse()).getAsJsonObject());
+    }
+}
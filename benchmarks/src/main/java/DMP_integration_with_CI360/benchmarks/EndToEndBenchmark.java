@@ -0,0 +1,91 @@
+package DMP_integration_with_CI360.benchmarks;
+
+import DMP_integration_with_CI360.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Full handling of an intercepted event by {@link EventEnricher} (what a worker does for processEvent):
+ * parsing, the DMP request to {@link StubDMPServer}, decryption and the delivery to {@link StubCI360Server}.
+ * An operation ends when ci360 answered the batch of its event, so the time includes the linger of the batch.
+ * Every operation is an event of a new user, so the profile cache does not hide the DMP round trip
+ * unless the "cached" parameter is set, in which case a small set of users is reused.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(16)
+@Fork(1)
+public class EndToEndBenchmark {
+
+    @Param({"100"})
+    public int attributeCount;
+
+    @Param({"0"})
+    public long dmpLatencyMillis;
+
+    @Param({"false", "true"})
+    public boolean cached;
+
+    private StubDMPServer dmpServer;
+    private StubCI360Server ci360Server;
+    private DMPClient dmpClient;
+    private CI360EventSink ci360Sink;
+    private EventEnricher enricher;
+    private final AtomicLong users = new AtomicLong();
+    /**
+     * The delivery of the event last handled by the thread, the enricher does not wait for it.
+     */
+    private final ThreadLocal<CompletableFuture<String>> delivery = new ThreadLocal<CompletableFuture<String>>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        StubDMPServer.useNoDelay();
+        // Only warnings are logged, otherwise the benchmark would measure the console.
+        AgentLog.configure(AgentLog.Level.WARN, 0, 8192, false);
+
+        SyntheticTaxonomy taxonomy = new SyntheticTaxonomy(5000, 50, 200, 1);
+        dmpServer = new StubDMPServer(0, taxonomy, attributeCount, 32);
+        dmpServer.setLatencyMillis(dmpLatencyMillis);
+        ci360Server = new StubCI360Server(0, 32);
+
+        dmpClient = new DMPClient(dmpServer.getEndpoint(), "token", 64, 2000, 5000, 10000);
+        ci360Sink = new CI360EventSink(new HttpCI360Transport(ci360Server.getBaseUrl()), 100, 5, Integer.MAX_VALUE, null, 16) {
+            @Override
+            public CompletableFuture<String> send(String event) {
+                CompletableFuture<String> result = super.send(event);
+                delivery.set(result);
+                return result;
+            }
+        };
+        DMPProfileCache profileCache = cached ? new DMPProfileCache(600000, 600000, 100000, 0) : null;
+        CleverDataConverter converter = new CleverDataConverter(TaxonomyIndex.build(taxonomy.getAttributesTaxonomy(), taxonomy.getDictionaryAttributesTaxonomy()));
+        DMPSource dmpSource = new DMPSource("default", null, dmpClient, profileCache, converter::decodeProfile);
+        enricher = new EventEnricher(ci360Sink, StreamRoutes.compile(Events.STREAMS, AttributeProjection.LEGACY, Collections.singletonMap(dmpSource.name, dmpSource)),
+                new AgentMetrics());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        ci360Sink.close(5000);
+        dmpClient.stop();
+        dmpServer.stop();
+        ci360Server.stop();
+    }
+
+    @Benchmark
+    public void handleEvent() throws Exception {
+        long user = users.incrementAndGet();
+        delivery.remove();
+        enricher.handleEvent(Events.event("user-" + (cached ? user % 1000 : user)));
+        CompletableFuture<String> result = delivery.get();
+        if (result != null)
+            result.join();
+    }
+}
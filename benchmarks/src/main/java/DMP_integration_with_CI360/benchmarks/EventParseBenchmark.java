@@ -0,0 +1,40 @@
+package DMP_integration_with_CI360.benchmarks;
+
+import DMP_integration_with_CI360.EventParser;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the intercepted ci360 event: the streaming parser used by the agent
+ * against parsing the whole event into a json tree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EventParseBenchmark {
+    static final String EVENT = "{\"guid\":\"4b3c1e62-6a0e-4f7a-9d65-0c6d2b0e4d1a\",\"rowKey\":\"20240101-000001\","
+            + "\"attributes\":{\"eventname\":\"Product view\",\"eventName\":\"product_view\",\"event_category\":\"unifiedAndEngage\","
+            + "\"channel_id\":\"web\",\"channel_user_id\":\"0a1b2c3d4e5f\",\"session_id\":\"7f6e5d4c3b2a\","
+            + "\"page_url\":\"https://shop.example.com/catalog/tv/oled-55\",\"page_title\":\"OLED 55 - Example shop\","
+            + "\"screen_info\":\"1920x1080@24\",\"timestamp\":\"1704067200000\",\"datahub_id\":\"a3c9e0d2-1111-4c2b-8e0f-2a9b5c7d8e9f\","
+            + "\"browser_name\":\"Chrome\",\"browser_version\":\"120.0\",\"ip_address\":\"10.0.0.1\"}}";
+
+    @Benchmark
+    public EventParser.ParsedEvent streaming() throws IOException {
+        return EventParser.parse(EVENT);
+    }
+
+    @Benchmark
+    @SuppressWarnings("deprecation")
+    public String jsonTree() {
+        JsonObject attributes = new JsonParser().parse(EVENT).getAsJsonObject().get("attributes").getAsJsonObject();
+        return attributes.get("datahub_id").getAsString() + attributes.get("eventName").getAsString();
+    }
+}
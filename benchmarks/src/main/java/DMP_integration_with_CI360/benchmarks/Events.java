@@ -0,0 +1,27 @@
+package DMP_integration_with_CI360.benchmarks;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Events and stream configuration shared by the benchmarks.
+ */
+final class Events {
+    static final JsonArray STREAMS = new JsonArray();
+
+    static {
+        JsonObject stream = new JsonObject();
+        stream.addProperty("event_name", "product_view");
+        stream.addProperty("ci360_external_event", "dmp_product_view");
+        STREAMS.add(stream);
+    }
+
+    private Events() {
+    }
+
+    static String event(String userId) {
+        return "{\"guid\":\"4b3c1e62\",\"attributes\":{\"eventname\":\"Product view\",\"eventName\":\"product_view\","
+                + "\"channel_id\":\"web\",\"page_url\":\"https://shop.example.com/catalog/tv/oled-55\","
+                + "\"datahub_id\":\"" + userId + "\"}}";
+    }
+}
@@ -0,0 +1,31 @@
+package DMP_integration_with_CI360.benchmarks;
+
+import DMP_integration_with_CI360.AgentCI360Transport;
+import DMP_integration_with_CI360.CI360Transport;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@link CI360Transport} that sends the events over plain HTTP to a base URL:
+ * POST {base}/events for single events and PUT {base}/bulk/{application id} for bulk uploads.
+ * It is used with {@link StubCI360Server} by the benchmarks and load tests.
+ */
+public class HttpCI360Transport implements CI360Transport {
+    private final String baseUrl;
+
+    public HttpCI360Transport(String baseUrl) {
+        this.baseUrl = baseUrl;
+    }
+
+    public String postEvent(String event) throws Exception {
+        return AgentCI360Transport.send("POST", baseUrl + "/events", event.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public String requestBulkEventURL(String applicationId) {
+        return baseUrl + "/bulk/" + applicationId;
+    }
+
+    public void uploadBulk(String url, byte[] content) throws Exception {
+        AgentCI360Transport.send("PUT", url, content);
+    }
+}
@@ -0,0 +1,349 @@
+package DMP_integration_with_CI360.benchmarks;
+
+import DMP_integration_with_CI360.*;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.sas.mkt.agent.sdk.CI360StreamInterface;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load test of the agent without CI360 and the DMP: the harness plays the CI360 stream and hands the events to the
+ * stream listener of the agent, against {@link StubDMPServer} and {@link StubCI360Server}. The DMP providers and the tenant
+ * are built by {@link SimpleAgentDMP} from a configuration file, so the routes, the coalescing, the spool, the fallbacks
+ * and every other setting of the agent are those of the configuration; the providers are played by the stub DMP
+ * with a synthetic taxonomy. With "tenants" the first tenant is loaded, sharding is not used.
+ * <br> <br>
+ * The stream is open-loop: event n is due at n / rate seconds, whether or not the agent keeps up, so a backlog
+ * (and a blocked stream with the BLOCK policy) shows as the stream falling behind schedule instead of slowing the load down.
+ * The latency inside the agent is given by its stages, from the wait for a worker to the response of CI360.
+ * The events are synthetic ({@link Events}) or recorded ones, one json event per line as received from the stream,
+ * replayed in order and repeated while the run lasts.
+ * Every second the harness prints the rates and the queue; at the end the throughput sustained after the warmup,
+ * the latencies, the counters of the agent, the CPU and the heap. The stubs run in the same JVM, so their CPU is included.
+ * <br> <br>
+ * Usage: java -cp benchmarks/target/benchmarks.jar:&lt;CI360 SDK jar&gt; DMP_integration_with_CI360.benchmarks.LoadHarness [name=value...]
+ * <br> rate (1000 events/s), seconds (30), warmup_seconds (5)
+ * <br> events (file of recorded events, synthetic events by default), users (100000 synthetic users),
+ * config (configuration file of the agent, the synthetic stream of {@link Events} by default)
+ * <br> attributes (50 per profile), dmp_latency_ms (20), dmp_error_rate (0), dmp_not_found_rate (0),
+ * ci360_latency_ms (0), ci360_error_rate (0)
+ * <br> any other name=value is a setting of the agent on top of the configuration, e.g. worker_threads=32
+ * or worker_overflow_policy=drop_newest
+ */
+public class LoadHarness {
+    private static final Set<String> OPTIONS = new HashSet<String>(Arrays.asList("rate", "seconds", "warmup_seconds",
+            "events", "users", "config", "attributes", "dmp_latency_ms", "dmp_error_rate", "dmp_not_found_rate",
+            "ci360_latency_ms", "ci360_error_rate"));
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p99.9"};
+
+    private final LatencyHistogram scheduleLag = new LatencyHistogram();
+    private volatile long startNanos;
+    private volatile long intervalNanos;
+    private volatile long firstMeasuredSequence;
+
+    public static void main(String[] args) throws Exception {
+        StubDMPServer.useNoDelay();
+        Map<String, String> options = new HashMap<String, String>();
+        JsonObject settings = new JsonObject();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 1)
+                throw new IllegalArgumentException("Option " + arg + " is not name=value, options: " + OPTIONS);
+            String name = arg.substring(0, separator);
+            String value = arg.substring(separator + 1);
+            if (OPTIONS.contains(name))
+                options.put(name, value);
+            else
+                settings.add(name, value.matches("-?[0-9.]+|true|false") ? JsonParser.parseString(value) : new JsonPrimitive(value));
+        }
+
+        new LoadHarness().run(options, settings);
+        System.exit(0);
+    }
+
+    private void run(Map<String, String> options, JsonObject settings) throws Exception {
+        double rate = Double.parseDouble(get(options, "rate", "1000"));
+        int seconds = Integer.parseInt(get(options, "seconds", "30"));
+        int warmupSeconds = Integer.parseInt(get(options, "warmup_seconds", "5"));
+        int users = Integer.parseInt(get(options, "users", "100000"));
+        int attributes = Integer.parseInt(get(options, "attributes", "50"));
+        if (rate <= 0)
+            throw new IllegalArgumentException("rate must be positive: " + rate);
+
+        // Only warnings are logged, otherwise the harness would measure the console.
+        AgentLog.configure(AgentLog.Level.WARN, 0, 8192, false);
+
+        List<String> recorded = options.containsKey("events") ? readEvents(options.get("events")) : null;
+        JsonObject config = new JsonObject();
+        if (options.containsKey("config")) {
+            config = new Gson().fromJson(new FileReader(options.get("config")), JsonObject.class);
+        } else {
+            config.add("dmp_streams", Events.STREAMS);
+        }
+        for (Map.Entry<String, JsonElement> setting : settings.entrySet())
+            config.add(setting.getKey(), setting.getValue());
+        JsonObject tenantSettings = config.has("tenants")
+                ? SimpleAgentDMP.entrySettings(config, config.get("tenants").getAsJsonArray().get(0).getAsJsonObject())
+                : config;
+        // The settings given to the harness also win over those of the tenant entry.
+        for (Map.Entry<String, JsonElement> setting : settings.entrySet())
+            tenantSettings.add(setting.getKey(), setting.getValue());
+
+        SyntheticTaxonomy taxonomy = new SyntheticTaxonomy(5000, 50, 200, 1);
+        File taxonomyFile = File.createTempFile("load-taxonomy", ".xlsx");
+        File snapshotFile = new File(taxonomyFile.getPath() + ".snapshot");
+        TaxonomyLoadBenchmark.writeWorkbook(taxonomy, taxonomyFile);
+        int dmpMaxConnections = tenantSettings.has("dmp_max_connections") ? tenantSettings.get("dmp_max_connections").getAsInt() : 64;
+        StubDMPServer dmpServer = new StubDMPServer(0, taxonomy, attributes, Math.max(32, dmpMaxConnections));
+        dmpServer.setLatencyMillis(Long.parseLong(get(options, "dmp_latency_ms", "20")));
+        dmpServer.setErrorRate(Double.parseDouble(get(options, "dmp_error_rate", "0")));
+        dmpServer.setNotFoundRate(Double.parseDouble(get(options, "dmp_not_found_rate", "0")));
+        StubCI360Server ci360Server = new StubCI360Server(0, 32);
+        ci360Server.setLatencyMillis(Long.parseLong(get(options, "ci360_latency_ms", "0")));
+        ci360Server.setErrorRate(Double.parseDouble(get(options, "ci360_error_rate", "0")));
+
+        // The DMP providers as SimpleAgentDMP builds them, every one played by the stub DMP with the synthetic taxonomy.
+        JsonArray dmpProviders = config.has("dmp_providers") ? config.get("dmp_providers").getAsJsonArray() : null;
+        Map<String, JsonObject> dmpProviderSettings = new LinkedHashMap<String, JsonObject>();
+        if (dmpProviders == null) {
+            dmpProviderSettings.put("default", config.deepCopy());
+        } else {
+            for (JsonElement dmpProvider : dmpProviders) {
+                JsonObject providerSettings = SimpleAgentDMP.entrySettings(config, dmpProvider.getAsJsonObject());
+                dmpProviderSettings.put(providerSettings.get("name").getAsString(), providerSettings);
+            }
+        }
+        AttributeProjection ci360Attributes = tenantSettings.has("ci360_attributes")
+                ? AttributeProjection.compile(tenantSettings.get("ci360_attributes").getAsJsonArray())
+                : AttributeProjection.LEGACY;
+        Map<String, Set<String>> dmpAttributes = StreamRoutes.getDMPAttributes(tenantSettings.get("dmp_streams").getAsJsonArray(),
+                ci360Attributes, new ArrayList<String>(dmpProviderSettings.keySet()));
+
+        AgentMetrics metrics = new AgentMetrics();
+        Map<String, DMPSource> dmpSources = new LinkedHashMap<String, DMPSource>();
+        List<CircuitBreaker> dmpCircuitBreakers = new ArrayList<CircuitBreaker>();
+        for (Map.Entry<String, JsonObject> provider : dmpProviderSettings.entrySet()) {
+            JsonObject providerSettings = provider.getValue();
+            providerSettings.addProperty("provider", CleverDataCodec.PROVIDER_NAME);
+            providerSettings.addProperty("dmp_endpoint_get_user_info", dmpServer.getEndpoint());
+            providerSettings.addProperty("dmp_authorization_token", "token");
+            providerSettings.addProperty("taxonomy_path", taxonomyFile.getPath());
+            providerSettings.addProperty("taxonomy_snapshot_path", snapshotFile.getPath());
+            DMPSource dmpSource = SimpleAgentDMP.createDMPSource(provider.getKey(), providerSettings, dmpAttributes.get(provider.getKey()),
+                    metrics, dmpProviders == null ? "" : "_" + provider.getKey());
+            dmpSources.put(provider.getKey(), dmpSource);
+            dmpCircuitBreakers.add(dmpSource.dmpClient.getCircuitBreaker());
+        }
+
+        // The tenant and its stream listener as SimpleAgentDMP builds them; the harness plays the stream, so there is no agent.
+        AgentLifecycle lifecycle = new AgentLifecycle(1000, 60000, 60000, 5000);
+        Tenant tenant = SimpleAgentDMP.createTenant("load", tenantSettings, null, new HttpCI360Transport(ci360Server.getBaseUrl()),
+                ci360Attributes, dmpSources, dmpCircuitBreakers, null, metrics, lifecycle);
+        CI360StreamInterface listener = SimpleAgentDMP.createStreamListener(tenant, null, lifecycle);
+        EventPipeline pipeline = tenant.eventPipeline;
+
+        System.out.printf(Locale.ROOT, "%.0f events/s for %d s after a warmup of %d s, %s events, DMP latency %s ms, %s workers%n",
+                rate, seconds, warmupSeconds, recorded != null ? recorded.size() + " recorded" : users + " users of synthetic",
+                get(options, "dmp_latency_ms", "20"), tenantSettings.has("worker_threads") ? tenantSettings.get("worker_threads").getAsString() : "16");
+
+        intervalNanos = (long) (1e9 / rate);
+        firstMeasuredSequence = (long) (warmupSeconds * rate);
+        startNanos = System.nanoTime();
+        long endNanos = startNanos + TimeUnit.SECONDS.toNanos(warmupSeconds + seconds);
+        Thread stream = startStream(listener, recorded, users, endNanos);
+
+        // Counters at the end of the warmup, the report covers what happened after it.
+        long[] warmupCounters = new long[AgentMetrics.Counter.values().length];
+        long warmupCiEvents = 0;
+        long warmupHandled = 0;
+        long warmupDropped = 0;
+        long warmupCpuNanos = 0;
+        long warmupGcCount = 0;
+        long warmupGcMillis = 0;
+        long measureStartNanos = 0;
+        long maxHeap = 0;
+        long lastHandled = 0;
+        long lastSubmitted = 0;
+        long lastCiEvents = 0;
+        for (int second = 0; second <= warmupSeconds + seconds; second++) {
+            if (second > 0) {
+                LockSupport.parkNanos(startNanos + TimeUnit.SECONDS.toNanos(second) - System.nanoTime());
+                long heap = usedHeap();
+                if (second > warmupSeconds)
+                    maxHeap = Math.max(maxHeap, heap);
+                long handled = handledEvents(pipeline);
+                System.out.printf(Locale.ROOT, "%3d s%s: submitted %d/s, handled %d/s, delivered %d/s, queue %d, heap %d MB%n",
+                        second, second <= warmupSeconds ? " (warmup)" : "", pipeline.getSubmittedEvents() - lastSubmitted,
+                        handled - lastHandled, ci360Server.getEvents() - lastCiEvents, pipeline.getQueueDepth(), heap >> 20);
+                lastSubmitted = pipeline.getSubmittedEvents();
+                lastHandled = handled;
+                lastCiEvents = ci360Server.getEvents();
+            }
+
+            if (second == warmupSeconds) {
+                for (AgentMetrics.Counter counter : AgentMetrics.Counter.values())
+                    warmupCounters[counter.ordinal()] = metrics.getCount(counter);
+                warmupCiEvents = lastCiEvents;
+                warmupHandled = lastHandled;
+                warmupDropped = pipeline.getDroppedEvents();
+                warmupCpuNanos = processCpuNanos();
+                warmupGcCount = gcCount();
+                warmupGcMillis = gcMillis();
+                measureStartNanos = System.nanoTime();
+            }
+        }
+        double elapsed = (System.nanoTime() - measureStartNanos) / 1e9;
+        long cpuNanos = processCpuNanos() - warmupCpuNanos;
+        long measuredHandled = handledEvents(pipeline) - warmupHandled;
+        stream.join();
+
+        System.out.println();
+        System.out.printf(Locale.ROOT, "Throughput: offered %.0f/s, handled %.0f/s, delivered to CI360 %.0f/s, %s%n",
+                rate, measuredHandled / elapsed, (ci360Server.getEvents() - warmupCiEvents) / elapsed,
+                measuredHandled >= 0.99 * rate * elapsed ? "sustained" : "NOT sustained (" + pipeline.getQueueDepth() + " queued)");
+        System.out.println("Stream behind schedule: " + percentiles(scheduleLag));
+        System.out.println("Stages (whole run):");
+        for (AgentMetrics.Stage stage : AgentMetrics.Stage.values())
+            if (metrics.getHistogram(stage).getCount() > 0)
+                System.out.println("  " + stage.name().toLowerCase() + ": " + percentiles(metrics.getHistogram(stage)));
+        System.out.println("Counters:");
+        for (AgentMetrics.Counter counter : AgentMetrics.Counter.values()) {
+            long value = metrics.getCount(counter) - warmupCounters[counter.ordinal()];
+            if (value != 0)
+                System.out.println("  " + counter.name().toLowerCase() + ": " + value);
+        }
+        System.out.println("  events_dropped: " + (pipeline.getDroppedEvents() - warmupDropped));
+        System.out.println("  ci360_overflow: " + tenant.ci360Sink.getOverflowEvents() + ", ci360_spooled: " + tenant.ci360Sink.getSpooledEvents());
+        System.out.println("  dmp_requests: " + dmpServer.getRequests() + ", ci360_injected_errors: " + ci360Server.getErrors());
+        int processors = Runtime.getRuntime().availableProcessors();
+        System.out.printf(Locale.ROOT, "CPU: %.2f of %d cores, %.1f us per handled event; heap: max %d MB used; GC: %d collections, %d ms%n",
+                cpuNanos / 1e9 / elapsed, processors, measuredHandled > 0 ? cpuNanos / 1e3 / measuredHandled : 0,
+                maxHeap >> 20, gcCount() - warmupGcCount, gcMillis() - warmupGcMillis);
+
+        // The shutdown steps of SimpleAgentDMP, for the one tenant.
+        if (tenant.spoolReplayer != null)
+            tenant.spoolReplayer.stop();
+        pipeline.drain(5000);
+        pipeline.shutdown();
+        tenant.ci360Sink.close(2000);
+        for (DMPSource dmpSource : dmpSources.values())
+            dmpSource.stop();
+        if (tenant.coalescingWindow != null)
+            tenant.coalescingWindow.stop();
+        dmpServer.stop();
+        ci360Server.stop();
+        taxonomyFile.delete();
+        snapshotFile.delete();
+    }
+
+    /**
+     * This method starts the stand-in of the CI360 stream: it hands the events to the listener when they are due until the end.
+     */
+    private Thread startStream(final CI360StreamInterface listener, final List<String> recorded, final int users, final long endNanos) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (long sequence = 0; ; sequence++) {
+                    long due = startNanos + sequence * intervalNanos;
+                    if (due >= endNanos)
+                        return;
+                    long wait = due - System.nanoTime();
+                    if (wait > 0)
+                        LockSupport.parkNanos(wait);
+
+                    String event = recorded != null
+                            ? recorded.get((int) (sequence % recorded.size()))
+                            : Events.event("user-" + random.nextInt(users));
+                    if (sequence >= firstMeasuredSequence)
+                        scheduleLag.recordSince(due);
+                    listener.processEvent(event);
+                }
+            }
+        }, "stub-stream");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * This method counts the events whose handling ended: submitted and neither dropped nor waiting.
+     */
+    private static long handledEvents(EventPipeline pipeline) {
+        return pipeline.getSubmittedEvents() - pipeline.getDroppedEvents() - pipeline.getQueueDepth()
+                - pipeline.getHandlingEvents() - pipeline.getDeferredEvents();
+    }
+
+    private static List<String> readEvents(String file) throws Exception {
+        List<String> events = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.startsWith("{"))
+                    events.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        if (events.isEmpty())
+            throw new IllegalArgumentException("No events in " + file);
+
+        return events;
+    }
+
+    private static String percentiles(LatencyHistogram histogram) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < QUANTILES.length; i++)
+            result.append(PERCENTILE_NAMES[i]).append(' ').append(millis(histogram.getQuantileNanos(QUANTILES[i]))).append(", ");
+
+        return result.append("max ").append(millis(histogram.getMaxNanos())).toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.2f ms", nanos / 1e6);
+    }
+
+    private static String get(Map<String, String> options, String name, String defaultValue) {
+        return options.containsKey(name) ? options.get(name) : defaultValue;
+    }
+
+    private static long usedHeap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long processCpuNanos() {
+        return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+            count += Math.max(0, collector.getCollectionCount());
+
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+            millis += Math.max(0, collector.getCollectionTime());
+
+        return millis;
+    }
+}
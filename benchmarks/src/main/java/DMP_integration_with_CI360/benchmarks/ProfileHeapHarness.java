@@ -0,0 +1,66 @@
+package DMP_integration_with_CI360.benchmarks;
+
+import DMP_integration_with_CI360.CleverDataConverter;
+import DMP_integration_with_CI360.TaxonomyIndex;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+
+import java.io.StringReader;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Heap retained per cached profile: the json object of the decrypted profile against {@link DMP_integration_with_CI360.DMPProfile}.
+ * <br> <br>
+ * The harness decodes the same responses into both forms, keeps them in an array like the profile cache does
+ * and measures the used heap after a full GC, so only what the profiles retain (not the taxonomy) is counted.
+ * <br> <br>
+ * Usage: java -cp benchmarks/target/benchmarks.jar DMP_integration_with_CI360.benchmarks.ProfileHeapHarness
+ * [profiles (50000)] [attributes per profile (20,100)]
+ */
+public class ProfileHeapHarness {
+    // Static, so the responses and the profiles stay reachable while the heap is measured.
+    private static String[] responses;
+    private static Object[] retained;
+
+    public static void main(String[] args) throws Exception {
+        int profiles = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        String attributeCounts = args.length > 1 ? args[1] : "20,100";
+
+        SyntheticTaxonomy taxonomy = new SyntheticTaxonomy(5000, 50, 200, 1);
+        CleverDataConverter converter = new CleverDataConverter(TaxonomyIndex.build(taxonomy.getAttributesTaxonomy(),
+                taxonomy.getDictionaryAttributesTaxonomy()));
+
+        for (String attributeCount : attributeCounts.split(",")) {
+            Random random = new Random(2);
+            responses = new String[profiles];
+            for (int i = 0; i < profiles; i++)
+                responses[i] = taxonomy.encodedProfile("user" + i, Integer.parseInt(attributeCount), random);
+
+            retained = new Object[profiles];
+            long before = usedHeap();
+            for (int i = 0; i < profiles; i++)
+                retained[i] = converter.getConvertedCookieData(JsonParser.parseString(responses[i]).getAsJsonObject());
+            long json = (usedHeap() - before) / profiles;
+
+            retained = new Object[profiles];
+            before = usedHeap();
+            for (int i = 0; i < profiles; i++)
+                retained[i] = converter.decodeProfile(new JsonReader(new StringReader(responses[i])));
+            long compact = (usedHeap() - before) / profiles;
+
+            System.out.printf(Locale.ROOT, "%s attributes: json object %d bytes, compact %d bytes per profile (%.1fx)%n",
+                    attributeCount, json, compact, (double) json / compact);
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
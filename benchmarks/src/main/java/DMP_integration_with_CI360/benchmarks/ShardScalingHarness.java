@@ -0,0 +1,198 @@
+package DMP_integration_with_CI360.benchmarks;
+
+import DMP_integration_with_CI360.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Throughput of 1, 2, 4... agent instances sharing the users through a {@link ShardRing}, every instance in its own JVM.
+ * <br> <br>
+ * The harness starts {@link StubDMPServer} (with a latency, so an instance is bound by its workers waiting for the DMP,
+ * like in production) and {@link StubCI360Server}, then for every cluster size launches the instances as child processes.
+ * Every instance plays its share of the stream: it generates events of random users and routes them with {@link ShardRouter}
+ * (policy FORWARD), so most events are forwarded to their owner through {@link ShardIngestServer}.
+ * The generator holds back while the local queue and the forward queues are long, like a stream that cannot outrun the cluster.
+ * The throughput is the rate of the external events received by the CI360 stub after a warmup.
+ * <br> <br>
+ * Usage: java -cp benchmarks/target/benchmarks.jar DMP_integration_with_CI360.benchmarks.ShardScalingHarness
+ * [max instances (4)] [seconds (10)] [DMP latency ms (20)] [workers per instance (8)]
+ */
+public class ShardScalingHarness {
+    private static final long WARMUP_MILLIS = 3000;
+    private static final int USERS = 1000000;
+    private static final int MAX_PENDING = 2000;
+    /**
+     * Secret of the ingest endpoints of the local instances.
+     */
+    private static final String TOKEN = "shard-scaling";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--instance")) {
+            runInstance(args);
+            return;
+        }
+
+        int maxInstances = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        long dmpLatency = args.length > 2 ? Long.parseLong(args[2]) : 20;
+        int workers = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+
+        StubDMPServer.useNoDelay();
+        AgentLog.configure(AgentLog.Level.WARN, 0, 8192, false);
+        StubDMPServer dmpServer = new StubDMPServer(0, new SyntheticTaxonomy(5000, 50, 200, 1), 50, maxInstances * workers + 16);
+        dmpServer.setLatencyMillis(dmpLatency);
+        StubCI360Server ci360Server = new StubCI360Server(0, 32);
+
+        System.out.println("DMP latency " + dmpLatency + " ms, " + workers + " workers per instance, " + seconds + " s per run");
+        double single = 0;
+        for (int instances = 1; instances <= maxInstances; instances *= 2) {
+            double throughput = runCluster(instances, seconds, workers, dmpServer, ci360Server);
+            if (instances == 1)
+                single = throughput;
+            System.out.printf(Locale.ROOT, "%d instance(s): %.0f events/s, %.2fx of one instance%n",
+                    instances, throughput, throughput / single);
+        }
+
+        dmpServer.stop();
+        ci360Server.stop();
+        System.exit(0);
+    }
+
+    /**
+     * @return Returns the number of external events per second received by the CI360 stub.
+     */
+    private static double runCluster(int instances, int seconds, int workers, StubDMPServer dmpServer,
+                                     StubCI360Server ci360Server) throws Exception {
+        StringBuilder peers = new StringBuilder();
+        for (int i = 0; i < instances; i++) {
+            if (i > 0)
+                peers.append(',');
+            peers.append("instance-").append(i).append("=http://127.0.0.1:").append(freePort());
+        }
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<Process> processes = new ArrayList<Process>();
+        List<BufferedReader> outputs = new ArrayList<BufferedReader>();
+        for (int i = 0; i < instances; i++) {
+            Process process = new ProcessBuilder(java, "-Xmx512m", "-cp", System.getProperty("java.class.path"),
+                    ShardScalingHarness.class.getName(), "--instance", "instance-" + i, peers.toString(),
+                    dmpServer.getEndpoint(), ci360Server.getBaseUrl(), String.valueOf(workers))
+                    .redirectErrorStream(true)
+                    .start();
+            processes.add(process);
+            outputs.add(new BufferedReader(new InputStreamReader(process.getInputStream())));
+        }
+
+        try {
+            for (BufferedReader output : outputs)
+                waitFor(output, "READY");
+            for (BufferedReader output : outputs)
+                drain(output);
+            for (Process process : processes)
+                process.getOutputStream().close();
+
+            Thread.sleep(WARMUP_MILLIS);
+            long startEvents = ci360Server.getEvents();
+            long startNanos = System.nanoTime();
+            Thread.sleep(seconds * 1000L);
+            long events = ci360Server.getEvents() - startEvents;
+            double elapsed = (System.nanoTime() - startNanos) / 1e9;
+            return events / elapsed;
+        } finally {
+            for (Process process : processes)
+                process.destroy();
+            for (Process process : processes)
+                process.waitFor();
+            // Events still queued by the stopped instances arrive late.
+            Thread.sleep(500);
+        }
+    }
+
+    /**
+     * Child process: one agent instance without the CI360 stream, fed by its own generator.
+     */
+    private static void runInstance(String[] args) throws Exception {
+        String self = args[1];
+        Map<String, String> peers = new LinkedHashMap<String, String>();
+        for (String peer : args[2].split(","))
+            peers.put(peer.substring(0, peer.indexOf('=')), peer.substring(peer.indexOf('=') + 1));
+        String dmpEndpoint = args[3];
+        String ci360BaseUrl = args[4];
+        int workers = Integer.parseInt(args[5]);
+
+        AgentLog.configure(AgentLog.Level.WARN, 0, 8192, false);
+        AgentMetrics metrics = new AgentMetrics();
+        SyntheticTaxonomy taxonomy = new SyntheticTaxonomy(5000, 50, 200, 1);
+        CleverDataConverter converter = new CleverDataConverter(TaxonomyIndex.build(taxonomy.getAttributesTaxonomy(),
+                taxonomy.getDictionaryAttributesTaxonomy()), AttributeProjection.LEGACY.getDMPAttributes());
+        DMPClient dmpClient = new DMPClient(dmpEndpoint, "token", workers * 2, 2000, 5000, 10000);
+        DMPSource dmpSource = new DMPSource("default", null, dmpClient, new DMPProfileCache(600000, 600000, 100000, 0),
+                converter::decodeProfile);
+        CI360EventSink ci360Sink = new CI360EventSink(new HttpCI360Transport(ci360BaseUrl), 100, 5, Integer.MAX_VALUE, null, 4);
+        EventEnricher enricher = new EventEnricher(ci360Sink, StreamRoutes.compile(Events.STREAMS, AttributeProjection.LEGACY,
+                Collections.singletonMap(dmpSource.name, dmpSource)), metrics);
+        EventPipeline pipeline = new EventPipeline(workers, MAX_PENDING, EventPipeline.OverflowPolicy.BLOCK, enricher, metrics);
+
+        ShardRouter router = new ShardRouter(new ShardRing(peers.keySet(), 128), self, peers, ShardRouter.Policy.FORWARD,
+                TOKEN, 500, 10000, 5000, 5000, pipeline, metrics);
+        new ShardIngestServer("127.0.0.1", new URI(peers.get(self)).getPort(), TOKEN, pipeline, metrics);
+
+        System.out.println("READY");
+        System.out.flush();
+        // The harness closes the input when all the instances are up.
+        while (System.in.read() >= 0) {
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (true) {
+            while (pipeline.getQueueDepth() + router.getPendingForwards() > MAX_PENDING)
+                Thread.sleep(1);
+            router.route(Events.event("user-" + random.nextInt(USERS)));
+        }
+    }
+
+    private static void waitFor(BufferedReader output, String line) throws Exception {
+        String read;
+        while ((read = output.readLine()) != null) {
+            if (read.equals(line))
+                return;
+            System.out.println(read);
+        }
+
+        throw new IllegalStateException("Instance exited before " + line);
+    }
+
+    /**
+     * This method prints the output of the instance, so a warning cannot fill the pipe and stop it.
+     */
+    private static void drain(final BufferedReader output) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    String line;
+                    while ((line = output.readLine()) != null)
+                        System.out.println(line);
+                } catch (Exception e) {
+                    // The instance was stopped.
+                }
+            }
+        }, "instance-output");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static int freePort() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            return socket.getLocalPort();
+        } finally {
+            socket.close();
+        }
+    }
+}
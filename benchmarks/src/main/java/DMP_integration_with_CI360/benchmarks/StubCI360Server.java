@@ -0,0 +1,117 @@
+package DMP_integration_with_CI360.benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the ci360 "events" endpoint and the bulk upload URL, for benchmarks and load tests.
+ * It accepts POST /events and PUT /bulk/{application id} (one event per line) and counts the received events.
+ * Latency and errors (HTTP 503, the events are not counted) can be injected.
+ * Use it with {@link HttpCI360Transport}.
+ */
+public class StubCI360Server {
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private volatile long latencyMillis;
+    private volatile double errorRate;
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong bulkUploads = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * @param port    This parameter is the port to listen on, 0 picks a free port.
+     * @param threads This parameter is the number of threads serving the requests.
+     */
+    public StubCI360Server(int port, int threads) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        this.executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext("/events", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                receive(exchange, false);
+            }
+        });
+        server.createContext("/bulk/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                receive(exchange, true);
+            }
+        });
+        server.start();
+    }
+
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    public long getEvents() {
+        return events.get();
+    }
+
+    public long getBulkUploads() {
+        return bulkUploads.get();
+    }
+
+    /**
+     * @return Returns the number of requests answered with an injected error.
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void receive(HttpExchange exchange, boolean bulk) throws IOException {
+        try {
+            long lines = 0;
+            InputStream in = exchange.getRequestBody();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                for (int i = 0; i < read; i++)
+                    if (buffer[i] == '\n')
+                        lines++;
+            }
+            in.close();
+
+            if (latencyMillis > 0)
+                Thread.sleep(latencyMillis);
+
+            if (ThreadLocalRandom.current().nextDouble() < errorRate) {
+                errors.incrementAndGet();
+                StubDMPServer.write(exchange, 503, "{\"error\":\"injected\"}");
+                return;
+            }
+            if (bulk) {
+                bulkUploads.incrementAndGet();
+                events.addAndGet(lines);
+            } else {
+                events.incrementAndGet();
+            }
+            StubDMPServer.write(exchange, 201, "{\"status\":\"accepted\"}");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+}
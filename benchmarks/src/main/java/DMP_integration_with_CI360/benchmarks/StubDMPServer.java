@@ -0,0 +1,123 @@
+package DMP_integration_with_CI360.benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the CleverData API, for benchmarks and load tests.
+ * GET {base}/{user id} returns an encrypted profile generated from {@link SyntheticTaxonomy}.
+ * The profile of a user is the same on every request. Latency, errors (HTTP 500) and "user not found" (HTTP 404)
+ * can be injected.
+ */
+public class StubDMPServer {
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final SyntheticTaxonomy taxonomy;
+    private final int attributesPerProfile;
+
+    private volatile long latencyMillis;
+    private volatile double errorRate;
+    private volatile double notFoundRate;
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * @param port                 This parameter is the port to listen on, 0 picks a free port.
+     * @param taxonomy             This parameter is the taxonomy the profiles are encoded with.
+     * @param attributesPerProfile This parameter is the number of attributes of a profile.
+     * @param threads              This parameter is the number of threads serving the requests.
+     */
+    public StubDMPServer(int port, SyntheticTaxonomy taxonomy, int attributesPerProfile, int threads) throws IOException {
+        this.taxonomy = taxonomy;
+        this.attributesPerProfile = attributesPerProfile;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        this.executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange);
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * This method turns on TCP_NODELAY for all the com.sun.net.httpserver servers of the JVM, which the stubs are:
+     * without it small keep-alive responses wait for the delayed ACK (~40 ms per request).
+     * The harnesses call it first thing, the setting is read when the first server is created.
+     */
+    static void useNoDelay() {
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    /**
+     * @return Returns the DMP endpoint, the user id is appended to it.
+     */
+    public String getEndpoint() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    public void setNotFoundRate(double notFoundRate) {
+        this.notFoundRate = notFoundRate;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void respond(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        try {
+            if (latencyMillis > 0)
+                Thread.sleep(latencyMillis);
+
+            double chance = ThreadLocalRandom.current().nextDouble();
+            if (chance < errorRate) {
+                write(exchange, 500, "{\"error\":\"injected\"}");
+            } else if (chance < errorRate + notFoundRate) {
+                write(exchange, 404, "");
+            } else {
+                String userId = exchange.getRequestURI().getPath().substring(1);
+                write(exchange, 200, taxonomy.encodedProfile(userId, attributesPerProfile, new Random(userId.hashCode())));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    static void write(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        }
+    }
+}
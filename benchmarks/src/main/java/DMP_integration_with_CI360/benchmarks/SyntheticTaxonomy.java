@@ -0,0 +1,92 @@
+package DMP_integration_with_CI360.benchmarks;
+
+import DMP_integration_with_CI360.AttributesTaxonomy;
+import DMP_integration_with_CI360.ReaderInterface;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generated taxonomy with the shape of the CleverData one, for benchmarks and load tests
+ * that must run without the client's taxonomy file.
+ * Attribute ids are 1..attributeCount; every third attribute is significant ("Integer" or "String"),
+ * the others refer to one of the dictionary sheets "D-Sheet-0".."D-Sheet-(n-1)" with ids 1..valuesPerSheet.
+ */
+public class SyntheticTaxonomy implements ReaderInterface {
+    public final AttributesTaxonomy attributesTaxonomy = new AttributesTaxonomy();
+    public final Map<String, Map<String, String>> dictionaryAttributesTaxonomy = new HashMap<String, Map<String, String>>();
+    public final int valuesPerSheet;
+
+    /**
+     * @param attributeCount This parameter is the number of rows of the "Attributes" sheet.
+     * @param sheetCount     This parameter is the number of dictionary sheets.
+     * @param valuesPerSheet This parameter is the number of values of every dictionary sheet.
+     * @param seed           This parameter is the seed of the generator.
+     */
+    public SyntheticTaxonomy(int attributeCount, int sheetCount, int valuesPerSheet, long seed) {
+        this.valuesPerSheet = valuesPerSheet;
+        Random random = new Random(seed);
+
+        for (int sheet = 0; sheet < sheetCount; sheet++) {
+            Map<String, String> idDescription = new HashMap<String, String>();
+            for (int value = 1; value <= valuesPerSheet; value++)
+                idDescription.put(String.valueOf(value), "value_" + sheet + "_" + value);
+            dictionaryAttributesTaxonomy.put(sheetName(sheet), idDescription);
+        }
+
+        for (int id = 1; id <= attributeCount; id++) {
+            String type;
+            if (id % 3 == 0 || sheetCount == 0)
+                type = random.nextBoolean() ? "Integer" : "String";
+            else
+                type = sheetName(random.nextInt(sheetCount));
+
+            attributesTaxonomy.ids.add(String.valueOf(id));
+            attributesTaxonomy.names.add("attribute_" + id);
+            attributesTaxonomy.shortNames.add("a" + id);
+            attributesTaxonomy.types.add(type);
+            attributesTaxonomy.descriptions.add("Synthetic attribute " + id);
+        }
+    }
+
+    public AttributesTaxonomy getAttributesTaxonomy() {
+        return attributesTaxonomy;
+    }
+
+    public Map<String, Map<String, String>> getDictionaryAttributesTaxonomy() {
+        return dictionaryAttributesTaxonomy;
+    }
+
+    /**
+     * This method generates the encrypted DMP response for the user, as the CleverData API returns it.
+     *
+     * @param userId         This parameter is the user id.
+     * @param attributeCount This parameter is the number of attributes of the profile.
+     * @param random         This parameter is the source of the attribute ids and values.
+     * @return Returns the json string of the response.
+     */
+    public String encodedProfile(String userId, int attributeCount, Random random) {
+        int size = attributesTaxonomy.ids.size();
+        StringBuilder response = new StringBuilder(32 + attributeCount * 36);
+        response.append("{\"id\":\"").append(userId).append("\",\"attrs\":[");
+        for (int i = 0; i < attributeCount; i++) {
+            int index = random.nextInt(size);
+            String type = attributesTaxonomy.types.get(index);
+            if (i > 0)
+                response.append(',');
+            response.append("{\"primary\":").append(attributesTaxonomy.ids.get(index)).append(",\"secondary\":");
+            if (type.equals("String"))
+                response.append("\"s").append(random.nextInt(1000)).append('"');
+            else
+                response.append(1 + random.nextInt(type.equals("Integer") ? 100 : valuesPerSheet));
+            response.append('}');
+        }
+
+        return response.append("]}").toString();
+    }
+
+    private static String sheetName(int sheet) {
+        return "D-Sheet-" + sheet;
+    }
+}
@@ -0,0 +1,109 @@
+package DMP_integration_with_CI360.benchmarks;
+
+import DMP_integration_with_CI360.*;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading of the taxonomy at startup: the workbook DOM reader, the streaming reader, the binary snapshot,
+ * and compiling the loaded taxonomy into {@link TaxonomyIndex}.
+ * The taxonomy file is generated from {@link SyntheticTaxonomy} in the layout of the CleverData file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TaxonomyLoadBenchmark {
+
+    @Param({"1000", "5000"})
+    public int taxonomySize;
+
+    private File taxonomyFile;
+    private File snapshotFile;
+    private ReaderInterface loaded;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        SyntheticTaxonomy taxonomy = new SyntheticTaxonomy(taxonomySize, 50, 200, 1);
+        taxonomyFile = File.createTempFile("taxonomy", ".xlsx");
+        snapshotFile = new File(taxonomyFile.getPath() + ".snapshot");
+        writeWorkbook(taxonomy, taxonomyFile);
+        TaxonomySnapshot.write(taxonomy, taxonomyFile.getPath(), snapshotFile.getPath());
+        loaded = taxonomy;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        taxonomyFile.delete();
+        snapshotFile.delete();
+    }
+
+    @Benchmark
+    public ReaderInterface workbookDom() {
+        return new CleverDataReader(taxonomyFile.getPath());
+    }
+
+    @Benchmark
+    public ReaderInterface streaming() {
+        return new CleverDataStreamingReader(taxonomyFile.getPath());
+    }
+
+    @Benchmark
+    public ReaderInterface snapshot() throws IOException {
+        return new TaxonomySnapshotReader(snapshotFile.getPath());
+    }
+
+    @Benchmark
+    public TaxonomyIndex compileIndex() {
+        return TaxonomyIndex.build(loaded.getAttributesTaxonomy(), loaded.getDictionaryAttributesTaxonomy());
+    }
+
+    /**
+     * This method writes the taxonomy in the layout read by {@link CleverDataReader}:
+     * three header rows, the id in the column B, "Attributes" columns B..F, dictionary descriptions in the column D.
+     */
+    static void writeWorkbook(SyntheticTaxonomy taxonomy, File file) throws IOException {
+        XSSFWorkbook book = new XSSFWorkbook();
+        try {
+            AttributesTaxonomy attributes = taxonomy.getAttributesTaxonomy();
+            Sheet sheet = book.createSheet("Attributes");
+            for (int i = 0; i < attributes.ids.size(); i++) {
+                Row row = sheet.createRow(i + 3);
+                row.createCell(1).setCellValue(attributes.ids.get(i));
+                row.createCell(2).setCellValue(attributes.names.get(i));
+                row.createCell(3).setCellValue(attributes.shortNames.get(i));
+                row.createCell(4).setCellValue(attributes.types.get(i));
+                row.createCell(5).setCellValue(attributes.descriptions.get(i));
+            }
+
+            for (Map.Entry<String, Map<String, String>> dictionary : taxonomy.getDictionaryAttributesTaxonomy().entrySet()) {
+                sheet = book.createSheet(dictionary.getKey());
+                int rowNum = 3;
+                for (Map.Entry<String, String> value : dictionary.getValue().entrySet()) {
+                    Row row = sheet.createRow(rowNum++);
+                    row.createCell(1).setCellValue(value.getKey());
+                    row.createCell(3).setCellValue(value.getValue());
+                }
+            }
+
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                book.write(out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            book.close();
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package DMP_integration_with_CI360.benchmarks;
+
+import DMP_integration_with_CI360.CleverDataReader;
+import DMP_integration_with_CI360.CleverDataStreamingReader;
+import DMP_integration_with_CI360.ReaderInterface;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Compares the startup time and the heap of the taxonomy readers:
+ * {@link CleverDataReader} (POI workbook DOM) and {@link CleverDataStreamingReader} (POI SAX).
+ * <br> <br>
+ * Usage: java -cp benchmarks/target/benchmarks.jar DMP_integration_with_CI360.benchmarks.TaxonomyReaderComparison
+ * [path to the taxonomy file] [runs]
+ * <br> <br>
+ * For every reader it prints the load time, the bytes allocated by the loading thread
+ * and the heap retained by the reader after a full GC. Run it with a fixed heap (-Xms = -Xmx)
+ * so that the numbers of the two readers are comparable.
+ */
+public class TaxonomyReaderComparison {
+
+    public static void main(String[] args) {
+        String path = args.length > 0 ? args[0] : "cleverdata_taxonomy_client.xlsm";
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        for (int run = 1; run <= runs; run++) {
+            System.out.println("Run " + run + ":");
+            measure("CleverDataReader (DOM)", path, false);
+            measure("CleverDataStreamingReader (SAX)", path, true);
+        }
+    }
+
+    private static void measure(String name, String path, boolean streaming) {
+        long heapBefore = usedHeap();
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+
+        ReaderInterface reader = streaming ? new CleverDataStreamingReader(path) : new CleverDataReader(path);
+
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        long retained = usedHeap() - heapBefore;
+
+        System.out.println(String.format("  %-32s time %6d ms, allocated %8.1f MB, retained %8.1f MB, attributes %d, sheets %d",
+                name, elapsed / 1000000, allocated / 1048576.0, retained / 1048576.0,
+                reader.getAttributesTaxonomy().ids.size(), reader.getDictionaryAttributesTaxonomy().size()));
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+
+        return 0;
+    }
+}
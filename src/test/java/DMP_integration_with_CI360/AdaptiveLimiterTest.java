@@ -0,0 +1,63 @@
+package DMP_integration_with_CI360;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class AdaptiveLimiterTest {
+    private static final long FAST = 1000000;
+    private static final long SLOW = 2000000000;
+
+    @Test
+    public void rejectsRequestsOverTheLimit() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(2, 1, 10, 1000, 0.5);
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        assertEquals(2, limiter.getInFlight());
+
+        limiter.cancel();
+        assertEquals(1, limiter.getInFlight());
+        assertTrue(limiter.tryAcquire());
+    }
+
+    @Test
+    public void growsOnFastSuccessesUpToTheMaximum() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(2, 1, 4, 1000, 0.5);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.release(true, FAST);
+        }
+        assertEquals(4, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void shrinksOnFailuresAndSlowResponsesDownToTheMinimum() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(8, 2, 8, 1000, 0.5);
+        assertTrue(limiter.tryAcquire());
+        limiter.release(false, FAST);
+        assertEquals(4, limiter.getLimit());
+
+        assertTrue(limiter.tryAcquire());
+        limiter.release(true, SLOW);
+        assertEquals(2, limiter.getLimit());
+
+        assertTrue(limiter.tryAcquire());
+        limiter.release(false, FAST);
+        assertEquals(2, limiter.getLimit());
+    }
+
+    @Test
+    public void cancelDoesNotChangeTheLimit() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(4, 1, 8, 1000, 0.5);
+        assertTrue(limiter.tryAcquire());
+        limiter.cancel();
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidLimits() {
+        new AdaptiveLimiter(4, 8, 2, 1000, 0.5);
+    }
+}
@@ -0,0 +1,85 @@
+package DMP_integration_with_CI360;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void opensWhenTheFailureRateReachesTheThreshold() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 0.5, 10, 4, 60000, 2);
+        // Below the minimum calls the rate is not checked.
+        fail(breaker, 3);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        fail(breaker, 1);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+        assertTrue(breaker.getRemainingOpenMillis() > 0);
+    }
+
+    @Test
+    public void staysClosedBelowTheThreshold() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 0.5, 10, 4, 60000, 2);
+        for (int i = 0; i < 20; i++) {
+            assertTrue(breaker.tryAcquire());
+            if (i % 3 == 2)
+                breaker.onFailure();
+            else
+                breaker.onSuccess();
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getRemainingOpenMillis());
+    }
+
+    @Test
+    public void closesAfterSuccessfulProbes() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker("test", 0.5, 10, 2, 20, 2);
+        fail(breaker, 2);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        Thread.sleep(40);
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.tryAcquire());
+        // Only the probes pass while the circuit is half-open.
+        assertFalse(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        breaker.onSuccess();
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+    }
+
+    @Test
+    public void reopensOnAFailedProbe() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker("test", 0.5, 10, 2, 20, 2);
+        fail(breaker, 2);
+        Thread.sleep(40);
+
+        assertTrue(breaker.tryAcquire());
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    public void cancelledProbeIsGivenBack() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker("test", 0.5, 10, 2, 20, 1);
+        fail(breaker, 2);
+        Thread.sleep(40);
+
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+        breaker.cancel();
+        assertTrue(breaker.tryAcquire());
+    }
+
+    private static void fail(CircuitBreaker breaker, int requests) {
+        for (int i = 0; i < requests; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.onFailure();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package DMP_integration_with_CI360;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class DMPProfileCacheTest {
+
+    @Test
+    public void concurrentMissesMakeOneLoad() throws Exception {
+        final DMPProfileCache cache = new DMPProfileCache(60000, 60000, 1000, 0);
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final DMPProfileCache.ProfileLoader loader = new DMPProfileCache.ProfileLoader() {
+            @Override
+            public DMPProfile load(String userId) throws Exception {
+                loads.incrementAndGet();
+                loading.countDown();
+                release.await();
+                return profile(userId);
+            }
+        };
+
+        int callers = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        try {
+            List<Future<DMPProfile>> results = new ArrayList<Future<DMPProfile>>();
+            for (int i = 0; i < callers; i++)
+                results.add(executor.submit(new Callable<DMPProfile>() {
+                    @Override
+                    public DMPProfile call() throws Exception {
+                        return cache.get("user", loader);
+                    }
+                }));
+
+            assertTrue(loading.await(5, TimeUnit.SECONDS));
+            // The other callers wait for the load that is in flight.
+            while (cache.getCollapsedLoads() < callers - 1)
+                Thread.sleep(1);
+            release.countDown();
+
+            for (Future<DMPProfile> result : results)
+                assertEquals("user", result.get(5, TimeUnit.SECONDS).getId());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(1, loads.get());
+        assertEquals(callers, cache.getMisses());
+        assertEquals(callers - 1, cache.getCollapsedLoads());
+
+        cache.get("user", loader);
+        assertEquals(1, loads.get());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void collapsedCallersGetTheErrorOfTheLoad() throws Exception {
+        final DMPProfileCache cache = new DMPProfileCache(60000, 60000, 1000, 0);
+        final CountDownLatch release = new CountDownLatch(1);
+        final DMPProfileCache.ProfileLoader failing = new DMPProfileCache.ProfileLoader() {
+            @Override
+            public DMPProfile load(String userId) throws Exception {
+                release.await();
+                throw new IOException("DMP is down");
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<DMPProfile>> results = new ArrayList<Future<DMPProfile>>();
+            for (int i = 0; i < 2; i++)
+                results.add(executor.submit(new Callable<DMPProfile>() {
+                    @Override
+                    public DMPProfile call() throws Exception {
+                        return cache.get("user", failing);
+                    }
+                }));
+            while (cache.getCollapsedLoads() < 1)
+                Thread.sleep(1);
+            release.countDown();
+
+            for (Future<DMPProfile> result : results) {
+                try {
+                    result.get(5, TimeUnit.SECONDS);
+                    fail("the load failed");
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof IOException);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Errors are not cached, the next call loads again.
+        assertEquals(0, cache.size());
+        assertEquals("user", cache.get("user", new CountingLoader()).getId());
+    }
+
+    @Test
+    public void cachesUnknownUsersForTheNegativeTtl() throws Exception {
+        DMPProfileCache cache = new DMPProfileCache(60000, 60000, 1000, 0);
+        CountingLoader loader = new CountingLoader(true);
+        assertNull(cache.get("unknown", loader));
+        assertNull(cache.get("unknown", loader));
+        assertEquals(1, loader.loads);
+
+        DMPProfileCache uncached = new DMPProfileCache(60000, 0, 1000, 0);
+        loader = new CountingLoader(true);
+        assertNull(uncached.get("unknown", loader));
+        assertNull(uncached.get("unknown", loader));
+        assertEquals(2, loader.loads);
+    }
+
+    @Test
+    public void loadsAgainAfterTheTtlAndKeepsTheStaleProfile() throws Exception {
+        DMPProfileCache cache = new DMPProfileCache(20, 20, 1000, 0);
+        CountingLoader loader = new CountingLoader();
+        cache.get("user", loader);
+        Thread.sleep(40);
+
+        assertEquals("user", cache.getStale("user").getId());
+        assertEquals(1, cache.getStaleHits());
+        cache.get("user", loader);
+        assertEquals(2, loader.loads);
+
+        cache.invalidate("user");
+        assertNull(cache.getStale("user"));
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedUsers() throws Exception {
+        DMPProfileCache cache = new DMPProfileCache(60000, 60000, 4, 0);
+        CountingLoader loader = new CountingLoader();
+        for (int i = 0; i < 4; i++)
+            cache.get("user-" + i, loader);
+        // user-0 is used again, user-1 becomes the eldest.
+        cache.get("user-0", loader);
+        cache.get("user-4", loader);
+
+        assertEquals(4, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertNotNull(cache.getStale("user-0"));
+        assertNull(cache.getStale("user-1"));
+    }
+
+    private static DMPProfile profile(String userId) {
+        return new DMPProfile.Builder().add("segment", "sports", false).build(userId);
+    }
+
+    private static final class CountingLoader implements DMPProfileCache.ProfileLoader {
+        private final boolean notFound;
+        int loads;
+
+        CountingLoader() {
+            this(false);
+        }
+
+        CountingLoader(boolean notFound) {
+            this.notFound = notFound;
+        }
+
+        @Override
+        public DMPProfile load(String userId) {
+            loads++;
+            return notFound ? null : profile(userId);
+        }
+    }
+}
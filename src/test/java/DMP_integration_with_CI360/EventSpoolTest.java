@@ -0,0 +1,221 @@
+package DMP_integration_with_CI360;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Recovery of the on-disk spool: reopening, damaged and torn records, the checkpoint, segments and the size limit.
+ * A reopened spool stands for the agent restarted after a crash, the old instance is not used after it.
+ */
+public class EventSpoolTest {
+    private static final int HEADER_SIZE = 17;
+    private static final int SEGMENT_BYTES = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysAppendedRecordsAfterReopen() throws IOException {
+        File directory = folder.newFolder("spool");
+        EventSpool spool = new EventSpool(directory, SEGMENT_BYTES, 1 << 20);
+        assertTrue(spool.append(EventSpool.TYPE_EVENT, "{\"n\":1}"));
+        assertTrue(spool.append(EventSpool.TYPE_DELIVERY, "{\"n\":2}"));
+        assertTrue(spool.append(EventSpool.TYPE_EVENT, "{\"n\":\"é\"}"));
+        spool.force();
+
+        EventSpool reopened = new EventSpool(directory, SEGMENT_BYTES, 1 << 20);
+        assertEquals(3, reopened.getPendingEvents());
+        assertReplay(reopened, EventSpool.TYPE_EVENT, "{\"n\":1}");
+        assertReplay(reopened, EventSpool.TYPE_DELIVERY, "{\"n\":2}");
+        assertReplay(reopened, EventSpool.TYPE_EVENT, "{\"n\":\"é\"}");
+        assertNull(reopened.peek());
+        assertEquals(0, reopened.getPendingEvents());
+        assertEquals(3, reopened.getReplayedEvents());
+    }
+
+    @Test
+    public void peekWithoutCommitReturnsTheSameRecord() throws IOException {
+        EventSpool spool = new EventSpool(folder.newFolder("spool"), SEGMENT_BYTES, 1 << 20);
+        spool.append(EventSpool.TYPE_EVENT, "first");
+        spool.append(EventSpool.TYPE_EVENT, "second");
+
+        assertEquals("first", spool.peek().event);
+        assertEquals("first", spool.peek().event);
+        EventSpool.Record first = spool.peek();
+        spool.commit(first);
+        // A record committed twice moves the position only once.
+        spool.commit(first);
+        assertEquals("second", spool.peek().event);
+        assertEquals(1, spool.getPendingEvents());
+    }
+
+    @Test
+    public void recoversUpToADamagedRecord() throws IOException {
+        File directory = folder.newFolder("spool");
+        EventSpool spool = new EventSpool(directory, SEGMENT_BYTES, 1 << 20);
+        spool.append(EventSpool.TYPE_EVENT, "first");
+        spool.append(EventSpool.TYPE_EVENT, "second");
+        spool.append(EventSpool.TYPE_EVENT, "third");
+        spool.force();
+
+        // A flipped byte in the payload of the second record fails its crc.
+        int second = HEADER_SIZE + "first".length();
+        flipByte(segmentFile(directory, 0), second + HEADER_SIZE + 1);
+
+        EventSpool reopened = new EventSpool(directory, SEGMENT_BYTES, 1 << 20);
+        assertEquals(1, reopened.getPendingEvents());
+        assertReplay(reopened, EventSpool.TYPE_EVENT, "first");
+        assertNull(reopened.peek());
+
+        // New records are written after the last complete one and are replayed.
+        assertTrue(reopened.append(EventSpool.TYPE_EVENT, "fourth"));
+        assertReplay(reopened, EventSpool.TYPE_EVENT, "fourth");
+    }
+
+    @Test
+    public void recoversAfterATornWrite() throws IOException {
+        File directory = folder.newFolder("spool");
+        EventSpool spool = new EventSpool(directory, SEGMENT_BYTES, 1 << 20);
+        spool.append(EventSpool.TYPE_EVENT, "complete");
+        spool.force();
+
+        // The crash came after the length of the next record was written but before its body.
+        RandomAccessFile file = new RandomAccessFile(segmentFile(directory, 0), "rw");
+        try {
+            file.seek(HEADER_SIZE + "complete".length());
+            file.writeInt(100);
+        } finally {
+            file.close();
+        }
+
+        EventSpool reopened = new EventSpool(directory, SEGMENT_BYTES, 1 << 20);
+        assertEquals(1, reopened.getPendingEvents());
+        assertTrue(reopened.append(EventSpool.TYPE_EVENT, "after restart"));
+        assertReplay(reopened, EventSpool.TYPE_EVENT, "complete");
+        assertReplay(reopened, EventSpool.TYPE_EVENT, "after restart");
+        assertNull(reopened.peek());
+    }
+
+    @Test
+    public void resumesFromTheCheckpoint() throws IOException {
+        File directory = folder.newFolder("spool");
+        EventSpool spool = new EventSpool(directory, SEGMENT_BYTES, 1 << 20);
+        for (int i = 0; i < 5; i++)
+            spool.append(EventSpool.TYPE_EVENT, "event " + i);
+        spool.commit(spool.peek());
+        spool.commit(spool.peek());
+        spool.force();
+
+        EventSpool reopened = new EventSpool(directory, SEGMENT_BYTES, 1 << 20);
+        assertEquals(3, reopened.getPendingEvents());
+        assertReplay(reopened, EventSpool.TYPE_EVENT, "event 2");
+    }
+
+    @Test
+    public void replaysFromTheStartWhenTheCheckpointIsDamaged() throws IOException {
+        File directory = folder.newFolder("spool");
+        EventSpool spool = new EventSpool(directory, SEGMENT_BYTES, 1 << 20);
+        for (int i = 0; i < 3; i++)
+            spool.append(EventSpool.TYPE_EVENT, "event " + i);
+        spool.commit(spool.peek());
+        spool.force();
+
+        flipByte(new File(directory, "checkpoint"), 9);
+
+        // Replayed at least once: the committed record comes again rather than the pending ones being lost.
+        EventSpool reopened = new EventSpool(directory, SEGMENT_BYTES, 1 << 20);
+        assertEquals(3, reopened.getPendingEvents());
+        assertReplay(reopened, EventSpool.TYPE_EVENT, "event 0");
+    }
+
+    @Test
+    public void rollsSegmentsAndDeletesReplayedOnes() throws IOException {
+        File directory = folder.newFolder("spool");
+        int segmentBytes = 256;
+        EventSpool spool = new EventSpool(directory, segmentBytes, 1 << 20);
+        String event = "{\"padding\":\"0123456789012345678901234567890123456789\"}";
+        for (int i = 0; i < 20; i++)
+            assertTrue(spool.append(EventSpool.TYPE_EVENT, event));
+        int segments = segmentFiles(directory);
+        assertTrue("segments: " + segments, segments > 3);
+
+        spool.force();
+        EventSpool reopened = new EventSpool(directory, segmentBytes, 1 << 20);
+        assertEquals(20, reopened.getPendingEvents());
+        for (int i = 0; i < 20; i++)
+            assertReplay(reopened, EventSpool.TYPE_EVENT, event);
+        assertNull(reopened.peek());
+
+        // Only the segment being written is left.
+        assertEquals(1, segmentFiles(directory));
+        assertEquals(0, reopened.getPendingBytes());
+    }
+
+    @Test
+    public void dropsEventsWhenFullAndAcceptsThemAfterTheReplay() throws IOException {
+        int segmentBytes = 256;
+        EventSpool spool = new EventSpool(folder.newFolder("spool"), segmentBytes, 2 * segmentBytes);
+        String event = "{\"padding\":\"0123456789012345678901234567890123456789\"}";
+        int appended = 0;
+        while (spool.append(EventSpool.TYPE_EVENT, event))
+            appended++;
+
+        assertTrue(appended > 0);
+        assertEquals(1, spool.getDroppedEvents());
+        assertEquals(appended, spool.getPendingEvents());
+        assertEquals(appended, spool.getSpooledEvents());
+
+        for (int i = 0; i < appended; i++)
+            assertReplay(spool, EventSpool.TYPE_EVENT, event);
+        assertNull(spool.peek());
+        assertTrue(spool.append(EventSpool.TYPE_EVENT, event));
+    }
+
+    @Test
+    public void dropsAnEventLargerThanASegment() throws IOException {
+        EventSpool spool = new EventSpool(folder.newFolder("spool"), 64, 1 << 20);
+        assertFalse(spool.append(EventSpool.TYPE_EVENT, new String(new char[64]).replace('\0', 'x')));
+        assertEquals(1, spool.getDroppedEvents());
+        assertEquals(0, spool.getPendingEvents());
+    }
+
+    private static void assertReplay(EventSpool spool, byte type, String event) {
+        EventSpool.Record record = spool.peek();
+        assertNotNull("no record, expected " + event, record);
+        assertEquals(type, record.type);
+        assertEquals(event, record.event);
+        spool.commit(record);
+    }
+
+    private static File segmentFile(File directory, long segment) {
+        return new File(directory, String.format("%020d", segment) + ".spool");
+    }
+
+    private static int segmentFiles(File directory) {
+        int count = 0;
+        for (String name : directory.list())
+            if (name.endsWith(".spool"))
+                count++;
+        return count;
+    }
+
+    private static void flipByte(File file, long position) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.seek(position);
+            int value = randomAccessFile.read();
+            randomAccessFile.seek(position);
+            randomAccessFile.write(value ^ 0xff);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+}
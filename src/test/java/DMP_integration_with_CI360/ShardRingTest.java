@@ -0,0 +1,62 @@
+package DMP_integration_with_CI360;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ShardRingTest {
+    private static final int USERS = 20000;
+
+    @Test
+    public void everyInstanceAgreesOnTheOwner() {
+        // The order of the list does not matter, every instance builds the same ring.
+        ShardRing ring = new ShardRing(Arrays.asList("a", "b", "c"), 128);
+        ShardRing reordered = new ShardRing(Arrays.asList("c", "a", "b"), 128);
+        for (int i = 0; i < USERS; i++)
+            assertEquals(ring.ownerOf("user-" + i), reordered.ownerOf("user-" + i));
+    }
+
+    @Test
+    public void spreadsTheUsersOverTheMembers() {
+        ShardRing ring = new ShardRing(Arrays.asList("a", "b", "c", "d"), 128);
+        Map<String, Integer> users = new HashMap<String, Integer>();
+        for (int i = 0; i < USERS; i++) {
+            String owner = ring.ownerOf("user-" + i);
+            users.put(owner, users.containsKey(owner) ? users.get(owner) + 1 : 1);
+        }
+
+        assertEquals(4, users.size());
+        for (Map.Entry<String, Integer> member : users.entrySet())
+            assertTrue(member.getKey() + " owns " + member.getValue(), member.getValue() > USERS / 4 / 2);
+    }
+
+    @Test
+    public void removingAMemberMovesOnlyItsUsers() {
+        ShardRing ring = new ShardRing(Arrays.asList("a", "b", "c"), 128);
+        ShardRing smaller = new ShardRing(Arrays.asList("a", "b"), 128);
+        for (int i = 0; i < USERS; i++) {
+            String owner = ring.ownerOf("user-" + i);
+            if (!owner.equals("c"))
+                assertEquals(owner, smaller.ownerOf("user-" + i));
+        }
+    }
+
+    @Test
+    public void singleMemberOwnsEveryone() {
+        ShardRing ring = new ShardRing(Collections.singletonList("only"), 1);
+        for (int i = 0; i < 100; i++)
+            assertEquals("only", ring.ownerOf("user-" + i));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNoMembers() {
+        new ShardRing(Collections.<String>emptyList(), 128);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNoVirtualNodes() {
+        new ShardRing(Arrays.asList("a", "b"), 0);
+    }
+}